@@ -0,0 +1,63 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2014, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.bot;
+
+import java.util.concurrent.TimeUnit;
+
+import org.jboss.bot.bench.CorpusState;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class IrcStringBenchmark {
+
+    @Benchmark
+    public String build(CorpusState state) {
+        // the shape of a typical issue line
+        final IrcStringBuilder b = new IrcStringBuilder();
+        b.b().append("jira").b().nc().append(' ');
+        b.append('[').fc(3).append("WFLY-1234").nc().append("] ");
+        b.append(state.next());
+        b.append(" [").fc(10).append("Open Bug").nc().append(',');
+        b.fc(7).append(' ').append("Major").nc().append(',');
+        b.fc(6).append(' ').append("David Lloyd").nc().append("] ");
+        b.append("https://issues.jboss.org/browse/WFLY-1234");
+        return b.toString();
+    }
+
+    @Benchmark
+    public String deformatPlain(CorpusState state) {
+        return IrcStringUtil.deformat(state.next());
+    }
+
+    @Benchmark
+    public String deformatFormatted(CorpusState state) {
+        return IrcStringUtil.deformat(build(state));
+    }
+}
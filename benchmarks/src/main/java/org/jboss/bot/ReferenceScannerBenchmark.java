@@ -0,0 +1,87 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2014, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.bot;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.jboss.bot.bench.CorpusState;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ReferenceScannerBenchmark {
+
+    // the patterns the handlers used before the single scan, kept as the baseline
+    private static final Pattern URL_PATTERN = Pattern.compile("https?://[^ ]*[^ ,.?]", Pattern.CASE_INSENSITIVE);
+    private static final Pattern JIRA_KEY = Pattern.compile("\\b([A-Z]{2}[A-Z0-9]*)-\\d+");
+    private static final Pattern BZ_PATTERN = Pattern.compile("(?:[Bb][Zz]\\s*#)(\\d+)");
+
+    @Benchmark
+    public References scan(CorpusState state) {
+        return ReferenceScanner.scan(state.next());
+    }
+
+    /**
+     * The work the URL, Jira and Bugzilla handlers each did for a line before they shared one scan.
+     */
+    @Benchmark
+    public int regexBaseline(CorpusState state) {
+        final String message = state.next();
+        int count = 0;
+        final StringBuilder cleanString = new StringBuilder();
+        final Matcher urlMatcher = URL_PATTERN.matcher(message);
+        int last = 0;
+        while (urlMatcher.find()) {
+            try {
+                new URI(urlMatcher.group());
+            } catch (URISyntaxException e) {
+                continue;
+            }
+            cleanString.append(message.substring(last, urlMatcher.start()));
+            cleanString.append("[URL]");
+            last = urlMatcher.end();
+            count ++;
+        }
+        cleanString.append(message.substring(last, message.length()));
+        final String clean = cleanString.toString();
+        final Matcher jiraMatcher = JIRA_KEY.matcher(clean);
+        while (jiraMatcher.find()) {
+            count ++;
+        }
+        final Matcher bzMatcher = BZ_PATTERN.matcher(clean);
+        while (bzMatcher.find()) {
+            count ++;
+        }
+        return count;
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2014, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.bot.admin;
+
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import org.jboss.bot.bench.CorpusState;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class AdministrationCommandBenchmark {
+
+    // in the order Administration tries them
+    private static final Pattern[] COMMANDS = {
+        Administration.LEAVE,
+        Administration.WALL,
+        Administration.JOIN,
+        Administration.PART,
+        Administration.SAY,
+        Administration.POSE,
+        Administration.GET,
+        Administration.REMOVE,
+        Administration.SET,
+        Administration.RECONNECT,
+        Administration.LOOKUPS,
+        Administration.STATS,
+    };
+
+    @Benchmark
+    public int matchCommands(CorpusState state) {
+        final String trimmed = state.next().trim();
+        for (int i = 0; i < COMMANDS.length; i ++) {
+            if (COMMANDS[i].matcher(trimmed).matches()) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
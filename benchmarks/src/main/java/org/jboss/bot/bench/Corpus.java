@@ -0,0 +1,139 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2014, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.bot.bench;
+
+import java.util.Random;
+
+/**
+ * Generated lines of channel text.  The same kind and seed always give the same lines, so that runs can be
+ * compared with each other.
+ */
+public final class Corpus {
+
+    /**
+     * The number of lines in a corpus; a power of two so benchmarks can cycle with a mask.
+     */
+    public static final int SIZE = 1024;
+
+    /**
+     * The corpus kinds, for use as a benchmark parameter.
+     */
+    public static final String CHATTER = "chatter";
+    public static final String URLS = "urls";
+    public static final String KEYS = "keys";
+    public static final String LONG = "long";
+
+    private static final String[] WORDS = {
+        "the", "a", "is", "it", "that", "I", "you", "we", "not", "but", "so", "just", "think", "should", "could",
+        "deploy", "server", "subsystem", "build", "test", "fails", "passes", "again", "on", "master", "branch",
+        "commit", "patch", "review", "merge", "config", "thread", "pool", "leak", "heap", "logging", "module",
+        "classloader", "why", "what", "ok", "thanks", "yeah", "hmm", "lol", "morning", "later", "brb", "CI",
+        "upstream", "downstream", "release", "Final", "tag", "jar", "war", "xml", "JSON", "UTF-8", "SHA-256",
+    };
+
+    private static final String[] URLS_LIST = {
+        "https://github.com/wildfly/wildfly/pull/%d",
+        "https://github.com/jboss-logging/jboss-logging/commit/3f2a9c1%d",
+        "https://github.com/xnio/xnio/issues/%d",
+        "https://issues.jboss.org/browse/WFLY-%d",
+        "https://bugzilla.redhat.com/show_bug.cgi?id=%d",
+        "http://docs.jboss.org/author/display/WFLY8/Page%d",
+        "https://gist.github.com/anonymous/%d.",
+    };
+
+    private static final String[] PROJECTS = {
+        "WFLY", "WFCORE", "JBEAP", "UNDERTOW", "XNIO", "JBMAR", "REM3", "ELY", "MODULES", "LOGMGR",
+    };
+
+    private Corpus() {
+    }
+
+    /**
+     * Get the lines of the given kind.
+     *
+     * @param kind one of {@link #CHATTER}, {@link #URLS}, {@link #KEYS} or {@link #LONG}
+     * @return the lines
+     */
+    public static String[] lines(String kind) {
+        final Random random = new Random(kind.hashCode());
+        final String[] lines = new String[SIZE];
+        final StringBuilder b = new StringBuilder();
+        for (int i = 0; i < SIZE; i ++) {
+            b.setLength(0);
+            switch (kind) {
+                case CHATTER: {
+                    words(b, random, 4 + random.nextInt(12));
+                    break;
+                }
+                case URLS: {
+                    words(b, random, 1 + random.nextInt(5));
+                    final int count = 1 + random.nextInt(3);
+                    for (int j = 0; j < count; j ++) {
+                        b.append(' ').append(String.format(URLS_LIST[random.nextInt(URLS_LIST.length)], Integer.valueOf(random.nextInt(30000))));
+                        if (random.nextBoolean()) {
+                            b.append(", ");
+                            words(b, random, 1 + random.nextInt(3));
+                        }
+                    }
+                    break;
+                }
+                case KEYS: {
+                    final int count = 3 + random.nextInt(10);
+                    for (int j = 0; j < count; j ++) {
+                        if (j > 0) b.append(random.nextBoolean() ? ", " : " ");
+                        switch (random.nextInt(5)) {
+                            case 0: b.append("bz#").append(100000 + random.nextInt(900000)); break;
+                            case 1: b.append("BZ #").append(100000 + random.nextInt(900000)); break;
+                            default: b.append(PROJECTS[random.nextInt(PROJECTS.length)]).append('-').append(1 + random.nextInt(9999)); break;
+                        }
+                    }
+                    break;
+                }
+                case LONG: {
+                    while (b.length() < 400) {
+                        words(b, random, 8);
+                        switch (random.nextInt(4)) {
+                            case 0: b.append(' ').append(String.format(URLS_LIST[random.nextInt(URLS_LIST.length)], Integer.valueOf(random.nextInt(30000)))); break;
+                            case 1: b.append(' ').append(PROJECTS[random.nextInt(PROJECTS.length)]).append('-').append(1 + random.nextInt(9999)); break;
+                            default: break;
+                        }
+                        b.append(' ');
+                    }
+                    break;
+                }
+                default: {
+                    throw new IllegalArgumentException("Unknown corpus " + kind);
+                }
+            }
+            lines[i] = b.toString();
+        }
+        return lines;
+    }
+
+    private static void words(StringBuilder b, Random random, int count) {
+        for (int i = 0; i < count; i ++) {
+            if (i > 0) b.append(' ');
+            b.append(WORDS[random.nextInt(WORDS.length)]);
+        }
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2014, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.bot;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.prefs.BackingStoreException;
+import java.util.prefs.Preferences;
+
+/**
+ * An immutable snapshot of a node of the bot preferences and all of its descendants.  Comma-separated values
+ * are split once when the snapshot is taken.
+ */
+public final class Config {
+
+    static final Config EMPTY = new Config(Collections.<String, String>emptyMap(), Collections.<String, Set<String>>emptyMap(), Collections.<String, Config>emptyMap());
+
+    private final Map<String, String> values;
+    private final Map<String, Set<String>> sets;
+    private final Map<String, Config> children;
+
+    private Config(final Map<String, String> values, final Map<String, Set<String>> sets, final Map<String, Config> children) {
+        this.values = values;
+        this.sets = sets;
+        this.children = children;
+    }
+
+    static Config of(Preferences node, Map<String, Config> children) throws BackingStoreException {
+        final String[] keys = node.keys();
+        final Map<String, String> values = new HashMap<String, String>(keys.length);
+        final Map<String, Set<String>> sets = new HashMap<String, Set<String>>(keys.length);
+        for (String key : keys) {
+            final String value = node.get(key, null);
+            if (value != null) {
+                values.put(key, value);
+                sets.put(key, split(value));
+            }
+        }
+        return new Config(values, sets, children);
+    }
+
+    private static Set<String> split(String value) {
+        final String trimmed = value.trim();
+        if (trimmed.isEmpty()) {
+            return Collections.emptySet();
+        }
+        final Set<String> set = new HashSet<String>(Arrays.asList(trimmed.split("\\s*,\\s*")));
+        set.remove("");
+        return Collections.unmodifiableSet(set);
+    }
+
+    public String get(String key, String defVal) {
+        final String value = values.get(key);
+        return value == null ? defVal : value;
+    }
+
+    public boolean getBoolean(String key, boolean defVal) {
+        final String value = values.get(key);
+        if ("true".equalsIgnoreCase(value)) {
+            return true;
+        } else if ("false".equalsIgnoreCase(value)) {
+            return false;
+        } else {
+            return defVal;
+        }
+    }
+
+    public int getInt(String key, int defVal) {
+        final String value = values.get(key);
+        if (value != null) try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException ignored) {}
+        return defVal;
+    }
+
+    public long getLong(String key, long defVal) {
+        final String value = values.get(key);
+        if (value != null) try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException ignored) {}
+        return defVal;
+    }
+
+    /**
+     * Get a comma-separated value as a set.
+     *
+     * @param key the key
+     * @return the set, which is empty if the key is not present
+     */
+    public Set<String> getSet(String key) {
+        return getSet(key, Collections.<String>emptySet());
+    }
+
+    /**
+     * Get a comma-separated value as a set.
+     *
+     * @param key the key
+     * @param defVal the set to return if the key is not present
+     * @return the set
+     */
+    public Set<String> getSet(String key, Set<String> defVal) {
+        final Set<String> set = sets.get(key);
+        return set == null ? defVal : set;
+    }
+
+    /**
+     * Determine whether a descendant node exists.
+     *
+     * @param path the relative path of the node
+     * @return {@code true} if it exists
+     */
+    public boolean hasNode(String path) {
+        return find(path) != null;
+    }
+
+    /**
+     * Get a descendant node.
+     *
+     * @param path the relative path of the node
+     * @return the node, which is empty if it does not exist
+     */
+    public Config node(String path) {
+        final Config config = find(path);
+        return config == null ? EMPTY : config;
+    }
+
+    private Config find(String path) {
+        Config config = this;
+        int s = 0;
+        int e;
+        do {
+            e = path.indexOf('/', s);
+            final String name = e == -1 ? path.substring(s) : path.substring(s, e);
+            config = config.children.get(name);
+            if (config == null) {
+                return null;
+            }
+            s = e + 1;
+        } while (e != -1);
+        return config;
+    }
+
+    public Set<String> childrenNames() {
+        return Collections.unmodifiableSet(children.keySet());
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2014, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.bot;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.prefs.BackingStoreException;
+import java.util.prefs.NodeChangeEvent;
+import java.util.prefs.NodeChangeListener;
+import java.util.prefs.PreferenceChangeEvent;
+import java.util.prefs.PreferenceChangeListener;
+import java.util.prefs.Preferences;
+
+import org.jboss.logging.Logger;
+
+/**
+ * Keeps a {@link Config} snapshot of a preference tree up to date.  A new snapshot is taken whenever any node
+ * of the tree changes, and swapped in whole, so readers never see a half-applied change.
+ */
+public final class ConfigWatcher implements PreferenceChangeListener, NodeChangeListener {
+
+    private static final Logger log = Logger.getLogger("org.jboss.bot");
+
+    private final Preferences root;
+    private final Set<Preferences> watched = Collections.newSetFromMap(new WeakHashMap<Preferences, Boolean>());
+    private volatile Config config = Config.EMPTY;
+
+    public ConfigWatcher(final Preferences root) {
+        this.root = root;
+        refresh();
+    }
+
+    /**
+     * Get the current snapshot.
+     *
+     * @return the snapshot
+     */
+    public Config getConfig() {
+        return config;
+    }
+
+    /**
+     * Take a new snapshot now, without waiting for the change notification.
+     */
+    public synchronized void refresh() {
+        try {
+            config = snapshot(root);
+        } catch (BackingStoreException | IllegalStateException e) {
+            // a node went away under us; its removal will bring us back here
+            log.warnf(e, "Failed to read configuration");
+        }
+    }
+
+    private Config snapshot(Preferences node) throws BackingStoreException {
+        if (watched.add(node)) {
+            node.addPreferenceChangeListener(this);
+            node.addNodeChangeListener(this);
+        }
+        final String[] names = node.childrenNames();
+        final Map<String, Config> children = new HashMap<String, Config>(names.length);
+        for (String name : names) {
+            children.put(name, snapshot(node.node(name)));
+        }
+        return Config.of(node, children);
+    }
+
+    public void preferenceChange(final PreferenceChangeEvent evt) {
+        refresh();
+    }
+
+    public void childAdded(final NodeChangeEvent evt) {
+        refresh();
+    }
+
+    public void childRemoved(final NodeChangeEvent evt) {
+        refresh();
+    }
+}
@@ -0,0 +1,242 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2014, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.bot;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jboss.bot.metrics.MetricsSource;
+import org.jboss.bot.metrics.MetricsWriter;
+
+/**
+ * Remembers which keys were recently shown to which targets, so that a key mentioned again within a provider's
+ * window is not looked up and shown again.  Only the target, the key and a deadline are kept.  Entries are
+ * spread over lock stripes; each stripe files its entries in a hashed timing wheel by deadline, and a timer
+ * sweeps one wheel slot per tick, so expired entries go away whether or not anything new arrives.  The number
+ * of entries is capped; past the cap, nothing new is remembered and nothing is suppressed.
+ */
+public final class DuplicateSuppressor implements MetricsSource {
+
+    private static final int STRIPES = 16;
+    private static final int SLOTS = 64;
+
+    private final long tick;
+    private final int maxPerStripe;
+    private final Stripe[] stripes;
+    private final ScheduledThreadPoolExecutor timer;
+    private final AtomicLong suppressed = new AtomicLong();
+    private final AtomicLong expired = new AtomicLong();
+    private final AtomicLong overflow = new AtomicLong();
+    private long cursor;
+
+    /**
+     * Construct a new instance.
+     *
+     * @param config the {@code duplicates} configuration
+     */
+    public DuplicateSuppressor(final Config config) {
+        tick = TimeUnit.MILLISECONDS.toNanos(Math.max(10L, config.getLong("tick-ms", 1000L)));
+        maxPerStripe = Math.max(1, config.getInt("max-entries", 65536) / STRIPES);
+        stripes = new Stripe[STRIPES];
+        for (int i = 0; i < STRIPES; i ++) {
+            stripes[i] = new Stripe();
+        }
+        cursor = System.nanoTime() / tick;
+        timer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            public Thread newThread(final Runnable r) {
+                final Thread thread = new Thread(r, "JBossBot Duplicate Sweeper");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        timer.scheduleAtFixedRate(new Runnable() {
+            public void run() {
+                sweep();
+            }
+        }, tick, tick, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Determine whether a key should be shown to a target, and if so remember that it was.
+     *
+     * @param target the channel or nick
+     * @param key the key, which must have a value-based {@code equals} and should be distinct between providers
+     * @param windowMillis how long a key shown to a target is suppressed for, in milliseconds
+     * @return {@code true} if the key was not shown to the target within its window
+     */
+    public boolean check(final String target, final Object key, final long windowMillis) {
+        final Mark mark = new Mark(target, key);
+        final Stripe stripe = stripes[(mark.hashCode() ^ (mark.hashCode() >>> 16)) & (STRIPES - 1)];
+        final long now = System.nanoTime();
+        synchronized (stripe) {
+            final Slot slot = stripe.deadlines.get(mark);
+            if (slot != null && slot.deadline - now > 0) {
+                suppressed.incrementAndGet();
+                return false;
+            }
+            if (slot == null && stripe.deadlines.size() >= maxPerStripe) {
+                overflow.incrementAndGet();
+                return true;
+            }
+            final long deadline = now + TimeUnit.MILLISECONDS.toNanos(windowMillis);
+            final int index = slotIndex(deadline, now);
+            if (slot == null) {
+                stripe.deadlines.put(mark, new Slot(deadline, index));
+                stripe.slot(index).add(mark);
+            } else {
+                // expired but not swept yet; move it rather than leave a second entry on the wheel
+                slot.deadline = deadline;
+                if (slot.index != index) {
+                    stripe.slot(slot.index).remove(mark);
+                    slot.index = index;
+                    stripe.slot(index).add(mark);
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Get the wheel slot for a deadline.  A deadline more than a turn away goes in the last slot of this turn, and
+     * is filed again when that slot is swept.
+     */
+    private int slotIndex(final long deadline, final long now) {
+        final long ticks = Math.min(Math.max(1L, (deadline - now + tick - 1) / tick), SLOTS - 1);
+        return wheelIndex(now / tick + ticks);
+    }
+
+    /**
+     * Get the wheel slot for a tick count, which is negative whenever {@code System.nanoTime()} is.
+     */
+    private static int wheelIndex(final long ticks) {
+        return (int) ((ticks % SLOTS + SLOTS) % SLOTS);
+    }
+
+    void sweep() {
+        final long now = System.nanoTime();
+        final long target = now / tick;
+        // catch up on any ticks the timer missed
+        for (long c = Math.max(cursor + 1, target - SLOTS + 1); c <= target; c ++) {
+            final int index = wheelIndex(c);
+            for (Stripe stripe : stripes) {
+                synchronized (stripe) {
+                    final List<Mark> marks = stripe.wheel[index];
+                    if (marks == null || marks.isEmpty()) {
+                        continue;
+                    }
+                    stripe.wheel[index] = null;
+                    for (Mark mark : marks) {
+                        final Slot slot = stripe.deadlines.get(mark);
+                        if (slot == null || slot.index != index) {
+                            // gone, or filed again elsewhere
+                            continue;
+                        }
+                        if (slot.deadline - now <= 0) {
+                            stripe.deadlines.remove(mark);
+                            expired.incrementAndGet();
+                        } else {
+                            final int next = slotIndex(slot.deadline, now);
+                            slot.index = next;
+                            stripe.slot(next).add(mark);
+                        }
+                    }
+                }
+            }
+        }
+        cursor = target;
+    }
+
+    public void writeMetrics(final MetricsWriter writer) {
+        int size = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                size += stripe.deadlines.size();
+            }
+        }
+        writer.family("jbossbot_duplicates_tracked", "gauge", "Keys remembered as recently shown.");
+        writer.sample("jbossbot_duplicates_tracked", size);
+        writer.family("jbossbot_duplicates_suppressed_total", "counter", "Keys not shown again because they were shown recently.");
+        writer.sample("jbossbot_duplicates_suppressed_total", suppressed.get());
+        writer.family("jbossbot_duplicates_expired_total", "counter", "Remembered keys swept after their window.");
+        writer.sample("jbossbot_duplicates_expired_total", expired.get());
+        writer.family("jbossbot_duplicates_overflow_total", "counter", "Keys not remembered because the suppressor was full.");
+        writer.sample("jbossbot_duplicates_overflow_total", overflow.get());
+    }
+
+    /**
+     * Stop the sweeper.
+     */
+    public void shutdown() {
+        timer.shutdownNow();
+    }
+
+    static final class Stripe {
+        final Map<Mark, Slot> deadlines = new HashMap<Mark, Slot>();
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        final List<Mark>[] wheel = new List[SLOTS];
+
+        List<Mark> slot(final int index) {
+            List<Mark> marks = wheel[index];
+            if (marks == null) {
+                marks = wheel[index] = new ArrayList<Mark>();
+            }
+            return marks;
+        }
+    }
+
+    static final class Slot {
+        long deadline;
+        int index;
+
+        Slot(final long deadline, final int index) {
+            this.deadline = deadline;
+            this.index = index;
+        }
+    }
+
+    static final class Mark {
+        private final String target;
+        private final Object key;
+        private final int hashCode;
+
+        Mark(final String target, final Object key) {
+            this.target = target;
+            this.key = key;
+            hashCode = target.hashCode() * 31 + key.hashCode();
+        }
+
+        public boolean equals(final Object obj) {
+            return obj instanceof Mark && hashCode == ((Mark) obj).hashCode && target.equals(((Mark) obj).target) && key.equals(((Mark) obj).key);
+        }
+
+        public int hashCode() {
+            return hashCode;
+        }
+    }
+}
@@ -0,0 +1,358 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2014, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.bot;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import org.jboss.bot.metrics.Histogram;
+import org.jboss.bot.metrics.MetricsSource;
+import org.jboss.bot.metrics.MetricsWriter;
+
+/**
+ * Makes the bot's outbound HTTP requests.  Idle connections are kept alive and reused by the JDK's own per-host
+ * keep-alive cache (up to {@code http.maxConnections} of them per host), which only takes a connection back once
+ * its response has been read to the end; closing a {@link Response} therefore drains whatever is left of a small
+ * body, and drops the connection instead when the rest is large.  Responses are asked for compressed and are
+ * decompressed transparently.  Each host has a fixed number of request permits, so one slow server cannot tie up
+ * every lookup thread; hosts past the tracked limit share one pool.
+ */
+public final class HttpClient implements MetricsSource {
+
+    private static final String OTHER = "other";
+
+    private final int connectTimeout;
+    private final int readTimeout;
+    private final int maxPerHost;
+    private final long waitMillis;
+    private final long drainBytes;
+    private final int maxHosts;
+    private final ConcurrentMap<String, Host> hosts = new ConcurrentHashMap<String, Host>();
+
+    /**
+     * Construct a new instance.
+     *
+     * @param config the {@code http} configuration
+     */
+    public HttpClient(final Config config) {
+        connectTimeout = Math.max(1, config.getInt("connect-timeout-ms", 4000));
+        readTimeout = Math.max(1, config.getInt("read-timeout-ms", 10000));
+        maxPerHost = Math.max(1, config.getInt("max-per-host", 8));
+        waitMillis = Math.max(0L, config.getLong("wait-ms", 10000L));
+        drainBytes = Math.max(0L, config.getLong("drain-bytes", 64L << 10));
+        maxHosts = Math.max(1, config.getInt("max-hosts", 64));
+    }
+
+    /**
+     * Open a connection with the timeouts and headers every request gets.  Callers may add headers or change the
+     * method before passing it to {@link #execute(HttpURLConnection, byte[])}.
+     *
+     * @param url the URL
+     * @return the unconnected connection
+     * @throws IOException if the URL is not an HTTP URL or could not be opened
+     */
+    public HttpURLConnection open(URL url) throws IOException {
+        final URLConnection connection = JBossBotUtils.connectTo(url);
+        if (! (connection instanceof HttpURLConnection)) {
+            throw new IOException("Not an HTTP URL: " + url);
+        }
+        final HttpURLConnection conn = (HttpURLConnection) connection;
+        conn.setConnectTimeout(connectTimeout);
+        conn.setReadTimeout(readTimeout);
+        conn.setRequestProperty("Accept-Encoding", "gzip, deflate");
+        return conn;
+    }
+
+    /**
+     * Get a URL.
+     *
+     * @param url the URL
+     * @return the response, which must be closed
+     * @throws IOException if the request failed
+     */
+    public Response get(URL url) throws IOException {
+        return execute(open(url), null);
+    }
+
+    /**
+     * Send a request and wait for the response headers.
+     *
+     * @param conn the connection from {@link #open(URL)}
+     * @param body the request body, or {@code null} for none
+     * @return the response, which must be closed
+     * @throws IOException if the request failed or no permit for the host came in time
+     */
+    public Response execute(HttpURLConnection conn, byte[] body) throws IOException {
+        final Host host = host(conn.getURL());
+        host.acquire(waitMillis);
+        final long start = System.nanoTime();
+        boolean ok = false;
+        try {
+            if (body != null) {
+                conn.setDoOutput(true);
+                conn.setFixedLengthStreamingMode(body.length);
+                try (OutputStream os = conn.getOutputStream()) {
+                    os.write(body);
+                }
+            }
+            final int status = conn.getResponseCode();
+            host.latency.record(System.nanoTime() - start);
+            host.statuses[Math.min(4, Math.max(0, status / 100 - 1))].incrementAndGet();
+            ok = true;
+            return new Response(host, conn, status);
+        } catch (IOException e) {
+            host.failures.incrementAndGet();
+            throw e;
+        } finally {
+            if (! ok) {
+                conn.disconnect();
+                host.permits.release();
+            }
+        }
+    }
+
+    private Host host(final URL url) {
+        final String name = url.getPort() == -1 ? url.getHost().toLowerCase(Locale.US) : url.getHost().toLowerCase(Locale.US) + ":" + url.getPort();
+        Host host = hosts.get(name);
+        if (host == null) {
+            final String key = hosts.size() >= maxHosts ? OTHER : name;
+            host = hosts.get(key);
+            if (host == null) {
+                host = new Host(key, maxPerHost);
+                final Host appearing = hosts.putIfAbsent(key, host);
+                if (appearing != null) {
+                    host = appearing;
+                }
+            }
+        }
+        return host;
+    }
+
+    public void writeMetrics(final MetricsWriter writer) {
+        final Map<String, Host> sorted = new TreeMap<String, Host>(hosts);
+        writer.family("jbossbot_http_requests_total", "counter", "Outbound HTTP requests, by host and status class.");
+        for (Host host : sorted.values()) {
+            for (int i = 0; i < host.statuses.length; i ++) {
+                writer.sample("jbossbot_http_requests_total", host.statuses[i].get(), "host", host.name, "status", (i + 1) + "xx");
+            }
+            writer.sample("jbossbot_http_requests_total", host.failures.get(), "host", host.name, "status", "error");
+        }
+        writer.family("jbossbot_http_response_seconds", "histogram", "Time from sending a request until its response headers arrived.");
+        for (Host host : sorted.values()) {
+            writer.histogram("jbossbot_http_response_seconds", host.latency, "host", host.name);
+        }
+        writer.family("jbossbot_http_requests_active", "gauge", "Requests holding a permit, by host.");
+        for (Host host : sorted.values()) {
+            writer.sample("jbossbot_http_requests_active", maxPerHost - host.permits.availablePermits(), "host", host.name);
+        }
+        writer.family("jbossbot_http_requests_waiting", "gauge", "Requests waiting for a permit, by host.");
+        for (Host host : sorted.values()) {
+            writer.sample("jbossbot_http_requests_waiting", host.waiting.get(), "host", host.name);
+        }
+        writer.family("jbossbot_http_wait_timeouts_total", "counter", "Requests given up because no permit came in time.");
+        for (Host host : sorted.values()) {
+            writer.sample("jbossbot_http_wait_timeouts_total", host.timeouts.get(), "host", host.name);
+        }
+        writer.family("jbossbot_http_connections_released_total", "counter", "Connections released after a response, by whether they were left open for reuse.");
+        for (Host host : sorted.values()) {
+            writer.sample("jbossbot_http_connections_released_total", host.kept.get(), "host", host.name, "result", "kept");
+            writer.sample("jbossbot_http_connections_released_total", host.dropped.get(), "host", host.name, "result", "dropped");
+        }
+    }
+
+    /**
+     * A response whose headers have arrived.  Closing it releases the host permit and hands the connection back
+     * for reuse if it can.
+     */
+    public final class Response implements Closeable {
+        private final Host host;
+        private final HttpURLConnection conn;
+        private final int status;
+        private InputStream raw;
+        private InputStream body;
+        private boolean abort;
+        private boolean closed;
+
+        Response(final Host host, final HttpURLConnection conn, final int status) {
+            this.host = host;
+            this.conn = conn;
+            this.status = status;
+        }
+
+        public int getStatus() {
+            return status;
+        }
+
+        public URL getURL() {
+            return conn.getURL();
+        }
+
+        public String getHeader(String name) {
+            return conn.getHeaderField(name);
+        }
+
+        public String getContentType() {
+            return conn.getContentType();
+        }
+
+        /**
+         * Get the decompressed body.  For an error status this is the error body, which may be empty.  Closing
+         * the stream does nothing; close the response instead.
+         *
+         * @return the body
+         * @throws IOException if the body could not be opened
+         */
+        public InputStream getBody() throws IOException {
+            if (body == null) {
+                raw = raw();
+                InputStream is = new FilterInputStream(raw) {
+                    public void close() {
+                        // closed with the response
+                    }
+                };
+                final String encoding = conn.getContentEncoding();
+                if ("gzip".equalsIgnoreCase(encoding) || "x-gzip".equalsIgnoreCase(encoding)) {
+                    is = new GZIPInputStream(is);
+                } else if ("deflate".equalsIgnoreCase(encoding)) {
+                    is = new InflaterInputStream(is);
+                }
+                body = is;
+            }
+            return body;
+        }
+
+        /**
+         * Drop the connection on close rather than drain it, because the rest of the body is not wanted.
+         */
+        public void abort() {
+            abort = true;
+        }
+
+        public void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                if (body != null) {
+                    JBossBotUtils.safeClose(body);
+                }
+                if (! abort && drain()) {
+                    host.kept.incrementAndGet();
+                } else {
+                    conn.disconnect();
+                    host.dropped.incrementAndGet();
+                }
+            } finally {
+                host.permits.release();
+            }
+        }
+
+        private InputStream raw() throws IOException {
+            if (raw != null) {
+                return raw;
+            }
+            if (status >= 400) {
+                final InputStream errorStream = conn.getErrorStream();
+                return errorStream == null ? new ByteArrayInputStream(new byte[0]) : errorStream;
+            }
+            return conn.getInputStream();
+        }
+
+        private boolean drain() {
+            try {
+                final InputStream is = raw();
+                final byte[] buf = new byte[4096];
+                long total = 0;
+                int res;
+                while ((res = is.read(buf)) != -1) {
+                    total += res;
+                    if (total > drainBytes) {
+                        return false;
+                    }
+                }
+                is.close();
+                return true;
+            } catch (IOException e) {
+                return false;
+            }
+        }
+    }
+
+    static final class Host {
+        final String name;
+        final Semaphore permits;
+        final AtomicInteger waiting = new AtomicInteger();
+        final Histogram latency = new Histogram();
+        final AtomicLong[] statuses = new AtomicLong[5];
+        final AtomicLong failures = new AtomicLong();
+        final AtomicLong timeouts = new AtomicLong();
+        final AtomicLong kept = new AtomicLong();
+        final AtomicLong dropped = new AtomicLong();
+
+        Host(final String name, final int permits) {
+            this.name = name;
+            this.permits = new Semaphore(permits, true);
+            for (int i = 0; i < statuses.length; i ++) {
+                statuses[i] = new AtomicLong();
+            }
+        }
+
+        void acquire(final long waitMillis) throws IOException {
+            if (permits.tryAcquire()) {
+                return;
+            }
+            waiting.incrementAndGet();
+            try {
+                if (! permits.tryAcquire(waitMillis, TimeUnit.MILLISECONDS)) {
+                    timeouts.incrementAndGet();
+                    throw new IOException("Timed out waiting for a connection to " + name);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting for a connection to " + name);
+            } finally {
+                waiting.decrementAndGet();
+            }
+        }
+    }
+}
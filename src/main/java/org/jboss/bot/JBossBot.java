@@ -30,7 +30,10 @@ import java.util.ServiceLoader;
 import java.util.prefs.Preferences;
 
 import com.flurg.thimbot.ThimBot;
+import com.flurg.thimbot.event.EventHandler;
 import com.flurg.thimbot.handler.AuthenticationHandler;
+import org.jboss.bot.metrics.HandlerMetrics;
+import org.jboss.bot.metrics.MetricsRegistry;
 import org.jboss.logging.Logger;
 
 import javax.net.SocketFactory;
@@ -41,7 +44,13 @@ public final class JBossBot {
     private static final Logger log = Logger.getLogger("org.jboss.bot");
 
     private final Preferences prefNode = Preferences.userRoot().node("jbossbot");
+    private final ConfigWatcher configWatcher = new ConfigWatcher(prefNode);
     private final ThimBot bot;
+    private final LookupExecutor lookupExecutor;
+    private final OutboundScheduler outboundScheduler;
+    private final DuplicateSuppressor duplicateSuppressor;
+    private final HttpClient httpClient;
+    private final MetricsRegistry metrics = new MetricsRegistry();
 
     public JBossBot() {
         log.debug("Configuring...");
@@ -61,16 +70,74 @@ public final class JBossBot {
         bot.setRealName(prefs.get("realname", "JBossBot"));
         bot.setVersion(prefs.get("version", "JBoss Bot, accept no substitute!"));
         this.bot = bot;
+        lookupExecutor = new LookupExecutor(getConfig().node("lookup"));
+        metrics.addSource(lookupExecutor);
+        outboundScheduler = new OutboundScheduler(bot, getConfig().node("outbound"));
+        metrics.addSource(outboundScheduler);
+        duplicateSuppressor = new DuplicateSuppressor(getConfig().node("duplicates"));
+        metrics.addSource(duplicateSuppressor);
+        httpClient = new HttpClient(getConfig().node("http"));
+        metrics.addSource(httpClient);
     }
 
     public Preferences getPrefNode() {
         return prefNode;
     }
 
+    /**
+     * Get the current snapshot of the bot configuration.  Handlers should read settings from here rather than
+     * from the preference node.
+     *
+     * @return the configuration snapshot
+     */
+    public Config getConfig() {
+        return configWatcher.getConfig();
+    }
+
+    /**
+     * Take a new configuration snapshot now, rather than waiting for the change notification.
+     */
+    public void refreshConfig() {
+        configWatcher.refresh();
+    }
+
     public ThimBot getThimBot() {
         return bot;
     }
 
+    public LookupExecutor getLookupExecutor() {
+        return lookupExecutor;
+    }
+
+    public OutboundScheduler getOutboundScheduler() {
+        return outboundScheduler;
+    }
+
+    public DuplicateSuppressor getDuplicateSuppressor() {
+        return duplicateSuppressor;
+    }
+
+    public HttpClient getHttpClient() {
+        return httpClient;
+    }
+
+    public MetricsRegistry getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Add an event handler to the end of the chain, with dispatch metrics.
+     *
+     * @param name the handler name to report metrics under
+     * @param handler the handler
+     */
+    public void addEventHandler(String name, EventHandler handler) {
+        final HandlerMetrics handlerMetrics = metrics.addHandler(name);
+        bot.addEventHandler(handlerMetrics.getEntryProbe());
+        bot.addEventHandler(handler);
+        bot.addEventHandler(handlerMetrics.getExitProbe());
+    }
+
     public static void main(String[] args) throws IOException {
         final JBossBot bot = new JBossBot();
         Preferences nickserv = bot.getPrefNode().node("nickserv");
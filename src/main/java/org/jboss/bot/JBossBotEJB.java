@@ -83,6 +83,7 @@ public class JBossBotEJB {
                         }
                     }
                 }, 10L, TimeUnit.SECONDS);
+                super.handleEvent(context, event);
             }
         });
     }
@@ -94,6 +95,10 @@ public class JBossBotEJB {
             bot.getThimBot().quit();
         } catch (IOException e) {
             e.printStackTrace();
+        } finally {
+            bot.getLookupExecutor().shutdown();
+            bot.getOutboundScheduler().shutdown();
+            bot.getDuplicateSuppressor().shutdown();
         }
     }
 
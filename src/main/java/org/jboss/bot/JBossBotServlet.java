@@ -74,6 +74,9 @@ public final class JBossBotServlet extends HttpServlet {
     }
 
     public void destroy() {
+        for (HttpServlet subServlet : subServlets) {
+            subServlet.destroy();
+        }
         subServlets.clear();
     }
 
@@ -0,0 +1,480 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2014, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.bot;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.zwitserloot.json.JSON;
+
+/**
+ * Pulls the wanted parts of a JSON document out of a stream, skipping the rest as it goes rather than building it.
+ * Wanted parts are named by dotted paths such as {@code repository.owner.login}, with {@code []} standing for every
+ * element of an array, as in {@code commits[].id}; a path takes the whole value it names.  An array can be capped,
+ * in which case its elements past the cap are counted but skipped.  The result is a document holding only the
+ * wanted parts, which is usually a small fraction of the input.
+ */
+public final class JSONExtractor {
+
+    private static final int MAX_DEPTH = 256;
+
+    private final Node root = new Node();
+
+    /**
+     * Construct a new instance.
+     *
+     * @param paths the paths wanted
+     */
+    public JSONExtractor(Collection<String> paths) {
+        for (String path : paths) {
+            Node node = root;
+            for (String segment : path.split("\\.")) {
+                boolean elements = segment.endsWith("[]");
+                if (elements) {
+                    segment = segment.substring(0, segment.length() - 2);
+                }
+                node = node.child(segment);
+                if (elements) {
+                    if (node.elements == null) {
+                        node.elements = new Node();
+                    }
+                    node = node.elements;
+                }
+            }
+            node.all = true;
+        }
+    }
+
+    /**
+     * Extract the wanted parts of a document.
+     *
+     * @param reader the document
+     * @param caps the most elements to keep of each capped array, by its path without {@code []}, or {@code null}
+     * @return the extracted document and array sizes
+     * @throws IOException if reading failed or the document is malformed
+     * @throws IllegalArgumentException if a cap is negative
+     */
+    public Result extract(Reader reader, Map<String, Integer> caps) throws IOException {
+        if (caps != null) for (Map.Entry<String, Integer> entry : caps.entrySet()) {
+            if (entry.getValue().intValue() < 0) {
+                throw new IllegalArgumentException("Negative cap " + entry.getValue() + " for " + entry.getKey());
+            }
+        }
+        final Parse parse = new Parse(reader, caps);
+        parse.value(root, "", 0);
+        if (parse.skipSpace() != -1) {
+            throw parse.malformed();
+        }
+        final String extracted = parse.out.length() == 0 ? "{}" : parse.out.toString();
+        return new Result(JSON.parse(extracted), parse.sizes);
+    }
+
+    /**
+     * An extracted document.
+     */
+    public static final class Result {
+        private final JSON json;
+        private final Map<String, Integer> sizes;
+
+        Result(final JSON json, final Map<String, Integer> sizes) {
+            this.json = json;
+            this.sizes = sizes;
+        }
+
+        public JSON getJSON() {
+            return json;
+        }
+
+        /**
+         * Get the full size of a wanted array, including any elements past its cap.
+         *
+         * @param path the path of the array, without {@code []}
+         * @return the number of elements, or -1 if there was no such array
+         */
+        public int getSize(String path) {
+            final Integer size = sizes.get(path);
+            return size == null ? -1 : size.intValue();
+        }
+    }
+
+    static final class Node {
+        // the whole value is wanted
+        boolean all;
+        Map<String, Node> children;
+        Node elements;
+
+        Node child(final String name) {
+            if (children == null) {
+                children = new HashMap<String, Node>();
+            }
+            Node node = children.get(name);
+            if (node == null) {
+                children.put(name, node = new Node());
+            }
+            return node;
+        }
+    }
+
+    static final class Parse {
+        private final Reader reader;
+        private final Map<String, Integer> caps;
+        final Map<String, Integer> sizes = new HashMap<String, Integer>();
+        final StringBuilder out = new StringBuilder();
+        private final char[] buf = new char[8192];
+        private int pos;
+        private int len;
+        private long offset;
+        private final StringBuilder name = new StringBuilder();
+
+        Parse(final Reader reader, final Map<String, Integer> caps) {
+            this.reader = reader;
+            this.caps = caps;
+        }
+
+        private int read() throws IOException {
+            if (pos == len) {
+                offset += len;
+                pos = 0;
+                len = reader.read(buf);
+                if (len <= 0) {
+                    len = 0;
+                    return -1;
+                }
+            }
+            return buf[pos ++];
+        }
+
+        int skipSpace() throws IOException {
+            int c;
+            do {
+                c = read();
+            } while (c == ' ' || c == '\t' || c == '\n' || c == '\r');
+            return c;
+        }
+
+        IOException malformed() {
+            return new IOException("Malformed JSON at offset " + (offset + pos));
+        }
+
+        /**
+         * Read a value.
+         *
+         * @param node what is wanted of it, or {@code null} to skip it
+         * @param path its path, for capped arrays
+         * @param depth the nesting depth
+         */
+        void value(final Node node, final String path, final int depth) throws IOException {
+            if (depth > MAX_DEPTH) {
+                throw new IOException("JSON nested too deeply");
+            }
+            final boolean copy = node != null && node.all;
+            final int c = skipSpace();
+            switch (c) {
+                case '{': {
+                    if (copy) {
+                        copyObject(depth);
+                    } else {
+                        object(node, path, depth);
+                    }
+                    return;
+                }
+                case '[': {
+                    if (copy) {
+                        copyArray(depth);
+                    } else {
+                        array(node, path, depth);
+                    }
+                    return;
+                }
+                case '"': {
+                    string(node != null ? out : null, false);
+                    return;
+                }
+                case -1: {
+                    throw malformed();
+                }
+                default: {
+                    literal(c, node != null);
+                    return;
+                }
+            }
+        }
+
+        private void object(final Node node, final String path, final int depth) throws IOException {
+            if (node != null) {
+                out.append('{');
+            }
+            boolean first = true;
+            int c = skipSpace();
+            if (c == '}') {
+                if (node != null) {
+                    out.append('}');
+                }
+                return;
+            }
+            for (;;) {
+                if (c != '"') {
+                    throw malformed();
+                }
+                name.setLength(0);
+                string(null, true);
+                if (skipSpace() != ':') {
+                    throw malformed();
+                }
+                final Node child = node == null || node.children == null ? null : node.children.get(name.toString());
+                if (child != null) {
+                    if (! first) {
+                        out.append(',');
+                    }
+                    first = false;
+                    final String childPath = path.isEmpty() ? name.toString() : path + "." + name;
+                    appendQuoted(name);
+                    out.append(':');
+                    value(child, childPath, depth + 1);
+                } else {
+                    value(null, path, depth + 1);
+                }
+                c = skipSpace();
+                if (c == '}') {
+                    break;
+                }
+                if (c != ',') {
+                    throw malformed();
+                }
+                c = skipSpace();
+            }
+            if (node != null) {
+                out.append('}');
+            }
+        }
+
+        private void array(final Node node, final String path, final int depth) throws IOException {
+            final Node elements = node == null ? null : node.elements;
+            final Integer cap = elements == null || caps == null ? null : caps.get(path);
+            final int max = cap == null ? Integer.MAX_VALUE : cap.intValue();
+            if (node != null) {
+                out.append('[');
+            }
+            int count = 0;
+            int c = skipSpace();
+            if (c != ']') {
+                for (;;) {
+                    if (c == -1) {
+                        throw malformed();
+                    }
+                    // push it back for the element to read
+                    pos --;
+                    if (elements != null && count < max) {
+                        if (count > 0) {
+                            out.append(',');
+                        }
+                        value(elements, path, depth + 1);
+                    } else {
+                        value(null, path, depth + 1);
+                    }
+                    count ++;
+                    c = skipSpace();
+                    if (c == ']') {
+                        break;
+                    }
+                    if (c != ',') {
+                        throw malformed();
+                    }
+                    c = skipSpace();
+                }
+            }
+            if (node != null) {
+                out.append(']');
+            }
+            if (elements != null) {
+                sizes.put(path, Integer.valueOf(count));
+            }
+        }
+
+        private void copyObject(final int depth) throws IOException {
+            out.append('{');
+            int c = skipSpace();
+            if (c == '}') {
+                out.append('}');
+                return;
+            }
+            for (;;) {
+                if (c != '"') {
+                    throw malformed();
+                }
+                string(out, false);
+                if (skipSpace() != ':') {
+                    throw malformed();
+                }
+                out.append(':');
+                copyValue(depth + 1);
+                c = skipSpace();
+                if (c == '}') {
+                    break;
+                }
+                if (c != ',') {
+                    throw malformed();
+                }
+                out.append(',');
+                c = skipSpace();
+            }
+            out.append('}');
+        }
+
+        private void copyArray(final int depth) throws IOException {
+            out.append('[');
+            int c = skipSpace();
+            if (c != ']') {
+                for (;;) {
+                    if (c == -1) {
+                        throw malformed();
+                    }
+                    // push it back for the element to read
+                    pos --;
+                    copyValue(depth + 1);
+                    c = skipSpace();
+                    if (c == ']') {
+                        break;
+                    }
+                    if (c != ',') {
+                        throw malformed();
+                    }
+                    out.append(',');
+                    c = skipSpace();
+                }
+            }
+            out.append(']');
+        }
+
+        private void copyValue(final int depth) throws IOException {
+            if (depth > MAX_DEPTH) {
+                throw new IOException("JSON nested too deeply");
+            }
+            final int c = skipSpace();
+            switch (c) {
+                case '{': copyObject(depth); return;
+                case '[': copyArray(depth); return;
+                case '"': string(out, false); return;
+                case -1: throw malformed();
+                default: literal(c, true); return;
+            }
+        }
+
+        /**
+         * Read the rest of a string whose opening quote has been read.
+         *
+         * @param raw where to copy the string as it is, quotes and all, or {@code null}
+         * @param decode {@code true} to decode it into {@link #name}
+         */
+        private void string(final StringBuilder raw, final boolean decode) throws IOException {
+            if (raw != null) {
+                raw.append('"');
+            }
+            for (;;) {
+                int c = read();
+                if (c == -1) {
+                    throw malformed();
+                }
+                if (raw != null) {
+                    raw.append((char) c);
+                }
+                if (c == '"') {
+                    return;
+                }
+                if (c == '\\') {
+                    c = read();
+                    if (c == -1) {
+                        throw malformed();
+                    }
+                    if (raw != null) {
+                        raw.append((char) c);
+                    }
+                    if (c == 'u') {
+                        int code = 0;
+                        for (int i = 0; i < 4; i ++) {
+                            final int h = read();
+                            final int d = h == -1 ? -1 : Character.digit(h, 16);
+                            if (d == -1) {
+                                throw malformed();
+                            }
+                            if (raw != null) {
+                                raw.append((char) h);
+                            }
+                            code = code << 4 | d;
+                        }
+                        c = code;
+                    } else {
+                        switch (c) {
+                            case 'b': c = '\b'; break;
+                            case 'f': c = '\f'; break;
+                            case 'n': c = '\n'; break;
+                            case 'r': c = '\r'; break;
+                            case 't': c = '\t'; break;
+                            default: break;
+                        }
+                    }
+                }
+                if (decode) {
+                    name.append((char) c);
+                }
+            }
+        }
+
+        private void literal(int c, final boolean keep) throws IOException {
+            if (c == '}' || c == ']' || c == ',' || c == ':') {
+                throw malformed();
+            }
+            for (;;) {
+                if (keep) {
+                    out.append((char) c);
+                }
+                c = read();
+                if (c == -1) {
+                    return;
+                }
+                if (c == ',' || c == '}' || c == ']' || c == ' ' || c == '\t' || c == '\n' || c == '\r') {
+                    pos --;
+                    return;
+                }
+            }
+        }
+
+        private void appendQuoted(final CharSequence s) {
+            out.append('"');
+            for (int i = 0; i < s.length(); i ++) {
+                final char c = s.charAt(i);
+                if (c == '"' || c == '\\') {
+                    out.append('\\').append(c);
+                } else if (c < 0x20) {
+                    out.append(String.format("\\u%04x", Integer.valueOf(c)));
+                } else {
+                    out.append(c);
+                }
+            }
+            out.append('"');
+        }
+    }
+}
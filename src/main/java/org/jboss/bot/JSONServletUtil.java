@@ -25,10 +25,12 @@ package org.jboss.bot;
 import static org.jboss.bot.JBossBotUtils.safeClose;
 
 import com.zwitserloot.json.JSON;
+import java.io.BufferedInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
 import java.util.HashMap;
 import java.util.Map;
 import org.jboss.logging.Logger;
@@ -49,10 +51,16 @@ public final class JSONServletUtil {
     public static class JSONRequest {
         private final JSON body;
         private final Map<String, String> query;
+        private final JSONExtractor.Result extracted;
 
         public JSONRequest(final JSON body, final Map<String, String> query) {
+            this(body, query, null);
+        }
+
+        JSONRequest(final JSON body, final Map<String, String> query, final JSONExtractor.Result extracted) {
             this.body = body;
             this.query = query;
+            this.extracted = extracted;
         }
 
         public JSON getBody() {
@@ -62,9 +70,19 @@ public final class JSONServletUtil {
         public Map<String, String> getQuery() {
             return query;
         }
+
+        /**
+         * Get the full size of a wanted array of an extracted body.
+         *
+         * @param path the path of the array, without {@code []}
+         * @return the number of elements, or -1 if the array was not there or the body was not extracted
+         */
+        public int getSize(String path) {
+            return extracted == null ? -1 : extracted.getSize(path);
+        }
     }
 
-    public static JSONRequest readJSONPost(final HttpServletRequest req, final HttpServletResponse resp) throws IOException {
+    public static Map<String, String> readQuery(final HttpServletRequest req) {
         final Map<String, String> queryParams = new HashMap<String, String>();
 
         final String rawQuery = req.getQueryString();
@@ -84,9 +102,12 @@ public final class JSONServletUtil {
                 }
             }
         }
+        return queryParams;
+    }
 
-        final String contentType = req.getHeader("Content-type");
-        boolean xlate =  "application/x-www-form-urlencoded".equals(contentType) || "application/vnd.github.v3+form".equals(contentType);
+    public static JSONRequest readJSONPost(final HttpServletRequest req, final HttpServletResponse resp) throws IOException {
+        final Map<String, String> queryParams = readQuery(req);
+        final boolean xlate = isForm(req);
         final InputStream requestBody = req.getInputStream();
         try {
             final InputStreamReader rawReader = new InputStreamReader(requestBody, "UTF-8");
@@ -97,10 +118,7 @@ public final class JSONServletUtil {
                 b.append(buf, 0, res);
             }
             safeClose(requestBody);
-            resp.setContentLength(0);
-            resp.setStatus(200);
-            resp.flushBuffer();
-            safeClose(resp.getOutputStream());
+            respond(resp);
             String s = b.toString();
             if (xlate) {
                 String p;
@@ -123,4 +141,120 @@ public final class JSONServletUtil {
             safeClose(requestBody);
         }
     }
+
+    /**
+     * Read a JSON post, keeping only the wanted parts of the body.  The body is parsed as it is read, form-encoded
+     * or not, so neither the decoded payload string nor a tree of the whole document is ever built.
+     *
+     * @param req the request
+     * @param resp the response
+     * @param extractor the parts wanted
+     * @param caps the most elements to keep of each capped array, by its path
+     * @return the request, or {@code null} if a form post has no payload
+     * @throws IOException if reading failed or the body is malformed
+     * @throws IllegalArgumentException if a cap is negative
+     */
+    public static JSONRequest readJSONPost(final HttpServletRequest req, final HttpServletResponse resp, final JSONExtractor extractor, final Map<String, Integer> caps) throws IOException {
+        final Map<String, String> queryParams = readQuery(req);
+        final InputStream requestBody = req.getInputStream();
+        try {
+            InputStream is = new BufferedInputStream(requestBody);
+            if (isForm(req)) {
+                final FormValueInputStream payload = new FormValueInputStream(is, "payload");
+                if (! payload.find()) {
+                    log.debug("No payload");
+                    respond(resp);
+                    return null;
+                }
+                is = payload;
+            }
+            final JSONExtractor.Result result = extractor.extract(new InputStreamReader(is, StandardCharsets.UTF_8), caps);
+            respond(resp);
+            return new JSONRequest(result.getJSON(), queryParams, result);
+        } finally {
+            safeClose(requestBody);
+        }
+    }
+
+    private static boolean isForm(final HttpServletRequest req) {
+        final String contentType = req.getHeader("Content-type");
+        return "application/x-www-form-urlencoded".equals(contentType) || "application/vnd.github.v3+form".equals(contentType);
+    }
+
+    private static void respond(final HttpServletResponse resp) throws IOException {
+        resp.setContentLength(0);
+        resp.setStatus(200);
+        resp.flushBuffer();
+        safeClose(resp.getOutputStream());
+    }
+
+    /**
+     * The URL-decoded value of one field of a form-encoded stream.
+     */
+    static final class FormValueInputStream extends InputStream {
+        private final InputStream in;
+        private final String name;
+        private boolean done;
+
+        FormValueInputStream(final InputStream in, final String name) {
+            this.in = in;
+            this.name = name;
+        }
+
+        /**
+         * Skip to the value of the field.
+         *
+         * @return {@code true} if it was found, {@code false} if the stream ended first
+         */
+        boolean find() throws IOException {
+            for (;;) {
+                int i = 0;
+                boolean match = true;
+                int c;
+                while ((c = in.read()) != -1 && c != '=' && c != '&') {
+                    if (i >= name.length() || c != name.charAt(i)) {
+                        match = false;
+                    }
+                    i ++;
+                }
+                if (c == -1) {
+                    return false;
+                }
+                if (c == '=') {
+                    if (match && i == name.length()) {
+                        return true;
+                    }
+                    while ((c = in.read()) != -1 && c != '&') {
+                        // skip the value
+                    }
+                    if (c == -1) {
+                        return false;
+                    }
+                }
+            }
+        }
+
+        public int read() throws IOException {
+            if (done) {
+                return -1;
+            }
+            final int c = in.read();
+            if (c == -1 || c == '&') {
+                done = true;
+                return -1;
+            }
+            if (c == '+') {
+                return ' ';
+            }
+            if (c == '%') {
+                final int hi = Character.digit(in.read(), 16);
+                final int lo = Character.digit(in.read(), 16);
+                if (hi == -1 || lo == -1) {
+                    throw new IOException("Malformed form encoding");
+                }
+                return hi << 4 | lo;
+            }
+            return c;
+        }
+    }
 }
@@ -0,0 +1,92 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2014, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.bot;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * An input stream which fails once more than a given number of bytes have been read from it, so that an
+ * unexpectedly large response cannot tie up a lookup thread or fill the heap.
+ */
+public final class LimitedInputStream extends FilterInputStream {
+    private final long limit;
+    private long remaining;
+    private long mark = -1;
+
+    /**
+     * Construct a new instance.
+     *
+     * @param in the stream to read from
+     * @param limit the most bytes which may be read
+     */
+    public LimitedInputStream(final InputStream in, final long limit) {
+        super(in);
+        this.limit = limit;
+        remaining = limit;
+    }
+
+    public int read() throws IOException {
+        if (atLimit()) return -1;
+        final int b = super.read();
+        if (b != -1) remaining --;
+        return b;
+    }
+
+    public int read(final byte[] b, final int off, final int len) throws IOException {
+        if (len == 0) return 0;
+        if (atLimit()) return -1;
+        final int res = super.read(b, off, (int) Math.min(len, remaining));
+        if (res > 0) remaining -= res;
+        return res;
+    }
+
+    public long skip(final long n) throws IOException {
+        if (n <= 0 || atLimit()) return 0;
+        final long res = super.skip(Math.min(n, remaining));
+        if (res > 0) remaining -= res;
+        return res;
+    }
+
+    public synchronized void mark(final int readLimit) {
+        super.mark(readLimit);
+        mark = remaining;
+    }
+
+    public synchronized void reset() throws IOException {
+        super.reset();
+        if (mark != -1) remaining = mark;
+    }
+
+    private boolean atLimit() throws IOException {
+        if (remaining > 0) {
+            return false;
+        }
+        // only an error if there is more to read
+        if (super.read() != -1) {
+            throw new IOException("Response exceeds " + limit + " bytes");
+        }
+        return true;
+    }
+}
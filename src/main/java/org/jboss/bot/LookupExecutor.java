@@ -0,0 +1,364 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2014, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.bot;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.flurg.thimbot.event.MessageRespondableEvent;
+import org.jboss.bot.metrics.MetricsSource;
+import org.jboss.bot.metrics.MetricsWriter;
+import org.jboss.logging.Logger;
+
+/**
+ * An executor for blocking upstream lookups, so that a slow tracker never holds up event dispatch.  Tasks are
+ * queued on a lane per response target; each lane runs its tasks one at a time, so the replies to a given
+ * target go out in the order they were asked for.  A lookup which makes several requests can fork them onto a
+ * small pool of threads of their own; once those are all busy, a fork runs on the thread which asked for it.
+ */
+public final class LookupExecutor implements MetricsSource {
+
+    private static final Logger log = Logger.getLogger("org.jboss.bot");
+
+    private final ExecutorService executor;
+    private final ThreadPoolExecutor forks;
+    private final AtomicLong forksInline = new AtomicLong();
+    private final AtomicLong forksRefused = new AtomicLong();
+    private final int laneDepth;
+    private final int maxPending;
+    private final int maxRejectionLanes;
+    private final AtomicInteger pending = new AtomicInteger();
+    private final ConcurrentMap<String, Lane> lanes = new ConcurrentHashMap<String, Lane>();
+    private final ConcurrentMap<String, AtomicLong> rejections = new ConcurrentHashMap<String, AtomicLong>();
+
+    /**
+     * Construct a new instance.
+     *
+     * @param config the {@code lookup} configuration
+     */
+    public LookupExecutor(final Config config) {
+        laneDepth = config.getInt("lane-depth", 16);
+        maxPending = config.getInt("max-pending", 256);
+        maxRejectionLanes = config.getInt("max-rejection-lanes", 64);
+        ExecutorService executor = null;
+        if (config.getBoolean("virtual-threads", true)) {
+            executor = createVirtualExecutor();
+        }
+        if (executor == null) {
+            final int threads = config.getInt("threads", 8);
+            final ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                private final AtomicInteger idx = new AtomicInteger(1);
+
+                public Thread newThread(final Runnable r) {
+                    final Thread thread = new Thread(r, "JBossBot Lookup Thread " + idx.getAndIncrement());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            pool.allowCoreThreadTimeOut(true);
+            executor = pool;
+        }
+        this.executor = executor;
+        final int forkThreads = Math.max(1, config.getInt("fork-threads", 16));
+        forks = new ThreadPoolExecutor(0, forkThreads, 60L, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), new ThreadFactory() {
+            private final AtomicInteger idx = new AtomicInteger(1);
+
+            public Thread newThread(final Runnable r) {
+                final Thread thread = new Thread(r, "JBossBot Lookup Fork Thread " + idx.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    private static ExecutorService createVirtualExecutor() {
+        // only present on runtimes with virtual threads
+        try {
+            final Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) method.invoke(null);
+        } catch (NoSuchMethodException | IllegalAccessException | InvocationTargetException ignored) {
+            return null;
+        }
+    }
+
+    /**
+     * Get the lane name for a set of targets.
+     *
+     * @param targets the targets
+     * @return the lane name
+     */
+    public static String laneName(Collection<String> targets) {
+        if (targets == null || targets.isEmpty()) {
+            return "*";
+        }
+        final Iterator<String> i = targets.iterator();
+        if (targets.size() == 1) {
+            return i.next();
+        }
+        final StringBuilder b = new StringBuilder();
+        b.append(i.next());
+        while (i.hasNext()) {
+            b.append(',').append(i.next());
+        }
+        return b.toString();
+    }
+
+    /**
+     * Run a lookup on the lane belonging to the targets of the given event.
+     *
+     * @param event the event being responded to
+     * @param task the lookup task
+     * @return {@code true} if the task was accepted, {@code false} if it was rejected
+     */
+    public boolean execute(MessageRespondableEvent event, Runnable task) {
+        final String[] targets = event.getResponseTargets();
+        return execute(laneName(targets == null ? null : Arrays.asList(targets)), task);
+    }
+
+    /**
+     * Run a lookup on the named lane.
+     *
+     * @param laneName the lane name
+     * @param task the lookup task
+     * @return {@code true} if the task was accepted, {@code false} if it was rejected
+     */
+    public boolean execute(String laneName, Runnable task) {
+        if (pending.incrementAndGet() > maxPending) {
+            pending.decrementAndGet();
+            reject(laneName);
+            return false;
+        }
+        for (;;) {
+            Lane lane = lanes.get(laneName);
+            if (lane == null) {
+                final Lane appearing = lanes.putIfAbsent(laneName, lane = new Lane(laneName));
+                if (appearing != null) lane = appearing;
+            }
+            final int res = lane.offer(task);
+            if (res == Lane.ACCEPTED) {
+                return true;
+            } else if (res == Lane.FULL) {
+                pending.decrementAndGet();
+                reject(laneName);
+                return false;
+            }
+            // lane retired under us; try again with a fresh one
+        }
+    }
+
+    /**
+     * Run part of a lookup alongside the rest of it.  If every fork thread is busy, the task is run by the calling
+     * thread before this method returns, so forks never queue behind one another and a fork may itself fork.
+     *
+     * @param task the task
+     * @return the task's future
+     */
+    public <T> Future<T> fork(Callable<T> task) {
+        final FutureTask<T> future = new FutureTask<T>(task);
+        try {
+            forks.execute(future);
+        } catch (RejectedExecutionException e) {
+            forksInline.incrementAndGet();
+            future.run();
+        }
+        return future;
+    }
+
+    /**
+     * Run a task on a fork thread, if one is free.
+     *
+     * @param task the task
+     * @return {@code true} if the task was started, {@code false} if every fork thread is busy
+     */
+    public boolean tryFork(Runnable task) {
+        try {
+            forks.execute(task);
+            return true;
+        } catch (RejectedExecutionException e) {
+            forksRefused.incrementAndGet();
+            return false;
+        }
+    }
+
+    private void reject(String laneName) {
+        log.warnf("Lookup rejected on lane %s", laneName);
+        // lanes come and go with private message nicks, so only so many get a count of their own
+        if (! rejections.containsKey(laneName) && rejections.size() >= maxRejectionLanes) {
+            laneName = "other";
+        }
+        AtomicLong count = rejections.get(laneName);
+        if (count == null) {
+            final AtomicLong appearing = rejections.putIfAbsent(laneName, count = new AtomicLong());
+            if (appearing != null) count = appearing;
+        }
+        count.incrementAndGet();
+    }
+
+    /**
+     * Get the number of lookups waiting or running, across all lanes.
+     *
+     * @return the pending count
+     */
+    public int getPendingCount() {
+        return pending.get();
+    }
+
+    /**
+     * Get the current queue depth of each active lane.
+     *
+     * @return the lane depths, keyed by lane name
+     */
+    public Map<String, Integer> getQueueDepths() {
+        final Map<String, Integer> map = new TreeMap<String, Integer>();
+        for (Lane lane : lanes.values()) {
+            final int depth = lane.depth();
+            if (depth > 0) map.put(lane.name, Integer.valueOf(depth));
+        }
+        return map;
+    }
+
+    /**
+     * Get the number of rejected lookups for each lane that has ever rejected one.  Once there are too many such
+     * lanes, the rest are counted together as {@code other}.
+     *
+     * @return the rejection counts, keyed by lane name
+     */
+    public Map<String, Long> getRejectionCounts() {
+        final Map<String, Long> map = new TreeMap<String, Long>();
+        for (Map.Entry<String, AtomicLong> entry : rejections.entrySet()) {
+            map.put(entry.getKey(), Long.valueOf(entry.getValue().get()));
+        }
+        return map;
+    }
+
+    public void writeMetrics(final MetricsWriter writer) {
+        writer.family("jbossbot_lookup_pending", "gauge", "Lookups waiting or running.");
+        writer.sample("jbossbot_lookup_pending", pending.get());
+        writer.family("jbossbot_lookup_forks_active", "gauge", "Forked parts of lookups running on fork threads.");
+        writer.sample("jbossbot_lookup_forks_active", forks.getActiveCount());
+        writer.family("jbossbot_lookup_forks_busy_total", "counter", "Forks made while every fork thread was busy, by what happened to them.");
+        writer.sample("jbossbot_lookup_forks_busy_total", forksInline.get(), "result", "inline");
+        writer.sample("jbossbot_lookup_forks_busy_total", forksRefused.get(), "result", "refused");
+        writer.family("jbossbot_lookup_lane_depth", "gauge", "Lookups queued on each lane.");
+        for (Map.Entry<String, Integer> entry : getQueueDepths().entrySet()) {
+            writer.sample("jbossbot_lookup_lane_depth", entry.getValue().longValue(), "lane", entry.getKey());
+        }
+        writer.family("jbossbot_lookup_rejected_total", "counter", "Lookups rejected on each lane.");
+        for (Map.Entry<String, Long> entry : getRejectionCounts().entrySet()) {
+            writer.sample("jbossbot_lookup_rejected_total", entry.getValue().longValue(), "lane", entry.getKey());
+        }
+    }
+
+    public void shutdown() {
+        executor.shutdown();
+        forks.shutdownNow();
+    }
+
+    final class Lane implements Runnable {
+        static final int ACCEPTED = 0;
+        static final int FULL = 1;
+        static final int RETIRED = 2;
+
+        private final String name;
+        private final ArrayDeque<Runnable> queue = new ArrayDeque<Runnable>();
+        private boolean running;
+        private boolean retired;
+
+        Lane(final String name) {
+            this.name = name;
+        }
+
+        int offer(Runnable task) {
+            synchronized (this) {
+                if (retired) {
+                    return RETIRED;
+                }
+                if (queue.size() >= laneDepth) {
+                    return FULL;
+                }
+                queue.add(task);
+                if (running) {
+                    return ACCEPTED;
+                }
+                running = true;
+            }
+            try {
+                executor.execute(this);
+            } catch (RejectedExecutionException e) {
+                synchronized (this) {
+                    queue.remove(task);
+                    running = false;
+                }
+                return FULL;
+            }
+            return ACCEPTED;
+        }
+
+        synchronized int depth() {
+            return queue.size();
+        }
+
+        public void run() {
+            for (;;) {
+                final Runnable task;
+                synchronized (this) {
+                    task = queue.poll();
+                    if (task == null) {
+                        running = false;
+                        retired = true;
+                        lanes.remove(name, this);
+                        return;
+                    }
+                }
+                try {
+                    task.run();
+                } catch (Throwable t) {
+                    log.errorf(t, "Lookup failed on lane %s", name);
+                } finally {
+                    pending.decrementAndGet();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,311 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2014, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.bot;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import com.flurg.thimbot.Priority;
+import com.flurg.thimbot.ThimBot;
+import com.flurg.thimbot.event.MessageRespondableEvent;
+import org.jboss.bot.metrics.Histogram;
+import org.jboss.bot.metrics.MetricsSource;
+import org.jboss.bot.metrics.MetricsWriter;
+
+/**
+ * Paces outbound messages to stay inside the network's flood limits.  A thread with something to send first
+ * waits here for its turn, then sends it itself.  Since that wait can be long, senders on the IRC dispatch thread
+ * hand their messages to the {@link LookupExecutor} rather than calling in directly.  Turns are released by a token
+ * bucket which allows a burst and then one message per interval.  Each sender waits in one of three lanes, which
+ * are served in weighted rounds: in each round a lane may send as many messages as its weight, earlier lanes first,
+ * and a lane with nothing waiting gives its share to the others.  Replies to people thus stay ahead of a webhook
+ * burst, while notifications still get a share however busy the channels are.  Within a lane, targets take turns,
+ * so one busy channel cannot hold up the others.
+ */
+public final class OutboundScheduler implements MetricsSource {
+
+    /**
+     * The lanes, in the order they are served within a round.
+     */
+    public enum Lane {
+        /**
+         * Replies to something someone said.
+         */
+        INTERACTIVE,
+        /**
+         * Messages an administrator asked the bot to send.
+         */
+        ADMIN,
+        /**
+         * Notifications from webhooks and other unprompted sources.
+         */
+        NOTIFICATION,
+        ;
+
+        final String label = name().toLowerCase(Locale.US);
+    }
+
+    private static final int[] DEFAULT_WEIGHTS = { 4, 2, 1 };
+
+    private final ThimBot bot;
+    private final int burst;
+    private final long intervalNanos;
+    private final LaneQueue[] queues;
+    private int tokens;
+    private long lastRefill;
+    private boolean shutdown;
+
+    public OutboundScheduler(final ThimBot bot, final Config config) {
+        this.bot = bot;
+        burst = Math.max(1, config.getInt("burst", 5));
+        intervalNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1L, config.getLong("interval-ms", 1000L)));
+        final Lane[] lanes = Lane.values();
+        queues = new LaneQueue[lanes.length];
+        for (int i = 0; i < lanes.length; i ++) {
+            queues[i] = new LaneQueue(lanes[i], Math.max(1, config.getInt("weight-" + lanes[i].label, DEFAULT_WEIGHTS[i])));
+        }
+        tokens = burst;
+        lastRefill = System.nanoTime();
+    }
+
+    /**
+     * Reply to an event, on the interactive lane.
+     *
+     * @param event the event being responded to
+     * @param message the reply
+     * @throws IOException if sending failed or the wait was interrupted
+     */
+    public void respond(MessageRespondableEvent event, String message) throws IOException {
+        final String[] targets = event.getResponseTargets();
+        acquire(Lane.INTERACTIVE, LookupExecutor.laneName(targets == null ? null : Arrays.asList(targets)));
+        event.sendMessageResponse(message);
+    }
+
+    /**
+     * Send a message once its turn comes.
+     *
+     * @param lane the lane
+     * @param targets the targets
+     * @param message the message
+     * @throws IOException if sending failed or the wait was interrupted
+     */
+    public void sendMessage(Lane lane, Collection<String> targets, String message) throws IOException {
+        acquire(lane, LookupExecutor.laneName(targets));
+        bot.sendMessage(Priority.NORMAL, targets, message);
+    }
+
+    /**
+     * Send an action once its turn comes.
+     *
+     * @param lane the lane
+     * @param targets the targets
+     * @param message the action text
+     * @throws IOException if sending failed or the wait was interrupted
+     */
+    public void sendAction(Lane lane, Collection<String> targets, String message) throws IOException {
+        acquire(lane, LookupExecutor.laneName(targets));
+        bot.sendAction(Priority.NORMAL, targets, message);
+    }
+
+    /**
+     * Wait for a turn to send one message.
+     *
+     * @param lane the lane
+     * @param target the target, or comma-separated targets, of the message
+     * @throws InterruptedIOException if the wait was interrupted
+     */
+    public void acquire(Lane lane, String target) throws InterruptedIOException {
+        final LaneQueue queue = queues[lane.ordinal()];
+        final Waiter waiter = new Waiter(target);
+        synchronized (this) {
+            queue.add(waiter);
+            try {
+                for (;;) {
+                    if (shutdown) {
+                        queue.remove(waiter);
+                        break;
+                    }
+                    if (next() != waiter) {
+                        wait();
+                        continue;
+                    }
+                    final long now = System.nanoTime();
+                    refill(now);
+                    if (tokens == 0) {
+                        TimeUnit.NANOSECONDS.timedWait(this, Math.max(1L, lastRefill + intervalNanos - now));
+                        continue;
+                    }
+                    tokens --;
+                    queue.poll();
+                    queue.credit --;
+                    queue.sent ++;
+                    break;
+                }
+            } catch (InterruptedException e) {
+                queue.remove(waiter);
+                notifyAll();
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting to send to " + target);
+            }
+            // the next sender may be waiting on us
+            notifyAll();
+        }
+        queue.wait.record(System.nanoTime() - waiter.queued);
+    }
+
+    private Waiter next() {
+        LaneQueue first = null;
+        for (LaneQueue queue : queues) {
+            if (queue.size > 0) {
+                if (queue.credit > 0) return queue.peek();
+                if (first == null) first = queue;
+            }
+        }
+        if (first == null) {
+            return null;
+        }
+        // every lane with something waiting has had its share of this round
+        for (LaneQueue queue : queues) {
+            queue.credit = queue.weight;
+        }
+        return first.peek();
+    }
+
+    private void refill(long now) {
+        final long elapsed = now - lastRefill;
+        if (elapsed < intervalNanos) {
+            return;
+        }
+        final long add = elapsed / intervalNanos;
+        if (tokens + add >= burst) {
+            tokens = burst;
+            lastRefill = now;
+        } else {
+            tokens += (int) add;
+            lastRefill += add * intervalNanos;
+        }
+    }
+
+    public void writeMetrics(final MetricsWriter writer) {
+        final int[] depths = new int[queues.length];
+        final long[] sent = new long[queues.length];
+        synchronized (this) {
+            for (int i = 0; i < queues.length; i ++) {
+                depths[i] = queues[i].size;
+                sent[i] = queues[i].sent;
+            }
+        }
+        writer.family("jbossbot_outbound_queue_depth", "gauge", "Outbound messages waiting on each lane.");
+        for (int i = 0; i < queues.length; i ++) {
+            writer.sample("jbossbot_outbound_queue_depth", depths[i], "lane", queues[i].lane.label);
+        }
+        writer.family("jbossbot_outbound_sent_total", "counter", "Outbound messages released from each lane.");
+        for (int i = 0; i < queues.length; i ++) {
+            writer.sample("jbossbot_outbound_sent_total", sent[i], "lane", queues[i].lane.label);
+        }
+        writer.family("jbossbot_outbound_wait_seconds", "histogram", "Time outbound messages spent waiting on each lane.");
+        for (LaneQueue queue : queues) {
+            writer.histogram("jbossbot_outbound_wait_seconds", queue.wait, "lane", queue.lane.label);
+        }
+    }
+
+    /**
+     * Stop pacing; anyone still waiting is let through.
+     */
+    public void shutdown() {
+        synchronized (this) {
+            shutdown = true;
+            notifyAll();
+        }
+    }
+
+    static final class Waiter {
+        final String target;
+        final long queued = System.nanoTime();
+
+        Waiter(final String target) {
+            this.target = target;
+        }
+    }
+
+    static final class LaneQueue {
+        final Lane lane;
+        final int weight;
+        final Map<String, ArrayDeque<Waiter>> byTarget = new HashMap<String, ArrayDeque<Waiter>>();
+        final ArrayDeque<String> turns = new ArrayDeque<String>();
+        final Histogram wait = new Histogram();
+        int size;
+        int credit;
+        long sent;
+
+        LaneQueue(final Lane lane, final int weight) {
+            this.lane = lane;
+            this.weight = weight;
+            credit = weight;
+        }
+
+        void add(Waiter waiter) {
+            ArrayDeque<Waiter> waiters = byTarget.get(waiter.target);
+            if (waiters == null) {
+                byTarget.put(waiter.target, waiters = new ArrayDeque<Waiter>());
+                turns.add(waiter.target);
+            }
+            waiters.add(waiter);
+            size ++;
+        }
+
+        Waiter peek() {
+            return byTarget.get(turns.peek()).peek();
+        }
+
+        void poll() {
+            final String target = turns.poll();
+            final ArrayDeque<Waiter> waiters = byTarget.get(target);
+            waiters.poll();
+            if (waiters.isEmpty()) {
+                byTarget.remove(target);
+            } else {
+                turns.add(target);
+            }
+            size --;
+        }
+
+        void remove(Waiter waiter) {
+            final ArrayDeque<Waiter> waiters = byTarget.get(waiter.target);
+            if (waiters != null && waiters.remove(waiter)) {
+                if (waiters.isEmpty()) {
+                    byTarget.remove(waiter.target);
+                    turns.remove(waiter.target);
+                }
+                size --;
+            }
+        }
+    }
+}
@@ -0,0 +1,249 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2014, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.bot;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import com.flurg.thimbot.event.EventHandlerContext;
+import com.flurg.thimbot.event.HandlerKey;
+
+/**
+ * A scanner which finds all of the references in a line of text in a single pass.  The result is kept in the
+ * handler context, so every handler which sees the same line (or its cleaned-up copy) shares one scan.
+ * <p>
+ * Each kind of reference is matched as its former pattern matched it:
+ * <ul>
+ *     <li>URLs: {@code https?://[^ ]*[^ ,.?]}, case-insensitive, which parse as a {@link URI}</li>
+ *     <li>Jira keys: {@code \b([A-Z]{2}[A-Z0-9]*)-\d+}</li>
+ *     <li>Bugzilla references: {@code [Bb][Zz]\s*#(\d+)}</li>
+ *     <li>GitHub references: {@code owner/repo#NNN}</li>
+ * </ul>
+ * Keys and references within URLs are not reported.
+ */
+public final class ReferenceScanner {
+
+    private static final HandlerKey<References> KEY = new HandlerKey<References>();
+
+    private ReferenceScanner() {
+    }
+
+    /**
+     * Get the references of a line, scanning it only if no handler has done so yet in this context.
+     *
+     * @param context the handler context
+     * @param text the text, or the clean text of an earlier scan
+     * @return the references
+     */
+    public static References scan(EventHandlerContext context, String text) {
+        References references = context.getContextValue(KEY);
+        if (references != null && (text.equals(references.getText()) || text.equals(references.getCleanText()))) {
+            return references;
+        }
+        references = scan(text);
+        context.putContextValue(KEY, references);
+        return references;
+    }
+
+    /**
+     * Scan a line of text.
+     *
+     * @param text the text
+     * @return the references
+     */
+    public static References scan(String text) {
+        final int len = text.length();
+        List<URI> urls = null;
+        List<String> jiraKeys = null;
+        List<String> bugzillaIds = null;
+        List<References.GitHubRef> gitHubRefs = null;
+        StringBuilder clean = null;
+        int cleanPos = 0;
+        // each kind resumes after its own last match, like Matcher.find()
+        int urlFrom = 0, jiraFrom = 0, bzFrom = 0, ghFrom = 0;
+        int end;
+        for (int i = 0; i < len; i ++) {
+            final char c = text.charAt(i);
+            if (i >= urlFrom && (c == 'h' || c == 'H') && (end = urlEnd(text, i)) != -1) {
+                urlFrom = end;
+                URI uri;
+                try {
+                    uri = new URI(text.substring(i, end));
+                } catch (URISyntaxException e) {
+                    uri = null;
+                }
+                if (uri != null) {
+                    if (urls == null) urls = new ArrayList<URI>(2);
+                    urls.add(uri);
+                    if (clean == null) clean = new StringBuilder(len);
+                    clean.append(text, cleanPos, i).append("[URL]");
+                    cleanPos = end;
+                    jiraFrom = bzFrom = ghFrom = end;
+                    i = end - 1;
+                    continue;
+                }
+            }
+            if (i >= jiraFrom && c >= 'A' && c <= 'Z' && (i == 0 || ! isWordChar(text.charAt(i - 1))) && (end = jiraKeyEnd(text, i)) != -1) {
+                if (jiraKeys == null) jiraKeys = new ArrayList<String>(2);
+                jiraKeys.add(text.substring(i, end));
+                jiraFrom = end;
+            }
+            if (i >= bzFrom && (c == 'b' || c == 'B') && (end = bugzillaEnd(text, i)) != -1) {
+                if (bugzillaIds == null) bugzillaIds = new ArrayList<String>(2);
+                int d = end;
+                while (isDigit(text.charAt(d - 1))) d --;
+                bugzillaIds.add(text.substring(d, end));
+                bzFrom = end;
+            }
+            if (i >= ghFrom && isOwnerChar(c) && c != '-' && (i == 0 || ! isRepoChar(text.charAt(i - 1)) && text.charAt(i - 1) != '/')) {
+                final References.GitHubRef ref = gitHubRef(text, i);
+                if (ref != null) {
+                    if (gitHubRefs == null) gitHubRefs = new ArrayList<References.GitHubRef>(2);
+                    gitHubRefs.add(ref);
+                    ghFrom = i + ref.getOwner().length() + ref.getRepos().length() + ref.getNumber().length() + 2;
+                }
+            }
+        }
+        final String command = command(text);
+        final String cleanText;
+        if (clean == null) {
+            cleanText = text;
+        } else {
+            cleanText = clean.append(text, cleanPos, len).toString();
+        }
+        return new References(text, cleanText, command,
+            urls == null ? Collections.<URI>emptyList() : urls,
+            jiraKeys == null ? Collections.<String>emptyList() : jiraKeys,
+            bugzillaIds == null ? Collections.<String>emptyList() : bugzillaIds,
+            gitHubRefs == null ? Collections.<References.GitHubRef>emptyList() : gitHubRefs);
+    }
+
+    private static String command(String text) {
+        final int len = text.length();
+        int s = 0;
+        while (s < len && text.charAt(s) <= ' ') s ++;
+        if (s == len || text.charAt(s) != '%') {
+            return null;
+        }
+        int e = ++ s;
+        while (e < len && text.charAt(e) > ' ') e ++;
+        return text.substring(s, e);
+    }
+
+    private static int urlEnd(String text, int i) {
+        final int len = text.length();
+        int s;
+        if (text.regionMatches(true, i, "https://", 0, 8)) {
+            s = i + 8;
+        } else if (text.regionMatches(true, i, "http://", 0, 7)) {
+            s = i + 7;
+        } else {
+            return -1;
+        }
+        int e = s;
+        while (e < len && text.charAt(e) != ' ') e ++;
+        // the last character may not be punctuation
+        char c;
+        while (e > s && ((c = text.charAt(e - 1)) == ',' || c == '.' || c == '?')) e --;
+        return e > s ? e : -1;
+    }
+
+    private static int jiraKeyEnd(String text, int i) {
+        final int len = text.length();
+        if (i + 1 >= len || ! isUpper(text.charAt(i + 1))) {
+            return -1;
+        }
+        int j = i + 2;
+        char c;
+        while (j < len && (isUpper(c = text.charAt(j)) || isDigit(c))) j ++;
+        if (j == len || text.charAt(j) != '-') {
+            return -1;
+        }
+        final int d = ++ j;
+        while (j < len && isDigit(text.charAt(j))) j ++;
+        return j > d ? j : -1;
+    }
+
+    private static int bugzillaEnd(String text, int i) {
+        final int len = text.length();
+        char c;
+        if (i + 1 >= len || (c = text.charAt(i + 1)) != 'z' && c != 'Z') {
+            return -1;
+        }
+        int j = i + 2;
+        while (j < len && isSpace(text.charAt(j))) j ++;
+        if (j == len || text.charAt(j) != '#') {
+            return -1;
+        }
+        final int d = ++ j;
+        while (j < len && isDigit(text.charAt(j))) j ++;
+        return j > d ? j : -1;
+    }
+
+    private static References.GitHubRef gitHubRef(String text, int i) {
+        final int len = text.length();
+        int j = i;
+        while (j < len && isOwnerChar(text.charAt(j))) j ++;
+        if (j == len || text.charAt(j) != '/') {
+            return null;
+        }
+        final int r = ++ j;
+        while (j < len && isRepoChar(text.charAt(j))) j ++;
+        if (j == r || j == len || text.charAt(j) != '#') {
+            return null;
+        }
+        final int d = ++ j;
+        while (j < len && isDigit(text.charAt(j))) j ++;
+        if (j == d || j < len && isWordChar(text.charAt(j))) {
+            return null;
+        }
+        return new References.GitHubRef(text.substring(i, r - 1), text.substring(r, d - 1), text.substring(d, j));
+    }
+
+    private static boolean isUpper(char c) {
+        return c >= 'A' && c <= 'Z';
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private static boolean isSpace(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+    }
+
+    private static boolean isWordChar(char c) {
+        return c == '_' || Character.isLetterOrDigit(c);
+    }
+
+    private static boolean isOwnerChar(char c) {
+        return c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || isDigit(c) || c == '-';
+    }
+
+    private static boolean isRepoChar(char c) {
+        return isOwnerChar(c) || c == '_' || c == '.';
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2014, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.bot;
+
+import java.net.URI;
+import java.util.List;
+
+/**
+ * The references found in one line of text by the {@link ReferenceScanner}.
+ */
+public final class References {
+    private final String text;
+    private final String cleanText;
+    private final String command;
+    private final List<URI> urls;
+    private final List<String> jiraKeys;
+    private final List<String> bugzillaIds;
+    private final List<GitHubRef> gitHubRefs;
+
+    References(final String text, final String cleanText, final String command, final List<URI> urls, final List<String> jiraKeys, final List<String> bugzillaIds, final List<GitHubRef> gitHubRefs) {
+        this.text = text;
+        this.cleanText = cleanText;
+        this.command = command;
+        this.urls = urls;
+        this.jiraKeys = jiraKeys;
+        this.bugzillaIds = bugzillaIds;
+        this.gitHubRefs = gitHubRefs;
+    }
+
+    /**
+     * Get the scanned text.
+     *
+     * @return the text
+     */
+    public String getText() {
+        return text;
+    }
+
+    /**
+     * Get the scanned text with each URL replaced by {@code [URL]}.
+     *
+     * @return the clean text
+     */
+    public String getCleanText() {
+        return cleanText;
+    }
+
+    /**
+     * Get the name of the {@code %} command that the text starts with.
+     *
+     * @return the command name, or {@code null} if the text is not a command
+     */
+    public String getCommand() {
+        return command;
+    }
+
+    /**
+     * Get the URLs in the text, in order.
+     *
+     * @return the URLs
+     */
+    public List<URI> getUrls() {
+        return urls;
+    }
+
+    /**
+     * Get the Jira-style issue keys outside of URLs, in order.
+     *
+     * @return the keys
+     */
+    public List<String> getJiraKeys() {
+        return jiraKeys;
+    }
+
+    /**
+     * Get the bug numbers of the {@code bz#NNN} references outside of URLs, in order.
+     *
+     * @return the bug numbers
+     */
+    public List<String> getBugzillaIds() {
+        return bugzillaIds;
+    }
+
+    /**
+     * Get the GitHub {@code owner/repo#NNN} references outside of URLs, in order.
+     *
+     * @return the references
+     */
+    public List<GitHubRef> getGitHubRefs() {
+        return gitHubRefs;
+    }
+
+    public static final class GitHubRef {
+        private final String owner;
+        private final String repos;
+        private final String number;
+
+        GitHubRef(final String owner, final String repos, final String number) {
+            this.owner = owner;
+            this.repos = repos;
+            this.number = number;
+        }
+
+        public String getOwner() {
+            return owner;
+        }
+
+        public String getRepos() {
+            return repos;
+        }
+
+        public String getNumber() {
+            return number;
+        }
+    }
+}
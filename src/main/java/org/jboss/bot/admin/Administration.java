@@ -23,13 +23,17 @@
 package org.jboss.bot.admin;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.prefs.BackingStoreException;
 import java.util.prefs.Preferences;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
-import com.flurg.thimbot.Priority;
 import com.flurg.thimbot.ThimBot;
 import com.flurg.thimbot.event.AbstractTextEvent;
 import com.flurg.thimbot.event.ChannelMessageEvent;
@@ -39,24 +43,43 @@ import com.flurg.thimbot.event.LoggedInEvent;
 import com.flurg.thimbot.event.MessageRespondableEvent;
 import com.flurg.thimbot.event.PrivateMessageEvent;
 import org.jboss.bot.IrcStringBuilder;
+import org.jboss.bot.JBossBot;
+import org.jboss.bot.LookupExecutor;
 import org.jboss.bot.Mask;
+import org.jboss.bot.OutboundScheduler;
+import org.jboss.bot.ReferenceScanner;
+import org.jboss.bot.metrics.MetricsWriter;
+import org.jboss.logging.Logger;
 
 /**
  * @author <a href="mailto:david.lloyd@redhat.com">David M. Lloyd</a>
  */
 public final class Administration extends EventHandler {
+
+    private static final Logger log = Logger.getLogger("org.jboss.bot.admin");
+
     private final CopyOnWriteArrayList<Mask> admins = new CopyOnWriteArrayList<Mask>();
 
-    private static final Pattern LEAVE = Pattern.compile("^%leave$");
-    private static final Pattern JOIN = Pattern.compile("^%join +([^ ,]+(?:, *[^ ,]+)*)");
-    private static final Pattern PART = Pattern.compile("^%part +([^ ,]+(?:, *[^ ,]+)*)");
-    private static final Pattern REMOVE = Pattern.compile("^%remove +(?:((?:[^/ ]+/)*(?:[^/ ]+))/)?([^/ ]+)");
-    private static final Pattern GET = Pattern.compile("^%get +(?:((?:[^/ ]+/)*(?:[^/ ]+))/)?([^/ ]+)");
-    private static final Pattern SET = Pattern.compile("^%set +(?:((?:[^/ ]+/)*(?:[^/ ]+))/)?([^/ ]+) +(.*)");
-    private static final Pattern WALL = Pattern.compile("^%wall +([^ ].*)");
-    private static final Pattern SAY = Pattern.compile("^%say ([^ ]+) +(.*)");
-    private static final Pattern POSE = Pattern.compile("^%pose ([^ ]+) +(.*)");
-    private static final Pattern RECONNECT = Pattern.compile("^%reconnect$");
+    static final Pattern LEAVE = Pattern.compile("^%leave$");
+    static final Pattern JOIN = Pattern.compile("^%join +([^ ,]+(?:, *[^ ,]+)*)");
+    static final Pattern PART = Pattern.compile("^%part +([^ ,]+(?:, *[^ ,]+)*)");
+    static final Pattern REMOVE = Pattern.compile("^%remove +(?:((?:[^/ ]+/)*(?:[^/ ]+))/)?([^/ ]+)");
+    static final Pattern GET = Pattern.compile("^%get +(?:((?:[^/ ]+/)*(?:[^/ ]+))/)?([^/ ]+)");
+    static final Pattern SET = Pattern.compile("^%set +(?:((?:[^/ ]+/)*(?:[^/ ]+))/)?([^/ ]+) +(.*)");
+    static final Pattern WALL = Pattern.compile("^%wall +([^ ].*)");
+    static final Pattern SAY = Pattern.compile("^%say ([^ ]+) +(.*)");
+    static final Pattern POSE = Pattern.compile("^%pose ([^ ]+) +(.*)");
+    static final Pattern RECONNECT = Pattern.compile("^%reconnect$");
+    static final Pattern LOOKUPS = Pattern.compile("^%lookups$");
+    static final Pattern STATS = Pattern.compile("^%stats +([a-z_]+)$");
+
+    private static final int MAX_STATS_LINES = 12;
+
+    private final JBossBot jbossBot;
+
+    public Administration(final JBossBot jbossBot) {
+        this.jbossBot = jbossBot;
+    }
 
     void addAdmin(Mask mask) {
         admins.add(mask);
@@ -76,12 +99,12 @@ public final class Administration extends EventHandler {
         final String user = event.getFromUser();
         for (Mask admin : admins) {
             if (admin.matches(user)) {
-                handleCheckedMessage(event, true);
+                handleCheckedMessage(context, event, true);
                 super.handleEvent(context, event);
                 return;
             }
         }
-        handleCheckedMessage(event, false);
+        handleCheckedMessage(context, event, false);
         super.handleEvent(context, event);
     }
 
@@ -89,17 +112,21 @@ public final class Administration extends EventHandler {
         final String user = event.getFromUser();
         for (Mask admin : admins) {
             if (admin.matches(user)) {
-                handleCheckedMessage(event, true);
+                handleCheckedMessage(context, event, true);
                 super.handleEvent(context, event);
                 return;
             }
         }
-        handleCheckedMessage(event, false);
+        handleCheckedMessage(context, event, false);
         super.handleEvent(context, event);
     }
 
-    void handleCheckedMessage(final AbstractTextEvent event, final boolean authed) throws IOException, BackingStoreException {
+    void handleCheckedMessage(final EventHandlerContext context, final AbstractTextEvent event, final boolean authed) throws IOException, BackingStoreException {
         final String msg = event.getText();
+        if (ReferenceScanner.scan(context, msg).getCommand() == null) {
+            // every command starts with %
+            return;
+        }
         final String trimmed = msg.trim();
         final ThimBot bot = event.getBot();
         if (LEAVE.matcher(trimmed).matches()) {
@@ -114,7 +141,7 @@ public final class Administration extends EventHandler {
         if (! authed) return;
         final Matcher wallMatcher = WALL.matcher(trimmed);
         if (wallMatcher.matches()) {
-            bot.sendMessage(Priority.NORMAL, bot.getJoinedChannels(), wallMatcher.group(1));
+            send(new ArrayList<String>(bot.getJoinedChannels()), wallMatcher.group(1), false);
             return;
         }
         final Matcher joinMatcher = JOIN.matcher(trimmed);
@@ -135,12 +162,12 @@ public final class Administration extends EventHandler {
         }
         final Matcher sayMatcher = SAY.matcher(trimmed);
         if (sayMatcher.matches()) {
-            bot.sendMessage(sayMatcher.group(1), sayMatcher.group(2));
+            send(Collections.singleton(sayMatcher.group(1)), sayMatcher.group(2), false);
             return;
         }
         final Matcher poseMatcher = POSE.matcher(trimmed);
         if (poseMatcher.matches()) {
-            bot.sendAction(poseMatcher.group(1), poseMatcher.group(2));
+            send(Collections.singleton(poseMatcher.group(1)), poseMatcher.group(2), true);
             return;
         }
         if (event instanceof MessageRespondableEvent) {
@@ -155,9 +182,9 @@ public final class Administration extends EventHandler {
                 }
                 final String value = prefNode.get(key, null);
                 if (value != null) {
-                    respondableEvent.sendMessageResponse(new IrcStringBuilder().fc(10).append(key).nc().append("=").b().append(value).b().nc().toString());
+                    respond(respondableEvent, new IrcStringBuilder().fc(10).append(key).nc().append("=").b().append(value).b().nc().toString());
                 } else {
-                    respondableEvent.sendMessageResponse(new IrcStringBuilder().fc(10).append(key).nc().append(" not found").toString());
+                    respond(respondableEvent, new IrcStringBuilder().fc(10).append(key).nc().append(" not found").toString());
                 }
                 return;
             }
@@ -171,7 +198,8 @@ public final class Administration extends EventHandler {
                 }
                 prefNode.remove(key);
                 prefNode.flush();
-                respondableEvent.sendMessageResponse(new IrcStringBuilder().fc(10).append(key).nc().append(" removed").toString());
+                jbossBot.refreshConfig();
+                respond(respondableEvent, new IrcStringBuilder().fc(10).append(key).nc().append(" removed").toString());
                 return;
             }
             final Matcher setMatcher = SET.matcher(trimmed);
@@ -185,7 +213,8 @@ public final class Administration extends EventHandler {
                 }
                 prefNode.put(key, value);
                 prefNode.flush();
-                respondableEvent.sendMessageResponse(new IrcStringBuilder().fc(10).append(key).nc().append(" set to ").b().append(prefNode.get(key, "")).b().nc().toString());
+                jbossBot.refreshConfig();
+                respond(respondableEvent, new IrcStringBuilder().fc(10).append(key).nc().append(" set to ").b().append(prefNode.get(key, "")).b().nc().toString());
                 return;
             }
             final Matcher reconnectMatcher = RECONNECT.matcher(trimmed);
@@ -193,6 +222,99 @@ public final class Administration extends EventHandler {
                 event.getBot().quit("I was told to reconnect");
                 return;
             }
+            final Matcher lookupsMatcher = LOOKUPS.matcher(trimmed);
+            if (lookupsMatcher.matches()) {
+                final LookupExecutor executor = jbossBot.getLookupExecutor();
+                final List<String> lines = new ArrayList<String>(2);
+                final IrcStringBuilder b = new IrcStringBuilder();
+                b.b().append("lookups").b().nc().append(' ').fc(10).append(executor.getPendingCount()).nc().append(" pending");
+                for (Map.Entry<String, Integer> entry : executor.getQueueDepths().entrySet()) {
+                    b.append(", ").append(entry.getKey()).append('=').append(entry.getValue());
+                }
+                lines.add(b.toString());
+                final Map<String, Long> rejections = executor.getRejectionCounts();
+                if (! rejections.isEmpty()) {
+                    b.clear();
+                    b.b().append("rejected").b().nc();
+                    for (Map.Entry<String, Long> entry : rejections.entrySet()) {
+                        b.append(' ').append(entry.getKey()).append('=').fc(4).append(entry.getValue()).nc();
+                    }
+                    lines.add(b.toString());
+                }
+                respond(respondableEvent, lines);
+                return;
+            }
+            final Matcher statsMatcher = STATS.matcher(trimmed);
+            if (statsMatcher.matches()) {
+                final String prefix = statsMatcher.group(1);
+                final MetricsWriter writer = new MetricsWriter();
+                jbossBot.getMetrics().writeMetrics(writer);
+                final List<String> lines = new ArrayList<String>();
+                for (String line : writer.toString().split("\n")) {
+                    if (line.startsWith(prefix) && ! line.contains("_bucket{")) {
+                        if (lines.size() == MAX_STATS_LINES) {
+                            lines.add("...");
+                            break;
+                        }
+                        final int sp = line.lastIndexOf(' ');
+                        final IrcStringBuilder b = new IrcStringBuilder();
+                        b.fc(10).append(line.substring(0, sp)).nc().append(' ').b().append(line.substring(sp + 1)).b();
+                        lines.add(b.toString());
+                    }
+                }
+                if (lines.isEmpty()) {
+                    lines.add(new IrcStringBuilder().fc(10).append(prefix).nc().append(" not found").toString());
+                }
+                respond(respondableEvent, lines);
+                return;
+            }
         }
     }
+
+    private void respond(final MessageRespondableEvent event, final String message) {
+        respond(event, Collections.singletonList(message));
+    }
+
+    /**
+     * Send replies from a lookup thread, in order, so that waiting for turns to send them does not hold up dispatch.
+     *
+     * @param event the event being responded to
+     * @param messages the replies
+     */
+    private void respond(final MessageRespondableEvent event, final List<String> messages) {
+        jbossBot.getLookupExecutor().execute(event, new Runnable() {
+            public void run() {
+                try {
+                    for (String message : messages) {
+                        jbossBot.getOutboundScheduler().respond(event, message);
+                    }
+                } catch (IOException e) {
+                    log.debugf(e, "Failed to send reply");
+                }
+            }
+        });
+    }
+
+    /**
+     * Send a message or action on the administration lane from a lookup thread.
+     *
+     * @param targets the targets
+     * @param message the message
+     * @param action {@code true} to send an action
+     */
+    private void send(final Collection<String> targets, final String message, final boolean action) {
+        jbossBot.getLookupExecutor().execute(LookupExecutor.laneName(targets), new Runnable() {
+            public void run() {
+                try {
+                    if (action) {
+                        jbossBot.getOutboundScheduler().sendAction(OutboundScheduler.Lane.ADMIN, targets, message);
+                    } else {
+                        jbossBot.getOutboundScheduler().sendMessage(OutboundScheduler.Lane.ADMIN, targets, message);
+                    }
+                } catch (IOException e) {
+                    log.debugf(e, "Failed to send to %s", targets);
+                }
+            }
+        });
+    }
 }
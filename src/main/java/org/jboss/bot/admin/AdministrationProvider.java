@@ -35,8 +35,8 @@ import org.mangosdk.spi.ProviderFor;
 public final class AdministrationProvider implements JBossBotServiceProvider {
 
     public void register(final JBossBot bot, final JBossBotServlet servlet) {
-        final Administration administration = new Administration();
-        bot.getThimBot().addEventHandler(administration);
+        final Administration administration = new Administration(bot);
+        bot.addEventHandler("admin", administration);
         final String admins = bot.getPrefNode().get("admins", "*!*@redhat/jboss/dmlloyd");
         if (admins != null && ! admins.isEmpty()) {
             final String[] adminArray = admins.split(", *");
@@ -23,23 +23,15 @@
 package org.jboss.bot.bugzilla;
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URI;
 import java.net.URL;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
-import com.flurg.thimbot.Priority;
 import com.flurg.thimbot.event.ChannelActionEvent;
 import com.flurg.thimbot.event.ChannelEvent;
 import com.flurg.thimbot.event.ChannelMessageEvent;
@@ -55,8 +47,13 @@ import com.flurg.thimbot.event.PrivateActionEvent;
 import com.flurg.thimbot.event.PrivateMessageEvent;
 import com.flurg.thimbot.event.TextEvent;
 import com.flurg.thimbot.util.IRCStringBuilder;
+import org.jboss.bot.DuplicateSuppressor;
+import org.jboss.bot.HttpClient;
 import org.jboss.bot.JBossBot;
 import org.jboss.bot.JBossBotUtils;
+import org.jboss.bot.LookupExecutor;
+import org.jboss.bot.OutboundScheduler;
+import org.jboss.bot.ReferenceScanner;
 import org.jboss.bot.url.AbstractURLEvent;
 import org.jboss.logging.Logger;
 
@@ -70,12 +67,13 @@ public final class BugzillaMessageHandler extends EventHandler {
 
     private static final Logger log = Logger.getLogger("org.jboss.bot.bugzilla");
 
+    private final JBossBot bot;
     private final long dupeTime;
 
-    private final ConcurrentMap<String, Map<Key, Event>> events = new ConcurrentHashMap<String, Map<Key, Event>>();
     private final HandlerKey<RecursionState> handlerKey = new HandlerKey<RecursionState>();
 
     public BugzillaMessageHandler(JBossBot bot) {
+        this.bot = bot;
         dupeTime = bot.getPrefNode().getLong("bugzilla.cache.duplicate.ms", 10000);
     }
 
@@ -105,8 +103,6 @@ public final class BugzillaMessageHandler extends EventHandler {
         }
     }
 
-    private static final Pattern BZ_PATTERN = Pattern.compile("(?:[Bb][Zz]\\s*#)(\\d+)");
-
     public void handleEvent(final EventHandlerContext context, final ChannelMessageEvent event) throws Exception {
         doHandle(context, (TextEvent) event);
         super.handleEvent(context, event);
@@ -138,10 +134,8 @@ public final class BugzillaMessageHandler extends EventHandler {
     }
 
     private boolean doHandle(final EventHandlerContext context, final TextEvent event) throws IOException {
-        Matcher matcher = BZ_PATTERN.matcher(event.getText());
-        while (matcher.find()) {
+        for (String bugId : ReferenceScanner.scan(context, event.getText()).getBugzillaIds()) {
             String baseUrl = "https://bugzilla.redhat.com";
-            String bugId = matcher.group(1);
             try {
                 processEvent(context, (Event) event, new Key(baseUrl, Long.parseLong(bugId)));
             } catch (NumberFormatException ignored) {}
@@ -179,54 +173,33 @@ public final class BugzillaMessageHandler extends EventHandler {
         final ArrayList<String> writeTargets = new ArrayList<>();
         if (state.add(key)) {
             // new item
-            final ConcurrentMap<String, Map<Key, Event>> events = this.events;
+            final DuplicateSuppressor suppressor = bot.getDuplicateSuppressor();
             if (event instanceof MultiTargetEvent) {
                 for (String target : ((MultiTargetEvent) event).getTargets()) {
-                    if (checkApply(event, key, events, target)) writeTargets.add(target);
+                    if (suppressor.check(target, key, dupeTime)) writeTargets.add(target);
                 }
             } else if (event instanceof ChannelEvent) {
                 String target = ((ChannelEvent) event).getChannel();
-                if (checkApply(event, key, events, target)) writeTargets.add(target);
+                if (suppressor.check(target, key, dupeTime)) writeTargets.add(target);
             } else if (event instanceof FromUserEvent) {
                 String target = ((FromUserEvent) event).getFromNick();
-                if (checkApply(event, key, events, target)) writeTargets.add(target);
+                if (suppressor.check(target, key, dupeTime)) writeTargets.add(target);
             }
         }
         if (! writeTargets.isEmpty()) {
-            String message = getMessage(key);
-            if (message != null) {
-                event.getBot().sendMessage(Priority.NORMAL, writeTargets, message);
-            }
-        }
-    }
-
-    private boolean checkApply(final Event event, final Key key, final ConcurrentMap<String, Map<Key, Event>> events, final String target) {
-        Map<Key, Event> subMap = events.get(target);
-        if (subMap == null) {
-            Map<Key, Event> appearing = events.putIfAbsent(target, subMap = new LinkedHashMap<Key, Event>() {
-                protected boolean removeEldestEntry(final Map.Entry<Key, Event> eldest) {
-                    return eldest.getValue().getClockTime() < System.currentTimeMillis() - dupeTime;
+            bot.getLookupExecutor().execute(LookupExecutor.laneName(writeTargets), new Runnable() {
+                public void run() {
+                    String message = getMessage(key);
+                    if (message != null) try {
+                        bot.getOutboundScheduler().sendMessage(OutboundScheduler.Lane.INTERACTIVE, writeTargets, message);
+                    } catch (IOException e) {
+                        log.debugf(e, "Failed to send bug %s", Long.valueOf(key.getId()));
+                    }
                 }
             });
-            if (appearing != null) subMap = appearing;
         }
-        synchronized (subMap) {
-            Event test = subMap.get(key);
-            if (test != null) {
-                if (test.getClockTime() < System.currentTimeMillis() - dupeTime) {
-                    subMap.put(key, event);
-                    return true;
-                }
-            } else {
-                subMap.put(key, event);
-                return true;
-            }
-        }
-        return false;
     }
 
-    private static final byte[] junk = new byte[8192];
-
     private String getMessage(final Key key) {
         BzEntry entry = lookup(key);
         if (entry == null) return null;
@@ -265,9 +238,8 @@ public final class BugzillaMessageHandler extends EventHandler {
         try {
             final String urlString = key.getServer() + "/show_bug.cgi?id=" + key.getId();
             final URL url = new URL(urlString + "&ctype=xml");
-            final HttpURLConnection conn = (HttpURLConnection) JBossBotUtils.connectTo(url);
-            try {
-                final int code = conn.getResponseCode();
+            try (HttpClient.Response response = bot.getHttpClient().get(url)) {
+                final int code = response.getStatus();
                 if (code != 200) {
                     if (code == 301 || code == 302 || code == 303) {
                         return null;
@@ -276,22 +248,12 @@ public final class BugzillaMessageHandler extends EventHandler {
                     log.debugf("URL %s returned status %d", url, Integer.valueOf(code));
                     return null;
                 }
-                final InputStream is = conn.getInputStream();
+                XMLStreamReader reader = XMLInputFactory.newInstance().createXMLStreamReader(response.getBody());
                 try {
-                    XMLStreamReader reader = XMLInputFactory.newInstance().createXMLStreamReader(is);
-                    try {
-                        return parseDocument(reader, urlString);
-                    } finally {
-                        reader.close();
-                    }
+                    return parseDocument(reader, urlString);
                 } finally {
-                    try {
-                        while (is.read(junk) > -1);
-                    } catch (IOException ignored) {}
-                    is.close();
+                    reader.close();
                 }
-            } finally {
-//                conn.disconnect();
             }
         } catch (MalformedURLException e) {
             e.printStackTrace();
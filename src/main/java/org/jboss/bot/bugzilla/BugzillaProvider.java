@@ -34,7 +34,7 @@ import org.mangosdk.spi.ProviderFor;
 public final class BugzillaProvider implements JBossBotServiceProvider {
 
     public void register(final JBossBot bot, final JBossBotServlet servlet) {
-        bot.getThimBot().addEventHandler(new BugzillaMessageHandler(bot));
+        bot.addEventHandler("bugzilla", new BugzillaMessageHandler(bot));
     }
 
     public int getPriority() {
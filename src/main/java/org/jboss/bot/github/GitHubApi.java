@@ -0,0 +1,292 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2014, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.bot.github;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.zwitserloot.json.JSON;
+import org.jboss.bot.Config;
+import org.jboss.bot.HttpClient;
+import org.jboss.bot.JBossBot;
+import org.jboss.bot.LimitedInputStream;
+import org.jboss.bot.metrics.MetricsSource;
+import org.jboss.bot.metrics.MetricsWriter;
+import org.jboss.logging.Logger;
+
+/**
+ * Reads from the GitHub API.  Responses are remembered with their validators and asked for again conditionally, so
+ * one which has not changed comes back as a 304, which does not count against the rate limit.  A token, if one is
+ * configured, raises the limit above the anonymous one.  The quota left is recorded from every response; once it
+ * has run out, remembered responses are used as they are until it resets.  GraphQL queries, which need the token,
+ * have a quota of their own and are not remembered.
+ */
+final class GitHubApi implements MetricsSource {
+
+    private static final Logger log = Logger.getLogger("org.jboss.bot.github");
+
+    private static final String GRAPHQL_URL = "https://api.github.com/graphql";
+
+    private final JBossBot bot;
+    private final Map<String, Stored> entries;
+    private final AtomicLong fetched = new AtomicLong();
+    private final AtomicLong notModified = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong limited = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong queried = new AtomicLong();
+    private final AtomicLong queryFailed = new AtomicLong();
+    private final AtomicLong queryLimited = new AtomicLong();
+    private final Quota core = new Quota("core");
+    private final Quota graphql = new Quota("graphql");
+
+    GitHubApi(final JBossBot bot) {
+        this.bot = bot;
+        final int maxSize = bot.getConfig().node("github/api").getInt("max-size", 1024);
+        entries = new LinkedHashMap<String, Stored>(64, 0.75f, true) {
+            protected boolean removeEldestEntry(final Map.Entry<String, Stored> eldest) {
+                if (size() > maxSize) {
+                    evictions.incrementAndGet();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Get a resource.
+     *
+     * @param urlString the API URL
+     * @return the resource, or {@code null} if the API did not return it
+     * @throws IOException if the request failed
+     */
+    JSON get(final String urlString) throws IOException {
+        final Stored stored;
+        synchronized (entries) {
+            stored = entries.get(urlString);
+        }
+        if (core.exhausted()) {
+            limited.incrementAndGet();
+            log.debugf("Rate limit exhausted, not fetching %s", urlString);
+            return stored == null ? null : JSON.parse(stored.body);
+        }
+        final Config githubNode = bot.getConfig().node("github");
+        final HttpClient client = bot.getHttpClient();
+        final HttpURLConnection conn = client.open(new URL(urlString));
+        conn.setRequestProperty("Accept", "application/vnd.github.v3+json");
+        final String token = githubNode.get("token", "");
+        if (! token.isEmpty()) {
+            conn.setRequestProperty("Authorization", "token " + token);
+        }
+        if (stored != null) {
+            if (stored.etag != null) {
+                conn.setRequestProperty("If-None-Match", stored.etag);
+            }
+            if (stored.lastModified != null) {
+                conn.setRequestProperty("If-Modified-Since", stored.lastModified);
+            }
+        }
+        try (HttpClient.Response response = client.execute(conn, null)) {
+            core.record(response);
+            final int code = response.getStatus();
+            if (code == 304 && stored != null) {
+                notModified.incrementAndGet();
+                return JSON.parse(stored.body);
+            }
+            if (code != 200) {
+                log.debugf("URL %s returned status %d", urlString, Integer.valueOf(code));
+                if ((code == 403 || code == 429) && core.exhausted()) {
+                    limited.incrementAndGet();
+                    return stored == null ? null : JSON.parse(stored.body);
+                }
+                failed.incrementAndGet();
+                return null;
+            }
+            final String body = readBody(response);
+            fetched.incrementAndGet();
+            final String etag = response.getHeader("ETag");
+            final String lastModified = response.getHeader("Last-Modified");
+            if (etag != null || lastModified != null) {
+                synchronized (entries) {
+                    entries.put(urlString, new Stored(etag, lastModified, body));
+                }
+            }
+            return JSON.parse(body);
+        }
+    }
+
+    /**
+     * Run a GraphQL query.  The result may hold errors for some of the fields asked for and data for the rest.
+     *
+     * @param request the query and the values of its variables
+     * @return the result, or {@code null} if there is no token or the API did not answer the query
+     * @throws IOException if the request failed
+     */
+    JSON query(final JSON request) throws IOException {
+        final String token = bot.getConfig().node("github").get("token", "");
+        if (token.isEmpty()) {
+            return null;
+        }
+        if (graphql.exhausted()) {
+            queryLimited.incrementAndGet();
+            log.debug("GraphQL rate limit exhausted, not querying");
+            return null;
+        }
+        final HttpClient client = bot.getHttpClient();
+        final HttpURLConnection conn = client.open(new URL(GRAPHQL_URL));
+        conn.setRequestMethod("POST");
+        conn.setRequestProperty("Content-Type", "application/json");
+        conn.setRequestProperty("Authorization", "bearer " + token);
+        try (HttpClient.Response response = client.execute(conn, request.toJSON().getBytes(StandardCharsets.UTF_8))) {
+            graphql.record(response);
+            final int code = response.getStatus();
+            if (code != 200) {
+                log.debugf("GraphQL query returned status %d", Integer.valueOf(code));
+                if ((code == 403 || code == 429) && graphql.exhausted()) {
+                    queryLimited.incrementAndGet();
+                } else {
+                    queryFailed.incrementAndGet();
+                }
+                return null;
+            }
+            final JSON result = JSON.parse(readBody(response));
+            final JSON errors = result.get("errors");
+            if (errors.exists() && ! errors.isNull()) {
+                log.debugf("GraphQL query returned errors: %s", errors.toJSON());
+            }
+            queried.incrementAndGet();
+            return result;
+        }
+    }
+
+    private String readBody(final HttpClient.Response response) throws IOException {
+        final StringBuilder b = new StringBuilder();
+        final long maxBytes = bot.getConfig().node("github/api").getLong("max-response-bytes", 1L << 20);
+        try (InputStreamReader reader = new InputStreamReader(new LimitedInputStream(response.getBody(), maxBytes), StandardCharsets.UTF_8)) {
+            final char[] chars = new char[4096];
+            int res;
+            while ((res = reader.read(chars)) != -1) {
+                b.append(chars, 0, res);
+            }
+        }
+        return b.toString();
+    }
+
+    private static long header(final HttpClient.Response response, final String name) {
+        final String value = response.getHeader(name);
+        if (value != null) try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException ignored) {
+        }
+        return -1L;
+    }
+
+    public void writeMetrics(final MetricsWriter writer) {
+        final int size;
+        synchronized (entries) {
+            size = entries.size();
+        }
+        writer.family("jbossbot_github_api_requests_total", "counter", "GitHub API reads by outcome.");
+        writer.sample("jbossbot_github_api_requests_total", fetched.get(), "result", "fetched");
+        writer.sample("jbossbot_github_api_requests_total", notModified.get(), "result", "not_modified");
+        writer.sample("jbossbot_github_api_requests_total", limited.get(), "result", "rate_limited");
+        writer.sample("jbossbot_github_api_requests_total", failed.get(), "result", "failed");
+        writer.family("jbossbot_github_api_cached", "gauge", "GitHub API responses remembered for revalidation.");
+        writer.sample("jbossbot_github_api_cached", size);
+        writer.family("jbossbot_github_api_evictions_total", "counter", "Remembered GitHub API responses evicted to make room.");
+        writer.sample("jbossbot_github_api_evictions_total", evictions.get());
+        writer.family("jbossbot_github_graphql_requests_total", "counter", "GitHub GraphQL queries by outcome.");
+        writer.sample("jbossbot_github_graphql_requests_total", queried.get(), "result", "answered");
+        writer.sample("jbossbot_github_graphql_requests_total", queryLimited.get(), "result", "rate_limited");
+        writer.sample("jbossbot_github_graphql_requests_total", queryFailed.get(), "result", "failed");
+        writer.family("jbossbot_github_ratelimit_limit", "gauge", "GitHub API requests allowed per rate limit window.");
+        core.sample(writer, "jbossbot_github_ratelimit_limit", core.limit);
+        graphql.sample(writer, "jbossbot_github_ratelimit_limit", graphql.limit);
+        writer.family("jbossbot_github_ratelimit_remaining", "gauge", "GitHub API requests left in the current window.");
+        core.sample(writer, "jbossbot_github_ratelimit_remaining", core.remaining);
+        graphql.sample(writer, "jbossbot_github_ratelimit_remaining", graphql.remaining);
+        writer.family("jbossbot_github_ratelimit_reset_timestamp_seconds", "gauge", "When the current GitHub rate limit window ends, in seconds since the epoch.");
+        core.sample(writer, "jbossbot_github_ratelimit_reset_timestamp_seconds", core.reset);
+        graphql.sample(writer, "jbossbot_github_ratelimit_reset_timestamp_seconds", graphql.reset);
+    }
+
+    /**
+     * The quota left for one kind of request.
+     */
+    static final class Quota {
+        private final String resource;
+        private volatile long limit = -1L;
+        private volatile long remaining = -1L;
+        private volatile long reset = -1L;
+
+        Quota(final String resource) {
+            this.resource = resource;
+        }
+
+        boolean exhausted() {
+            return remaining == 0L && TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis()) < reset;
+        }
+
+        void record(final HttpClient.Response response) {
+            final long newLimit = header(response, "X-RateLimit-Limit");
+            final long newRemaining = header(response, "X-RateLimit-Remaining");
+            final long newReset = header(response, "X-RateLimit-Reset");
+            if (newLimit == -1L || newRemaining == -1L || newReset == -1L) {
+                return;
+            }
+            if (newRemaining == 0L && remaining != 0L) {
+                log.warnf("GitHub %s rate limit of %d exhausted until %tT", resource, Long.valueOf(newLimit), Long.valueOf(TimeUnit.SECONDS.toMillis(newReset)));
+            }
+            limit = newLimit;
+            reset = newReset;
+            remaining = newRemaining;
+        }
+
+        void sample(final MetricsWriter writer, final String name, final long value) {
+            // nothing is known until the first response
+            if (reset != -1L) {
+                writer.sample(name, value, "resource", resource);
+            }
+        }
+    }
+
+    static final class Stored {
+        final String etag;
+        final String lastModified;
+        final String body;
+
+        Stored(final String etag, final String lastModified, final String body) {
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.body = body;
+        }
+    }
+}
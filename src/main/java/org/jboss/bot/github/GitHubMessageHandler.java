@@ -22,47 +22,45 @@
 
 package org.jboss.bot.github;
 
-import com.flurg.thimbot.Priority;
+import com.flurg.thimbot.event.ChannelActionEvent;
+import com.flurg.thimbot.event.ChannelMessageEvent;
 import com.flurg.thimbot.event.Event;
 import com.flurg.thimbot.event.EventHandler;
 import com.flurg.thimbot.event.EventHandlerContext;
 import com.flurg.thimbot.event.HandlerKey;
 import com.flurg.thimbot.event.MessageRespondableEvent;
+import com.flurg.thimbot.event.PrivateActionEvent;
+import com.flurg.thimbot.event.PrivateMessageEvent;
+import com.flurg.thimbot.event.TextEvent;
 import com.flurg.thimbot.util.IRCStringBuilder;
 import com.flurg.thimbot.util.IRCStringUtil;
 import com.zwitserloot.json.JSON;
-import java.io.BufferedInputStream;
 import java.io.BufferedReader;
-import java.io.IOError;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.OutputStream;
-import java.net.HttpURLConnection;
-import java.net.MalformedURLException;
 import java.net.URI;
-import java.net.URL;
-import java.net.URLConnection;
-import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.Iterator;
-import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
+import java.util.prefs.Preferences;
 import java.util.regex.Pattern;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import org.jboss.bot.Config;
 import org.jboss.bot.IrcStringBuilder;
 import org.jboss.bot.JBossBot;
-import org.jboss.bot.JBossBotUtils;
+import org.jboss.bot.JSONExtractor;
 import org.jboss.bot.JSONServletUtil;
+import org.jboss.bot.LookupExecutor;
+import org.jboss.bot.OutboundScheduler;
+import org.jboss.bot.ReferenceScanner;
+import org.jboss.bot.References;
 import org.jboss.bot.http.HttpRequestEvent;
 import org.jboss.bot.url.AbstractURLEvent;
 import org.jboss.logging.Logger;
@@ -82,45 +80,6 @@ public final class GitHubMessageHandler extends EventHandler {
         }
     };
 
-    private static final ConcurrentMap<String, String> urlMap = new ConcurrentHashMap<>();
-
-    private static final URL gitIo;
-
-    static {
-        try {
-            gitIo = new URL("https://git.io");
-        } catch (MalformedURLException e) {
-            throw new IOError(e);
-        }
-    }
-
-    private static String shorten(String url) {
-        final String newUrl = urlMap.get(url);
-        if (newUrl != null) {
-            return newUrl;
-        }
-        try {
-            final HttpURLConnection connection = (HttpURLConnection) gitIo.openConnection();
-            byte[] body = ("url=" + url).getBytes(StandardCharsets.UTF_8);
-            connection.setFixedLengthStreamingMode(body.length);
-            connection.setRequestMethod("POST");
-            connection.setDoInput(false);
-            connection.setDoOutput(true);
-            connection.connect();
-            try (OutputStream os = connection.getOutputStream()) { os.write(body); }
-            if (connection.getResponseCode() == 201) {
-                final String location = connection.getHeaderField("Location");
-                if (location != null) {
-                    urlMap.putIfAbsent(url, location);
-                    return location;
-                }
-            }
-            return url;
-        } catch (IOException e) {
-            return url;
-        }
-    }
-
     static final class Key {
         private final String org;
         private final String repos;
@@ -167,13 +126,146 @@ public final class GitHubMessageHandler extends EventHandler {
         }
     }
 
+    private final IssueCache issueCache;
+    private final GitHubApi api;
+    private final UserNames userNames;
+    private final UrlShortener shortener;
+
     public GitHubMessageHandler(JBossBot bot) {
         this.bot = bot;
+        issueCache = new IssueCache(bot.getConfig().node("github/cache"));
+        bot.getMetrics().addSource(issueCache);
+        api = new GitHubApi(bot);
+        bot.getMetrics().addSource(api);
+        userNames = new UserNames(bot, api);
+        bot.getMetrics().addSource(userNames);
+        // kept outside the configuration tree, which is snapshotted on every change
+        shortener = new UrlShortener(bot, Preferences.userRoot().node("jbossbot-state/github/shortened"));
+        bot.getMetrics().addSource(shortener);
     }
 
+    /**
+     * The parts of webhook payloads which are used.
+     */
+    private static final JSONExtractor PAYLOAD = new JSONExtractor(Arrays.asList(
+        "action",
+        "number",
+        "ref",
+        "before",
+        "after",
+        "repository.name",
+        "repository.owner.name",
+        "repository.owner.login",
+        "commits[].id",
+        "commits[].message",
+        "commits[].author.name",
+        "commits[].author.username",
+        "label.name",
+        "pull_request.number",
+        "pull_request.state",
+        "pull_request.title",
+        "pull_request.html_url",
+        "pull_request.user.login",
+        "pull_request.user.name",
+        "pull_request.base.repo.name",
+        "pull_request.base.repo.owner.login",
+        "issue.number",
+        "issue.state",
+        "issue.title",
+        "issue.html_url",
+        "issue.user.login",
+        "issue.user.name",
+        "comment.user.login",
+        "comment.user.name",
+        "sender.login",
+        "sender.name"
+    ));
+
     private static final Pattern GH_AUTHORITY = Pattern.compile("(?:www\\.)?github\\.com");
     private static final Pattern GI_AUTHORITY = Pattern.compile("(?:www\\.)?gh\\.io");
 
+    public void handleEvent(final EventHandlerContext context, final ChannelMessageEvent event) throws Exception {
+        doHandle(context, event);
+        super.handleEvent(context, event);
+    }
+
+    public void handleEvent(final EventHandlerContext context, final ChannelActionEvent event) throws Exception {
+        doHandle(context, event);
+        super.handleEvent(context, event);
+    }
+
+    public void handleEvent(final EventHandlerContext context, final PrivateMessageEvent event) throws Exception {
+        doHandle(context, event);
+        super.handleEvent(context, event);
+    }
+
+    public void handleEvent(final EventHandlerContext context, final PrivateActionEvent event) throws Exception {
+        doHandle(context, event);
+        super.handleEvent(context, event);
+    }
+
+    /**
+     * Look up the {@code owner/repo#N} references in an inbound line.  The REST API's issue lookup answers for pull
+     * requests too, so each is looked up as an issue.  With GraphQL, any links of the line not yet seen go in the
+     * same query.
+     */
+    private <E extends TextEvent & MessageRespondableEvent> void doHandle(final EventHandlerContext context, final E event) {
+        final References references = ReferenceScanner.scan(context, event.getText());
+        if (references.getGitHubRefs().isEmpty()) {
+            return;
+        }
+        RecursionState state = context.getContextValue(handlerKey);
+        if (state == null) context.putContextValue(handlerKey, state = new RecursionState());
+        final List<Key> keys = new ArrayList<Key>();
+        final LookupExecutor executor = bot.getLookupExecutor();
+        if (bot.getConfig().node("github/graphql").getBoolean("enabled", false)) {
+            addRefs(state, references, keys);
+            if (! keys.isEmpty()) {
+                executor.execute(event, new Runnable() {
+                    public void run() {
+                        resolve(event, keys);
+                    }
+                });
+            }
+            return;
+        }
+        for (References.GitHubRef ref : references.getGitHubRefs()) {
+            final Key key = new Key(ref.getOwner(), ref.getRepos(), ref.getNumber(), "issue");
+            if (state.add(key)) {
+                executor.execute(event, new Runnable() {
+                    public void run() {
+                        lookup(event, key);
+                    }
+                });
+            }
+        }
+    }
+
+    /**
+     * Add the keys of the links and {@code owner/repo#N} references of a line which have not been seen yet.
+     *
+     * @param state the keys seen
+     * @param references the references of the line
+     * @param keys the list to add to
+     */
+    private static void addRefs(final RecursionState state, final References references, final List<Key> keys) {
+        for (URI uri : references.getUrls()) {
+            final String authority = uri.getAuthority();
+            if (authority != null && GH_AUTHORITY.matcher(authority).matches()) {
+                final Key key = refKey(uri);
+                if (key != null && state.add(key)) {
+                    keys.add(key);
+                }
+            }
+        }
+        for (References.GitHubRef ref : references.getGitHubRefs()) {
+            final Key key = new Key(ref.getOwner(), ref.getRepos(), ref.getNumber(), "issue");
+            if (state.add(key)) {
+                keys.add(key);
+            }
+        }
+    }
+
     public void handleEvent(final EventHandlerContext context, final Event event) throws Exception {
         if (event instanceof HttpRequestEvent) {
             final HttpServletRequest req = ((HttpRequestEvent) event).getRequest();
@@ -184,15 +276,18 @@ public final class GitHubMessageHandler extends EventHandler {
             final String gitHubEvent = req.getHeader("X-github-event");
             if (gitHubEvent != null) {
                 final HttpServletResponse resp = ((HttpRequestEvent) event).getResponse();
-                final JSONServletUtil.JSONRequest jsonRequest = JSONServletUtil.readJSONPost(req, resp);
-                final JSON json = jsonRequest.getBody();
-                final Map<String, String> queryParams = jsonRequest.getQuery();
+                final Map<String, String> queryParams = JSONServletUtil.readQuery(req);
                 boolean simpleSingle = true;
                 int limit = 7;
                 final String limitStr = queryParams.get("limit");
                 if (limitStr != null && ! limitStr.isEmpty()) {
                     limit = Integer.parseInt(limitStr);
                 }
+                final JSONServletUtil.JSONRequest jsonRequest = JSONServletUtil.readJSONPost(req, resp, PAYLOAD, Collections.singletonMap("commits", Integer.valueOf(limit == -1 ? Integer.MAX_VALUE : limit)));
+                if (jsonRequest == null) {
+                    return;
+                }
+                final JSON json = jsonRequest.getBody();
                 final IrcStringBuilder b = new IrcStringBuilder();
                 final JSON reposNameNode = json.get("repository").get("name");
                 if (! reposNameNode.exists()) {
@@ -205,27 +300,14 @@ public final class GitHubMessageHandler extends EventHandler {
                 if (reposName == null || owner == null) {
                     return;
                 }
-                final boolean learn = bot.getPrefNode().node("github").getBoolean("learn", false);
-                final Set<String> channels;
-                final String unsplitChannels = bot.getPrefNode().node("github/projects").node(owner).node(reposName).get("channels", "");
-                if (unsplitChannels == null || unsplitChannels.isEmpty()) {
-                    channels = new HashSet<>(0);
-                } else {
-                    final String[] chArray = unsplitChannels.split("\\s*,\\s*");
-                    if (chArray.length == 0) {
-                        channels = new HashSet<>(0);
-                    } else {
-                        channels = new HashSet<>(Arrays.asList(chArray));
-                    }
-                }
+                updateCache(gitHubEvent, json);
+                prefillNames(json);
+                final Config githubNode = bot.getConfig().node("github");
+                final boolean learn = githubNode.getBoolean("learn", false);
+                final Config ownerConfig = githubNode.node("projects").node(owner);
+                final Set<String> channels = new HashSet<>(ownerConfig.node(reposName).getSet("channels"));
                 if (channels.isEmpty()) {
-                    final String wcUnsplitChannels = bot.getPrefNode().node("github/projects").node(owner).node("*").get("channels", "");
-                    if (wcUnsplitChannels != null && ! wcUnsplitChannels.isEmpty()) {
-                        final String[] chArray = wcUnsplitChannels.split("\\s*,\\s*");
-                        if (chArray.length > 0) {
-                            channels.addAll(Arrays.asList(chArray));
-                        }
-                    }
+                    channels.addAll(ownerConfig.node("*").getSet("channels"));
                 }
                 if (learn) {
                     final String pathInfo = req.getPathInfo();
@@ -254,9 +336,25 @@ public final class GitHubMessageHandler extends EventHandler {
                         final String ref = json.get("ref").asString();
                         final int refIdx = ref.lastIndexOf('/');
                         final String branch = refIdx == -1 ? ref : ref.substring(refIdx + 1);
-                        final List<JSON> commitsList = json.get("commits").asList();
-                        final List<JSON> commits = limit == -1 || limit > commitsList.size() ? commitsList : commitsList.subList(0, limit);
+                        // only the commits to be shown were kept
+                        final List<JSON> commits = json.get("commits").asList();
+                        final int commitCount = Math.max(jsonRequest.getSize("commits"), commits.size());
                         RecursionState state = context.getContextValue(handlerKey);
+                        final String before = json.get("before").asString();
+                        final String after = json.get("after").asString();
+                        final String pushUrl;
+                        if (commits.size() == 1 && simpleSingle) {
+                            pushUrl = String.format("http://github.com/%s/%s/commit/%s", owner, reposName, after.substring(0, 9));
+                        } else {
+                            pushUrl = String.format("http://github.com/%s/%s/compare/%s...%s", owner, reposName, before.substring(0, 7), after.substring(0, 7));
+                        }
+                        // shorten everything up front rather than one round trip per line
+                        final List<String> urls = new ArrayList<String>();
+                        for (JSON commit : commits) {
+                            urls.add(String.format("http://github.com/%s/%s/commit/%s", owner, reposName, commit.get("id").asString().substring(0, 9)));
+                        }
+                        urls.add(pushUrl);
+                        final Map<String, String> shortUrls = shortener.shortenAll(urls);
                         for (JSON commit : commits) {
                             b.clear();
                             b.b().append("git").b().nc().append(' ');
@@ -274,11 +372,11 @@ public final class GitHubMessageHandler extends EventHandler {
                             b.fc(11).append(' ');
                             final String hash = commitId.substring(0, 9);
                             state.add(new Key(owner, reposName, hash, "commit"));
-                            b.append(shorten(String.format("http://github.com/%s/%s/commit/%s", owner, reposName, hash)));
-                            bot.getThimBot().sendMessage(Priority.NORMAL, channels, b.toString());
+                            b.append(shortUrls.get(String.format("http://github.com/%s/%s/commit/%s", owner, reposName, hash)));
+                            bot.getOutboundScheduler().sendMessage(OutboundScheduler.Lane.NOTIFICATION, channels, b.toString());
                         }
-                        if (commitsList.size() > commits.size()) {
-                            final int diff = commitsList.size() - commits.size();
+                        if (commitCount > commits.size()) {
+                            final int diff = commitCount - commits.size();
                             b.clear();
                             b.b().append("git").b().nc().append(' ');
                             b.append('[').fc(12).append(reposName).nc().append("]");
@@ -288,23 +386,18 @@ public final class GitHubMessageHandler extends EventHandler {
                                 b.append('s');
                             }
                             b.append(" not shown)");
-                            bot.getThimBot().sendMessage(Priority.NORMAL, channels, b.toString());
+                            bot.getOutboundScheduler().sendMessage(OutboundScheduler.Lane.NOTIFICATION, channels, b.toString());
                         }
-                        final String before = json.get("before").asString();
-                        final String after = json.get("after").asString();
                         b.clear();
                         b.b().append("git").b().nc().append(' ');
                         b.append('[').fc(12).append(reposName).nc().append("]");
                         b.append(' ').b().append("push ").b().nc().fc(10).append(branch).nc();
                         b.append(' ').b().append("URL: ").nc();
                         if (commits.size() == 1 && simpleSingle) {
-                            final String hash = after.substring(0, 9);
-                            state.add(new Key(owner, reposName, hash, "commit"));
-                            b.append(shorten(String.format("http://github.com/%s/%s/commit/%s", owner, reposName, hash)));
-                        } else {
-                            b.append(shorten(String.format("http://github.com/%s/%s/compare/%s...%s", owner, reposName, before.substring(0, 7), after.substring(0, 7))));
+                            state.add(new Key(owner, reposName, after.substring(0, 9), "commit"));
                         }
-                        bot.getThimBot().sendMessage(Priority.NORMAL, channels, b.toString());
+                        b.append(shortUrls.get(pushUrl));
+                        bot.getOutboundScheduler().sendMessage(OutboundScheduler.Lane.NOTIFICATION, channels, b.toString());
                         break;
                     }
                     case "pull_request": {
@@ -325,11 +418,11 @@ public final class GitHubMessageHandler extends EventHandler {
                         }
                         b.append('[').fc(12).append(reposName).nc().append("] ");
                         b.append('(').fc(7).append(pullRequest.get("state").asString()).nc().append(") ");
-                        b.fc(6).append(getNameForUserId(pullRequest.get("user").get("login").asString())).nc().append(' ');
+                        b.fc(6).append(userNames.get(pullRequest.get("user").get("login").asString())).nc().append(' ');
                         String title = pullRequest.get("title").asString();
                         b.append(title);
-                        b.fc(11).append(' ').append(shorten(pullRequest.get("html_url").asString()));
-                        bot.getThimBot().sendMessage(Priority.NORMAL, channels, b.toString());
+                        b.fc(11).append(' ').append(shortener.shorten(pullRequest.get("html_url").asString()));
+                        bot.getOutboundScheduler().sendMessage(OutboundScheduler.Lane.NOTIFICATION, channels, b.toString());
                         break;
                     }
                     case "issues": {
@@ -350,11 +443,11 @@ public final class GitHubMessageHandler extends EventHandler {
                         }
                         b.append('[').fc(12).append(reposName).nc().append("] ");
                         b.append('(').fc(7).append(issue.get("state").asString()).nc().append(") ");
-                        b.fc(6).append(getNameForUserId(issue.get("user").get("login").asString())).nc().append(' ');
+                        b.fc(6).append(userNames.get(issue.get("user").get("login").asString())).nc().append(' ');
                         String title = issue.get("title").asString();
                         b.append(title);
-                        b.fc(11).append(' ').append(shorten(issue.get("html_url").asString()));
-                        bot.getThimBot().sendMessage(Priority.NORMAL, channels, b.toString());
+                        b.fc(11).append(' ').append(shortener.shorten(issue.get("html_url").asString()));
+                        bot.getOutboundScheduler().sendMessage(OutboundScheduler.Lane.NOTIFICATION, channels, b.toString());
                         break;
                     }
                     default: {
@@ -372,51 +465,44 @@ public final class GitHubMessageHandler extends EventHandler {
             final String authority = uri.getAuthority();
             if (authority != null) {
                 if (GH_AUTHORITY.matcher(authority).matches()) {
-                    final String path = uri.getPath();
-                    if (path != null) {
+                    final Key key = refKey(uri);
+                    if (key != null) {
                         RecursionState state = context.getContextValue(handlerKey);
                         if (state == null) context.putContextValue(handlerKey, state = new RecursionState());
-                        final String[] parts = path.split("/+");
-                        if (parts.length >= 5) {
-                            final String obj = parts[3];
-                            switch (obj) {
-                                case "pull":
-                                    lookupPullReq(inboundUrlEvent, state, parts[1], parts[2], parts[4]);
-                                    break;
-                                case "commit":
-                                    lookup(inboundUrlEvent, state, parts[1], parts[2], parts[4]);
-                                    break;
-                                case "issues":
-                                    lookupIssue(inboundUrlEvent, state, parts[1], parts[2], parts[4]);
-                                    break;
-                                default:
-                                    System.out.println("didn't match '" + obj + "'");
-                                    break;
+                        if (state.add(key)) {
+                            final LookupExecutor executor = bot.getLookupExecutor();
+                            if (bot.getConfig().node("github/graphql").getBoolean("enabled", false)) {
+                                // the first link of a message takes the rest along, so the whole message is one query
+                                final List<Key> keys = new ArrayList<Key>();
+                                keys.add(key);
+                                final Event parent = inboundUrlEvent.getParent();
+                                if (parent instanceof TextEvent) {
+                                    addRefs(state, ReferenceScanner.scan(context, ((TextEvent) parent).getText()), keys);
+                                }
+                                executor.execute(inboundUrlEvent, new Runnable() {
+                                    public void run() {
+                                        resolve(inboundUrlEvent, keys);
+                                    }
+                                });
+                            } else {
+                                executor.execute(inboundUrlEvent, new Runnable() {
+                                    public void run() {
+                                        lookup(inboundUrlEvent, key);
+                                    }
+                                });
                             }
                         }
                     }
                     return;
                 } else if (GI_AUTHORITY.matcher(authority).matches()) try {
                     // shortened URL
-                    String fast = urlMap.get(uri.toString());
-                    URI newUri;
-                    if (fast != null) {
-                        newUri = new URI(fast);
-                    } else {
-                        final HttpURLConnection urlConnection = (HttpURLConnection) uri.toURL().openConnection();
-                        urlConnection.setDoInput(false);
-                        urlConnection.setDoOutput(false);
-                        urlConnection.setInstanceFollowRedirects(false);
-                        final int responseCode = urlConnection.getResponseCode();
-                        if (responseCode == 302) {
-                            newUri = new URI(urlConnection.getHeaderField("Location"));
-                            urlMap.putIfAbsent(uri.toString(), newUri.toString());
-                        } else {
-                            // ignore
-                            super.handleEvent(context, event);
-                            return;
-                        }
+                    final String expanded = shortener.expand(uri.toString());
+                    if (expanded == null) {
+                        // ignore
+                        super.handleEvent(context, event);
+                        return;
                     }
+                    final URI newUri = new URI(expanded);
                     final AbstractURLEvent<? extends MessageRespondableEvent> newEvent = inboundUrlEvent.copyWithNewUri(newUri);
                     context.redispatch(newEvent);
                     return;
@@ -434,58 +520,195 @@ public final class GitHubMessageHandler extends EventHandler {
         state.add(new Key(org, repos, prId, "pull_request"));
     }
 
-    private static void lookup(final AbstractURLEvent<?> event, final RecursionState state, final String org, final String repos, final String hash) {
-        final String urlString = String.format("https://api.github.com/repos/%s/%s/commits/%s", org, repos, hash);
-        if (! state.add(new Key(org, repos, hash, "commit"))) {
-            // already got it this time round
-            return;
+    /**
+     * Get the key of the commit, pull request or issue a link is to.
+     *
+     * @param uri the link
+     * @return the key, or {@code null} if it is not to one of those
+     */
+    private static Key refKey(final URI uri) {
+        final String path = uri.getPath();
+        if (path == null) {
+            return null;
         }
-        try {
-            final URL url = new URL(urlString);
-            final HttpURLConnection conn = (HttpURLConnection) JBossBotUtils.connectTo(url);
+        final String[] parts = path.split("/+");
+        if (parts.length < 5) {
+            return null;
+        }
+        switch (parts[3]) {
+            case "pull": return new Key(parts[1], parts[2], parts[4], "pull_request");
+            case "commit": return new Key(parts[1], parts[2], parts[4], "commit");
+            case "issues": return new Key(parts[1], parts[2], parts[4], "issue");
+            default: return null;
+        }
+    }
+
+    private void lookup(final MessageRespondableEvent event, final Key key) {
+        switch (key.getKind()) {
+            case "pull_request": lookupPullReq(event, key.getOrg(), key.getRepos(), key.getId()); break;
+            case "commit": lookup(event, key.getOrg(), key.getRepos(), key.getId()); break;
+            case "issue": lookupIssue(event, key.getOrg(), key.getRepos(), key.getId()); break;
+        }
+    }
+
+    /**
+     * Show the commits, pull requests and issues of one message, in the order they were mentioned.  Whatever is not
+     * cached, along with the names of the authors, is asked for in a single GraphQL query.  Anything the query did
+     * not answer in full is looked up on its own.
+     *
+     * @param event the event to respond to
+     * @param keys the keys of the links
+     */
+    private void resolve(final MessageRespondableEvent event, final List<Key> keys) {
+        final int size = keys.size();
+        final IssueCache.Item[] items = new IssueCache.Item[size];
+        final StringBuilder params = new StringBuilder();
+        final StringBuilder fields = new StringBuilder();
+        boolean pulls = false, issues = false;
+        final JSON request = JSON.newMap();
+        final JSON variables = request.get("variables");
+        for (int i = 0; i < size; i ++) {
+            final Key key = keys.get(i);
+            if (key.getKind().equals("commit")) {
+                params.append(", $o").append(i).append(": String!, $r").append(i).append(": String!, $e").append(i).append(": String!");
+                fields.append(" r").append(i).append(": repository(owner: $o").append(i).append(", name: $r").append(i).append(") { object(expression: $e").append(i).append(") { ... on Commit { oid message author { name } } } }");
+                variables.get("e" + i).setString(key.getId());
+            } else {
+                items[i] = issueCache.get(IssueCache.key(key.getOrg(), key.getRepos(), key.getId(), key.getKind()));
+                if (items[i] != null) {
+                    if (! userNames.isKnown(items[i].login)) {
+                        params.append(", $l").append(i).append(": String!");
+                        fields.append(" u").append(i).append(": user(login: $l").append(i).append(") { name }");
+                        variables.get("l" + i).setString(items[i].login);
+                    }
+                    continue;
+                }
+                final int number;
+                try {
+                    number = Integer.parseInt(key.getId());
+                } catch (NumberFormatException e) {
+                    continue;
+                }
+                params.append(", $o").append(i).append(": String!, $r").append(i).append(": String!, $n").append(i).append(": Int!");
+                fields.append(" r").append(i).append(": repository(owner: $o").append(i).append(", name: $r").append(i).append(") { ");
+                if (key.getKind().equals("pull_request")) {
+                    fields.append("pullRequest(number: $n").append(i).append(") { ...pull }");
+                    pulls = true;
+                } else {
+                    // like the REST API, an issue number may be a pull request's
+                    fields.append("issueOrPullRequest(number: $n").append(i).append(") { ...issue ...pull }");
+                    pulls = issues = true;
+                }
+                fields.append(" }");
+                variables.get("n" + i).setInt(number);
+            }
+            variables.get("o" + i).setString(key.getOrg());
+            variables.get("r" + i).setString(key.getRepos());
+        }
+        JSON data = null;
+        if (params.length() > 0) {
+            final StringBuilder query = new StringBuilder();
+            query.append("query(").append(params, 2, params.length()).append(") {").append(fields).append(" }");
+            if (pulls) {
+                query.append(" fragment pull on PullRequest { state title url author { login ... on User { name } } }");
+            }
+            if (issues) {
+                query.append(" fragment issue on Issue { state title url author { login ... on User { name } } }");
+            }
+            request.get("query").setString(query.toString());
             try {
-                final int code = conn.getResponseCode();
-                if (code != 200) {
-                    log.debugf("URL %s returned status %d", url, Integer.valueOf(code));
-                    return;
+                final JSON result = api.query(request);
+                if (result != null) {
+                    data = result.get("data");
                 }
-                final IRCStringBuilder b = new IRCStringBuilder();
-                try (final InputStream is = conn.getInputStream()) {
-                    try (BufferedInputStream bis = new BufferedInputStream(is)) {
-                        try (InputStreamReader reader = new InputStreamReader(bis)) {
-                            int c;
-                            while ((c = reader.read()) != -1) {
-                                b.append((char) c);
-                            }
-                        }
+            } catch (IOException e) {
+                log.debugf(e, "GraphQL query for %d references failed", Integer.valueOf(size));
+            }
+        }
+        final String[] commitLines = new String[size];
+        final List<String> urls = new ArrayList<String>();
+        for (int i = 0; i < size; i ++) {
+            final Key key = keys.get(i);
+            if (data != null) {
+                final JSON repository = data.get("r" + i);
+                if (key.getKind().equals("commit")) {
+                    final JSON commit = repository.get("object");
+                    if (present(commit.get("oid")) && present(commit.get("author").get("name")) && present(commit.get("message"))) {
+                        commitLines[i] = commitLine(key.getRepos(), commit.get("oid").asString(), commit.get("author").get("name").asString(), commit.get("message").asString());
+                    }
+                } else if (items[i] == null) {
+                    final JSON node = key.getKind().equals("pull_request") ? repository.get("pullRequest") : repository.get("issueOrPullRequest");
+                    if (present(node.get("state")) && present(node.get("title")) && present(node.get("url"))) {
+                        items[i] = item(node);
+                        issueCache.put(IssueCache.key(key.getOrg(), key.getRepos(), key.getId(), key.getKind()), items[i]);
+                    }
+                } else {
+                    final JSON user = data.get("u" + i);
+                    if (user.exists() && ! user.isNull()) {
+                        userNames.resolved(items[i].login, user.get("name").asString());
                     }
                 }
-                final JSON json = JSON.parse(b.toString());
-                b.setLength(0);
-                b.b().append("git").b().nc().append(' ');
-                JSON commit = json.get("commit");
-                String commitId = json.get("sha").asString();
-                commitId = " " + commitId.substring(0, 7) + "..";
-                b.append('[').fc(12).append(repos).nc().append("]");
-                b.fc(7).append(commitId).nc().append(' ');
-                b.fc(6).append(commit.get("author").get("name").asString()).nc().append(' ');
-                String commitMsg = commit.get("message").asString();
-                if (commitMsg.indexOf('\n') != -1) {
-                    b.append(commitMsg.substring(0, commitMsg.indexOf('\n')));
-                    b.fc(14).append("...").nc();
+            }
+            if (items[i] != null) {
+                urls.add(items[i].htmlUrl);
+            }
+        }
+        final Map<String, String> shortUrls = urls.isEmpty() ? Collections.<String, String>emptyMap() : shortener.shortenAll(urls);
+        for (int i = 0; i < size; i ++) {
+            final Key key = keys.get(i);
+            try {
+                if (commitLines[i] != null) {
+                    bot.getOutboundScheduler().respond(event, commitLines[i]);
+                } else if (items[i] != null) {
+                    if (key.getKind().equals("pull_request")) {
+                        showPullReq(event, key.getRepos(), items[i], shortUrls.get(items[i].htmlUrl));
+                    } else {
+                        showIssue(event, key.getRepos(), items[i], shortUrls.get(items[i].htmlUrl));
+                    }
                 } else {
-                    b.append(commitMsg);
+                    lookup(event, key);
                 }
-//                final JSON urlNode = json.get("html_url");
-//                if (urlNode.exists()) {
-//                    b.fc(11).append(' ');
-//                    b.append(shorten(urlNode.asString()));
-//                    b.nc();
-//                }
-                event.sendMessageResponse(b.toString());
-            } finally {
-//                        conn.disconnect();
+            } catch (Exception e) {
+                log.debugf(e, "Failed to show %s/%s %s %s", key.getOrg(), key.getRepos(), key.getKind(), key.getId());
             }
+        }
+    }
+
+    private static boolean present(final JSON json) {
+        return json.exists() && ! json.isNull();
+    }
+
+    /**
+     * Get the item for a pull request or issue from a GraphQL result, with the states the REST API would give.  The
+     * author's name comes along with it.
+     *
+     * @param node the pull request or issue
+     * @return the item
+     */
+    private IssueCache.Item item(final JSON node) {
+        final String state = node.get("state").asString();
+        final JSON author = node.get("author");
+        final String login;
+        if (author.exists() && ! author.isNull()) {
+            login = author.get("login").asString();
+            // only users have names; anything else is shown by its login
+            userNames.resolved(login, author.get("name").exists() ? author.get("name").asString() : null);
+        } else {
+            // a deleted account
+            login = "ghost";
+        }
+        return new IssueCache.Item("OPEN".equals(state) ? "open" : "closed", login, node.get("title").asString(), node.get("url").asString());
+    }
+
+    private void lookup(final MessageRespondableEvent event, final String org, final String repos, final String hash) {
+        final String urlString = String.format("https://api.github.com/repos/%s/%s/commits/%s", org, repos, hash);
+        try {
+            final JSON json = api.get(urlString);
+            if (json == null) {
+                return;
+            }
+            final JSON commit = json.get("commit");
+            bot.getOutboundScheduler().respond(event, commitLine(repos, json.get("sha").asString(), commit.get("author").get("name").asString(), commit.get("message").asString()));
         } catch (Exception e) {
             e.printStackTrace();
             return;
@@ -493,45 +716,42 @@ public final class GitHubMessageHandler extends EventHandler {
         return;
     }
 
-    private static void lookupPullReq(final AbstractURLEvent<?> event, final RecursionState state, final String org, final String repos, final String prId) {
-        final String urlString = String.format("https://api.github.com/repos/%s/%s/pulls/%s", org, repos, prId);
-        if (! state.add(new Key(org, repos, prId, "pull_request"))) {
-            // already got it this time round
-            return;
+    private static String commitLine(final String repos, final String sha, final String author, final String commitMsg) {
+        final IRCStringBuilder b = new IRCStringBuilder();
+        b.b().append("git").b().nc().append(' ');
+        final String commitId = " " + sha.substring(0, 7) + "..";
+        b.append('[').fc(12).append(repos).nc().append("]");
+        b.fc(7).append(commitId).nc().append(' ');
+        b.fc(6).append(author).nc().append(' ');
+        if (commitMsg.indexOf('\n') != -1) {
+            b.append(commitMsg.substring(0, commitMsg.indexOf('\n')));
+            b.fc(14).append("...").nc();
+        } else {
+            b.append(commitMsg);
         }
+//            final JSON urlNode = json.get("html_url");
+//            if (urlNode.exists()) {
+//                b.fc(11).append(' ');
+//                b.append(shorten(urlNode.asString()));
+//                b.nc();
+//            }
+        return b.toString();
+    }
+
+    private void lookupPullReq(final MessageRespondableEvent event, final String org, final String repos, final String prId) {
+        final String urlString = String.format("https://api.github.com/repos/%s/%s/pulls/%s", org, repos, prId);
         try {
-            final URL url = new URL(urlString);
-            final HttpURLConnection conn = (HttpURLConnection) JBossBotUtils.connectTo(url);
-            try {
-                final int code = conn.getResponseCode();
-                if (code != 200) {
-                    log.debugf("URL %s returned status %d", url, Integer.valueOf(code));
+            final Key cacheKey = IssueCache.key(org, repos, prId, "pull_request");
+            IssueCache.Item item = issueCache.get(cacheKey);
+            if (item == null) {
+                final JSON json = api.get(urlString);
+                if (json == null) {
                     return;
                 }
-                final IrcStringBuilder b = new IrcStringBuilder();
-                try (InputStream is = conn.getInputStream()) {
-                    try (BufferedInputStream bis = new BufferedInputStream(is)) {
-                        try (InputStreamReader reader = new InputStreamReader(bis)) {
-                            int c;
-                            while ((c = reader.read()) != -1) {
-                                b.append((char) c);
-                            }
-                        }
-                    }
-                }
-                final JSON json = JSON.parse(b.toString());
-                b.setLength(0);
-                b.b().append("git pull req").b().nc().append(' ');
-                b.append('[').fc(12).append(repos).nc().append("] ");
-                b.append('(').fc(7).append(json.get("state").asString()).nc().append(") ");
-                b.b().fc(6).append(getNameForUserId(json.get("user").get("login").asString())).nc().append(' ');
-                String title = json.get("title").asString();
-                b.append(title);
-                b.fc(11).append(' ').append(shorten(json.get("html_url").asString()));
-                event.sendMessageResponse(b.toString());
-            } finally {
-//                        conn.disconnect();
+                item = IssueCache.Item.of(json);
+                issueCache.put(cacheKey, item);
             }
+            showPullReq(event, repos, item, shortener.shorten(item.htmlUrl));
         } catch (Exception e) {
             e.printStackTrace();
             return;
@@ -539,45 +759,31 @@ public final class GitHubMessageHandler extends EventHandler {
         return;
     }
 
-    private static void lookupIssue(final AbstractURLEvent<?> event, final RecursionState state, final String org, final String repos, final String issueId) {
+    private void showPullReq(final MessageRespondableEvent event, final String repos, final IssueCache.Item item, final String url) throws IOException {
+        final IrcStringBuilder b = new IrcStringBuilder();
+        b.b().append("git pull req").b().nc().append(' ');
+        b.append('[').fc(12).append(repos).nc().append("] ");
+        b.append('(').fc(7).append(item.state).nc().append(") ");
+        b.b().fc(6).append(userNames.get(item.login)).nc().append(' ');
+        b.append(item.title);
+        b.fc(11).append(' ').append(url);
+        bot.getOutboundScheduler().respond(event, b.toString());
+    }
+
+    private void lookupIssue(final MessageRespondableEvent event, final String org, final String repos, final String issueId) {
         final String urlString = String.format("https://api.github.com/repos/%s/%s/issues/%s", org, repos, issueId);
-        if (! state.add(new Key(org, repos, issueId, "issue"))) {
-            // already got it this time round
-            return;
-        }
         try {
-            final URL url = new URL(urlString);
-            final HttpURLConnection conn = (HttpURLConnection) JBossBotUtils.connectTo(url);
-            try {
-                final int code = conn.getResponseCode();
-                if (code != 200) {
-                    log.debugf("URL %s returned status %d", url, Integer.valueOf(code));
+            final Key cacheKey = IssueCache.key(org, repos, issueId, "issue");
+            IssueCache.Item item = issueCache.get(cacheKey);
+            if (item == null) {
+                final JSON json = api.get(urlString);
+                if (json == null) {
                     return;
                 }
-                final IrcStringBuilder b = new IrcStringBuilder();
-                try (InputStream is = conn.getInputStream()) {
-                    try (BufferedInputStream bis = new BufferedInputStream(is)) {
-                        try (InputStreamReader reader = new InputStreamReader(bis)) {
-                            int c;
-                            while ((c = reader.read()) != -1) {
-                                b.append((char) c);
-                            }
-                        }
-                    }
-                }
-                final JSON json = JSON.parse(b.toString());
-                b.setLength(0);
-                b.b().append("git issue").b().nc().append(' ');
-                b.append('[').fc(12).append(repos).nc().append("] ");
-                b.append('(').fc(7).append(json.get("state").asString()).nc().append(") ");
-                b.fc(6).append(getNameForUserId(json.get("user").get("login").asString())).nc().append(' ');
-                String title = json.get("title").asString();
-                b.append(title);
-                b.fc(11).append(' ').append(shorten(json.get("html_url").asString()));
-                event.sendMessageResponse(b.toString());
-            } finally {
-//                        conn.disconnect();
+                item = IssueCache.Item.of(json);
+                issueCache.put(cacheKey, item);
             }
+            showIssue(event, repos, item, shortener.shorten(item.htmlUrl));
         } catch (Exception e) {
             e.printStackTrace();
             return;
@@ -585,48 +791,69 @@ public final class GitHubMessageHandler extends EventHandler {
         return;
     }
 
-    private static final Map<String, String> LRU_NAMES = Collections.synchronizedMap(new LinkedHashMap<String, String>(16, 0.5f, true) {
-        protected boolean removeEldestEntry(final Map.Entry<String, String> eldest) {
-            return size() >= 100;
+    private void showIssue(final MessageRespondableEvent event, final String repos, final IssueCache.Item item, final String url) throws IOException {
+        final IrcStringBuilder b = new IrcStringBuilder();
+        b.b().append("git issue").b().nc().append(' ');
+        b.append('[').fc(12).append(repos).nc().append("] ");
+        b.append('(').fc(7).append(item.state).nc().append(") ");
+        b.fc(6).append(userNames.get(item.login)).nc().append(' ');
+        b.append(item.title);
+        b.fc(11).append(' ').append(url);
+        bot.getOutboundScheduler().respond(event, b.toString());
+    }
+
+    /**
+     * Remember the names of the users a webhook payload mentions.
+     *
+     * @param json the payload
+     */
+    private void prefillNames(final JSON json) {
+        userNames.prefill(json.get("sender"));
+        userNames.prefill(json.get("pull_request").get("user"));
+        userNames.prefill(json.get("issue").get("user"));
+        userNames.prefill(json.get("comment").get("user"));
+        final JSON commits = json.get("commits");
+        if (commits.exists() && ! commits.isNull()) {
+            for (JSON commit : commits.asList()) {
+                userNames.prefill(commit.get("author"));
+            }
         }
-    });
+    }
 
-    private static String getNameForUserId(String userId) {
-        String name;
-        final Map<String, String> lruNames = LRU_NAMES;
-        synchronized (lruNames) {
-            name = lruNames.get(userId);
-            if (name != null) {
-                return name;
+    /**
+     * Bring the cached copy of a pull request or issue up to date from a webhook about it.
+     *
+     * @param gitHubEvent the webhook event type
+     * @param json the payload
+     */
+    private void updateCache(final String gitHubEvent, final JSON json) {
+        final String owner = json.get("repository").get("owner").get("login").asString();
+        final String reposName = json.get("repository").get("name").asString();
+        if (owner == null || reposName == null) {
+            return;
+        }
+        switch (gitHubEvent) {
+            case "pull_request": {
+                final String number = json.get("number").asString();
+                issueCache.update(IssueCache.key(owner, reposName, number, "pull_request"), IssueCache.Item.of(json.get("pull_request")));
+                // a pull request can be looked up as an issue too
+                issueCache.evict(IssueCache.key(owner, reposName, number, "issue"));
+                break;
             }
-            try {
-                final URLConnection connection = JBossBotUtils.connectTo(URI.create("https://api.github.com/users/" + userId).toURL());
-                final StringBuilder b = new StringBuilder();
-                try (InputStream is = connection.getInputStream()) {
-                    try (BufferedInputStream bis = new BufferedInputStream(is)) {
-                        try (InputStreamReader reader = new InputStreamReader(bis)) {
-                            int c;
-                            while ((c = reader.read()) != -1) {
-                                b.append((char) c);
-                            }
-                        }
-                    }
-                }
-                final JSON json = JSON.parse(b.toString());
-                final String realName = json.get("name").asString();
-                if (realName != null && ! realName.isEmpty()) {
-                    lruNames.put(userId, realName);
-                    return realName;
+            case "issues": {
+                final JSON issue = json.get("issue");
+                final Key key = IssueCache.key(owner, reposName, issue.get("number").asString(), "issue");
+                if ("deleted".equals(json.get("action").asString())) {
+                    issueCache.evict(key);
                 } else {
-                    lruNames.put(userId, userId);
-                    return userId;
+                    issueCache.update(key, IssueCache.Item.of(issue));
                 }
-            } catch (IOException e) {
-                lruNames.put(userId, userId);
-                return userId;
+                break;
+            }
+            default: {
+                break;
             }
         }
-
     }
 
     private static final class RecursionState {
@@ -35,7 +35,7 @@ public final class GitHubProvider implements JBossBotServiceProvider {
 
     public void register(final JBossBot bot, final JBossBotServlet servlet) {
         final GitHubMessageHandler messageHandler = new GitHubMessageHandler(bot);
-        bot.getThimBot().addEventHandler(messageHandler);
+        bot.addEventHandler("github", messageHandler);
     }
 
     public int getPriority() {
@@ -0,0 +1,179 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2014, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.bot.github;
+
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.zwitserloot.json.JSON;
+import org.jboss.bot.Config;
+import org.jboss.bot.metrics.MetricsSource;
+import org.jboss.bot.metrics.MetricsWriter;
+
+/**
+ * A bounded cache of the pull requests and issues shown in response to links.  Webhooks for a repository keep its
+ * entries current, so the TTL only matters for repositories which do not send them.
+ */
+final class IssueCache implements MetricsSource {
+
+    private final long ttl;
+    private final Map<GitHubMessageHandler.Key, Item> entries;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong updates = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    IssueCache(final Config config) {
+        ttl = TimeUnit.SECONDS.toNanos(config.getLong("ttl-s", 3600L));
+        final int maxSize = config.getInt("max-size", 2048);
+        entries = new LinkedHashMap<GitHubMessageHandler.Key, Item>(64, 0.75f, true) {
+            protected boolean removeEldestEntry(final Map.Entry<GitHubMessageHandler.Key, Item> eldest) {
+                if (size() > maxSize) {
+                    evictions.incrementAndGet();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Get the cache key for a pull request or issue.  Owner and repository names are not case sensitive.
+     *
+     * @param org the owner
+     * @param repos the repository
+     * @param id the number
+     * @param kind {@code pull_request} or {@code issue}
+     * @return the key
+     */
+    static GitHubMessageHandler.Key key(final String org, final String repos, final String id, final String kind) {
+        return new GitHubMessageHandler.Key(org.toLowerCase(Locale.ROOT), repos.toLowerCase(Locale.ROOT), id, kind);
+    }
+
+    /**
+     * Get a cached item.
+     *
+     * @param key the key
+     * @return the item, or {@code null} if it is not cached or has expired
+     */
+    Item get(final GitHubMessageHandler.Key key) {
+        final Item item;
+        synchronized (entries) {
+            item = entries.get(key);
+        }
+        if (item == null || System.nanoTime() - item.fetched >= ttl) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return item;
+    }
+
+    /**
+     * Cache an item which was looked up.
+     *
+     * @param key the key
+     * @param item the item
+     */
+    void put(final GitHubMessageHandler.Key key, final Item item) {
+        synchronized (entries) {
+            entries.put(key, item);
+        }
+    }
+
+    /**
+     * Replace an item with the copy in a webhook payload.  Nothing is cached if the item was not already, since it
+     * may never be asked for.
+     *
+     * @param key the key
+     * @param item the item
+     */
+    void update(final GitHubMessageHandler.Key key, final Item item) {
+        synchronized (entries) {
+            if (entries.containsKey(key)) {
+                entries.put(key, item);
+                updates.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Forget an item.
+     *
+     * @param key the key
+     */
+    void evict(final GitHubMessageHandler.Key key) {
+        synchronized (entries) {
+            if (entries.remove(key) != null) {
+                updates.incrementAndGet();
+            }
+        }
+    }
+
+    public void writeMetrics(final MetricsWriter writer) {
+        final int size;
+        synchronized (entries) {
+            size = entries.size();
+        }
+        writer.family("jbossbot_github_cache_size", "gauge", "Pull requests and issues in the GitHub cache.");
+        writer.sample("jbossbot_github_cache_size", size);
+        writer.family("jbossbot_github_cache_requests_total", "counter", "GitHub cache requests by outcome.");
+        writer.sample("jbossbot_github_cache_requests_total", hits.get(), "result", "hit");
+        writer.sample("jbossbot_github_cache_requests_total", misses.get(), "result", "miss");
+        writer.family("jbossbot_github_cache_webhook_updates_total", "counter", "GitHub cache entries updated or evicted by webhooks.");
+        writer.sample("jbossbot_github_cache_webhook_updates_total", updates.get());
+        writer.family("jbossbot_github_cache_evictions_total", "counter", "GitHub cache entries evicted to make room.");
+        writer.sample("jbossbot_github_cache_evictions_total", evictions.get());
+    }
+
+    /**
+     * The parts of a pull request or issue which are shown.
+     */
+    static final class Item {
+        final String state;
+        final String login;
+        final String title;
+        final String htmlUrl;
+        final long fetched = System.nanoTime();
+
+        Item(final String state, final String login, final String title, final String htmlUrl) {
+            this.state = state;
+            this.login = login;
+            this.title = title;
+            this.htmlUrl = htmlUrl;
+        }
+
+        /**
+         * Get the item from the API's or a webhook's JSON for a pull request or issue.
+         *
+         * @param json the pull request or issue
+         * @return the item
+         */
+        static Item of(final JSON json) {
+            return new Item(json.get("state").asString(), json.get("user").get("login").asString(), json.get("title").asString(), json.get("html_url").asString());
+        }
+    }
+}
@@ -0,0 +1,279 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2014, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.bot.github;
+
+import java.io.IOError;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.prefs.BackingStoreException;
+import java.util.prefs.Preferences;
+
+import org.jboss.bot.Config;
+import org.jboss.bot.HttpClient;
+import org.jboss.bot.JBossBot;
+import org.jboss.bot.metrics.MetricsSource;
+import org.jboss.bot.metrics.MetricsWriter;
+import org.jboss.logging.Logger;
+
+/**
+ * Shortens URLs with git.io, and expands gh.io links.  Every pair seen is remembered in both directions, up to a
+ * bound, and kept in a preference node so that it survives a restart.  The URLs a notification needs are shortened
+ * together on the lookup executor's fork threads; any not back by the deadline, or not started because every fork
+ * thread is busy, are shown long, and are remembered when they do come back.
+ */
+final class UrlShortener implements MetricsSource {
+
+    private static final Logger log = Logger.getLogger("org.jboss.bot.github");
+
+    private static final URL GIT_IO;
+
+    static {
+        try {
+            GIT_IO = new URL("https://git.io");
+        } catch (MalformedURLException e) {
+            throw new IOError(e);
+        }
+    }
+
+    private final JBossBot bot;
+    private final Preferences store;
+    private final long deadline;
+    // long URL to short URL; guards both maps
+    private final Map<String, String> shortened;
+    private final Map<String, String> expanded = new HashMap<String, String>();
+    private final ConcurrentMap<String, FutureTask<String>> inFlight = new ConcurrentHashMap<String, FutureTask<String>>();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong fetched = new AtomicLong();
+    private final AtomicLong fallbacks = new AtomicLong();
+    private final AtomicLong busy = new AtomicLong();
+    private final AtomicLong expansions = new AtomicLong();
+
+    /**
+     * Construct a new instance.
+     *
+     * @param bot the bot
+     * @param store the node to keep pairs in, keyed by short URL
+     */
+    UrlShortener(final JBossBot bot, final Preferences store) {
+        this.bot = bot;
+        this.store = store;
+        final Config config = bot.getConfig().node("github/shorten");
+        deadline = TimeUnit.MILLISECONDS.toNanos(Math.max(0L, config.getLong("deadline-ms", 2000L)));
+        final int maxSize = Math.max(1, config.getInt("max-size", 4096));
+        shortened = new LinkedHashMap<String, String>(256, 0.75f, true) {
+            protected boolean removeEldestEntry(final Map.Entry<String, String> eldest) {
+                if (size() > maxSize) {
+                    expanded.remove(eldest.getValue());
+                    store.remove(eldest.getValue());
+                    return true;
+                }
+                return false;
+            }
+        };
+        try {
+            synchronized (shortened) {
+                for (String shortUrl : store.keys()) {
+                    final String longUrl = store.get(shortUrl, null);
+                    if (longUrl != null) {
+                        shortened.put(longUrl, shortUrl);
+                        expanded.put(shortUrl, longUrl);
+                    }
+                }
+            }
+        } catch (BackingStoreException e) {
+            log.warnf(e, "Failed to load shortened URLs");
+        }
+    }
+
+    /**
+     * Shorten one URL.
+     *
+     * @param url the URL
+     * @return the short URL, or the URL itself if it could not be shortened in time
+     */
+    String shorten(final String url) {
+        return shortenAll(Collections.singleton(url)).get(url);
+    }
+
+    /**
+     * Shorten several URLs at once.
+     *
+     * @param urls the URLs
+     * @return each URL's short form, or the URL itself if it could not be shortened in time
+     */
+    Map<String, String> shortenAll(final Collection<String> urls) {
+        final Map<String, String> results = new HashMap<String, String>();
+        final Map<String, Future<String>> pending = new LinkedHashMap<String, Future<String>>();
+        synchronized (shortened) {
+            for (String url : urls) {
+                final String shortUrl = shortened.get(url);
+                if (shortUrl != null) {
+                    results.put(url, shortUrl);
+                }
+            }
+        }
+        hits.addAndGet(results.size());
+        for (String url : urls) {
+            if (! results.containsKey(url) && ! pending.containsKey(url)) {
+                final Future<String> future = start(url);
+                if (future == null) {
+                    busy.incrementAndGet();
+                    results.put(url, url);
+                } else {
+                    pending.put(url, future);
+                }
+            }
+        }
+        final long start = System.nanoTime();
+        for (Map.Entry<String, Future<String>> entry : pending.entrySet()) {
+            final String url = entry.getKey();
+            String shortUrl = url;
+            try {
+                shortUrl = entry.getValue().get(Math.max(0L, deadline - (System.nanoTime() - start)), TimeUnit.NANOSECONDS);
+            } catch (TimeoutException e) {
+                fallbacks.incrementAndGet();
+            } catch (ExecutionException e) {
+                log.debugf(e.getCause(), "Failed to shorten %s", url);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            results.put(url, shortUrl);
+        }
+        return results;
+    }
+
+    /**
+     * Expand a gh.io link.
+     *
+     * @param shortUrl the short URL
+     * @return the URL it stands for, or {@code null} if it is not a redirect
+     * @throws IOException if the request failed
+     */
+    String expand(final String shortUrl) throws IOException {
+        synchronized (shortened) {
+            final String longUrl = expanded.get(shortUrl);
+            if (longUrl != null) {
+                shortened.get(longUrl);
+                return longUrl;
+            }
+        }
+        try (HttpClient.Response response = bot.getHttpClient().get(new URL(shortUrl))) {
+            final String location = response.getHeader("Location");
+            if (response.getStatus() != 302 || location == null) {
+                return null;
+            }
+            expansions.incrementAndGet();
+            remember(location, shortUrl);
+            return location;
+        }
+    }
+
+    /**
+     * Start shortening a URL, unless it is already being shortened.
+     *
+     * @return the request, or {@code null} if it could not be started
+     */
+    private Future<String> start(final String url) {
+        FutureTask<String> task = inFlight.get(url);
+        if (task != null) {
+            return task;
+        }
+        final FutureTask<String> newTask = new FutureTask<String>(new Callable<String>() {
+            public String call() throws IOException {
+                return fetch(url);
+            }
+        }) {
+            protected void done() {
+                inFlight.remove(url, this);
+            }
+        };
+        task = inFlight.putIfAbsent(url, newTask);
+        if (task != null) {
+            return task;
+        }
+        if (! bot.getLookupExecutor().tryFork(newTask)) {
+            inFlight.remove(url, newTask);
+            return null;
+        }
+        return newTask;
+    }
+
+    private String fetch(final String url) throws IOException {
+        final HttpClient client = bot.getHttpClient();
+        final HttpURLConnection connection = client.open(GIT_IO);
+        connection.setRequestMethod("POST");
+        try (HttpClient.Response response = client.execute(connection, ("url=" + url).getBytes(StandardCharsets.UTF_8))) {
+            final String location = response.getHeader("Location");
+            if (response.getStatus() != 201 || location == null) {
+                log.debugf("Shortening %s returned status %d", url, Integer.valueOf(response.getStatus()));
+                return url;
+            }
+            fetched.incrementAndGet();
+            remember(url, location);
+            return location;
+        }
+    }
+
+    private void remember(final String longUrl, final String shortUrl) {
+        synchronized (shortened) {
+            shortened.put(longUrl, shortUrl);
+            expanded.put(shortUrl, longUrl);
+            if (shortUrl.length() <= Preferences.MAX_KEY_LENGTH && longUrl.length() <= Preferences.MAX_VALUE_LENGTH) {
+                store.put(shortUrl, longUrl);
+            }
+        }
+    }
+
+    public void writeMetrics(final MetricsWriter writer) {
+        final int size;
+        synchronized (shortened) {
+            size = shortened.size();
+        }
+        writer.family("jbossbot_github_shortener_cached", "gauge", "Short URLs remembered.");
+        writer.sample("jbossbot_github_shortener_cached", size);
+        writer.family("jbossbot_github_shortener_requests_total", "counter", "URLs asked to be shortened, by outcome.");
+        writer.sample("jbossbot_github_shortener_requests_total", hits.get(), "result", "hit");
+        writer.sample("jbossbot_github_shortener_requests_total", fetched.get(), "result", "shortened");
+        writer.sample("jbossbot_github_shortener_requests_total", fallbacks.get(), "result", "deadline");
+        writer.sample("jbossbot_github_shortener_requests_total", busy.get(), "result", "busy");
+        writer.family("jbossbot_github_shortener_expansions_total", "counter", "gh.io links expanded with a request.");
+        writer.sample("jbossbot_github_shortener_expansions_total", expansions.get());
+    }
+}
@@ -0,0 +1,240 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2014, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.bot.github;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.zwitserloot.json.JSON;
+import org.jboss.bot.Config;
+import org.jboss.bot.JBossBot;
+import org.jboss.bot.metrics.MetricsSource;
+import org.jboss.bot.metrics.MetricsWriter;
+import org.jboss.logging.Logger;
+
+/**
+ * The display names of GitHub users, by login.  A name which is not known yet is fetched in the background, once
+ * however many renders ask for it, on a fork thread of the lookup executor; by default a render does not wait for it
+ * and shows the login meanwhile.  An expired name is shown as it is while a fresh copy is fetched.  Names in webhook
+ * payloads are taken as they arrive.
+ */
+final class UserNames implements MetricsSource {
+
+    private static final Logger log = Logger.getLogger("org.jboss.bot.github");
+
+    private final JBossBot bot;
+    private final GitHubApi api;
+    private final long ttl;
+    private final long waitMillis;
+    private final Map<String, Name> names;
+    private final ConcurrentMap<String, FutureTask<String>> inFlight = new ConcurrentHashMap<String, FutureTask<String>>();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong stale = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong fallbacks = new AtomicLong();
+    private final AtomicLong prefilled = new AtomicLong();
+
+    UserNames(final JBossBot bot, final GitHubApi api) {
+        this.bot = bot;
+        this.api = api;
+        final Config config = bot.getConfig().node("github/users");
+        ttl = TimeUnit.SECONDS.toNanos(config.getLong("ttl-s", 86400L));
+        waitMillis = Math.max(0L, config.getLong("wait-ms", 0L));
+        final int maxSize = config.getInt("max-size", 8192);
+        names = new LinkedHashMap<String, Name>(256, 0.75f, true) {
+            protected boolean removeEldestEntry(final Map.Entry<String, Name> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    /**
+     * Get the name to show for a user.
+     *
+     * @param login the login
+     * @return the user's name, or the login if it is not known in time
+     */
+    String get(final String login) {
+        if (login == null) {
+            return null;
+        }
+        final Name name;
+        synchronized (names) {
+            name = names.get(login);
+        }
+        if (name != null) {
+            if (System.nanoTime() - name.fetched < ttl) {
+                hits.incrementAndGet();
+            } else {
+                stale.incrementAndGet();
+                load(login);
+            }
+            return name.value;
+        }
+        misses.incrementAndGet();
+        final FutureTask<String> task = load(login);
+        if (task != null) try {
+            return task.get(waitMillis, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            log.debugf("Name of %s not fetched in time", login);
+        } catch (ExecutionException e) {
+            log.debugf(e.getCause(), "Failed to fetch name of %s", login);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        fallbacks.incrementAndGet();
+        return login;
+    }
+
+    /**
+     * Take a user's name from a webhook payload, if it has one.  Commit authors carry the login as
+     * {@code username}, and their name is the one in the commit, so it only fills a gap.
+     *
+     * @param user the user object
+     */
+    void prefill(final JSON user) {
+        if (! user.exists() || user.isNull()) {
+            return;
+        }
+        final boolean profile = user.get("login").exists();
+        final JSON loginNode = profile ? user.get("login") : user.get("username");
+        final JSON nameNode = user.get("name");
+        if (! loginNode.exists() || loginNode.isNull() || ! nameNode.exists() || nameNode.isNull()) {
+            return;
+        }
+        final String login = loginNode.asString();
+        final String value = nameNode.asString();
+        if (login.isEmpty() || value.isEmpty()) {
+            return;
+        }
+        synchronized (names) {
+            final Name name = names.get(login);
+            if (name == null || profile && ! name.value.equals(value)) {
+                names.put(login, new Name(value));
+                prefilled.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Determine whether a user's name is known and has not expired.
+     *
+     * @param login the login
+     * @return {@code true} if the name can be shown without fetching it
+     */
+    boolean isKnown(final String login) {
+        final Name name;
+        synchronized (names) {
+            name = names.get(login);
+        }
+        return name != null && System.nanoTime() - name.fetched < ttl;
+    }
+
+    /**
+     * Remember a user's name which was looked up some other way.
+     *
+     * @param login the login
+     * @param value the name, or {@code null} if the user has none
+     * @return the name to show
+     */
+    String resolved(final String login, final String value) {
+        final Name name = new Name(value == null || value.isEmpty() ? login : value);
+        synchronized (names) {
+            names.put(login, name);
+        }
+        return name.value;
+    }
+
+    /**
+     * Start fetching a name, unless it is already being fetched.
+     *
+     * @return the fetch, or {@code null} if it could not be started
+     */
+    private FutureTask<String> load(final String login) {
+        FutureTask<String> task = inFlight.get(login);
+        if (task != null) {
+            return task;
+        }
+        final FutureTask<String> newTask = new FutureTask<String>(new Callable<String>() {
+            public String call() throws Exception {
+                return fetch(login);
+            }
+        }) {
+            protected void done() {
+                inFlight.remove(login, this);
+            }
+        };
+        task = inFlight.putIfAbsent(login, newTask);
+        if (task != null) {
+            return task;
+        }
+        if (! bot.getLookupExecutor().tryFork(newTask)) {
+            inFlight.remove(login, newTask);
+            return null;
+        }
+        return newTask;
+    }
+
+    private String fetch(final String login) throws Exception {
+        final JSON json = api.get("https://api.github.com/users/" + login);
+        if (json == null) {
+            // failed or out of quota; remember nothing, so the next render asks again
+            return login;
+        }
+        return resolved(login, json.get("name").asString());
+    }
+
+    public void writeMetrics(final MetricsWriter writer) {
+        final int size;
+        synchronized (names) {
+            size = names.size();
+        }
+        writer.family("jbossbot_github_users_cached", "gauge", "GitHub user names remembered.");
+        writer.sample("jbossbot_github_users_cached", size);
+        writer.family("jbossbot_github_users_requests_total", "counter", "GitHub user name requests by outcome.");
+        writer.sample("jbossbot_github_users_requests_total", hits.get(), "result", "hit");
+        writer.sample("jbossbot_github_users_requests_total", stale.get(), "result", "stale");
+        writer.sample("jbossbot_github_users_requests_total", misses.get(), "result", "miss");
+        writer.family("jbossbot_github_users_fallbacks_total", "counter", "GitHub user names shown as the login because the name was not fetched in time.");
+        writer.sample("jbossbot_github_users_fallbacks_total", fallbacks.get());
+        writer.family("jbossbot_github_users_prefilled_total", "counter", "GitHub user names taken from webhook payloads.");
+        writer.sample("jbossbot_github_users_prefilled_total", prefilled.get());
+    }
+
+    static final class Name {
+        final String value;
+        final long fetched = System.nanoTime();
+
+        Name(final String value) {
+            this.value = value;
+        }
+    }
+}
@@ -0,0 +1,281 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2014, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.bot.http;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+
+/**
+ * A copy of the parts of a request that webhook handlers look at, taken while the request is still live so that
+ * it can be handled after the container has finished with the original, or journalled and handled after a
+ * restart.  Anything else about the request is unavailable.  Only the headers handlers read are kept, so that
+ * credentials such as {@code Authorization} and {@code Cookie} never reach the journal.
+ */
+final class BufferedRequest extends HttpServletRequestWrapper {
+
+    private static final Set<String> HEADERS = new TreeSet<String>(String.CASE_INSENSITIVE_ORDER);
+
+    static {
+        HEADERS.addAll(Arrays.asList("Content-Type", "User-Agent", "X-GitHub-Event"));
+    }
+
+    private final String method;
+    private final String requestURI;
+    private final String pathInfo;
+    private final String queryString;
+    private final String contentType;
+    private final String characterEncoding;
+    private final Map<String, List<String>> headers = new TreeMap<String, List<String>>(String.CASE_INSENSITIVE_ORDER);
+    private final byte[] body;
+
+    /**
+     * Copy a request.
+     *
+     * @param req the request
+     * @param maxBody the most body bytes to accept
+     * @throws TooLargeException if the body is larger than {@code maxBody}
+     * @throws IOException if the body could not be read
+     */
+    BufferedRequest(final HttpServletRequest req, final long maxBody) throws IOException {
+        super(DetachedResponse.unavailable(HttpServletRequest.class));
+        method = req.getMethod();
+        requestURI = req.getRequestURI();
+        pathInfo = req.getPathInfo();
+        queryString = req.getQueryString();
+        contentType = req.getContentType();
+        characterEncoding = req.getCharacterEncoding();
+        final Enumeration<String> names = req.getHeaderNames();
+        if (names != null) while (names.hasMoreElements()) {
+            final String name = names.nextElement();
+            if (! HEADERS.contains(name)) {
+                continue;
+            }
+            final Enumeration<String> values = req.getHeaders(name);
+            if (values != null) {
+                headers.put(name, Collections.list(values));
+            }
+        }
+        if (req.getContentLength() > maxBody) {
+            throw new TooLargeException();
+        }
+        // the declared length is not trusted for sizing; the buffer grows with what actually arrives
+        final ByteArrayOutputStream os = new ByteArrayOutputStream(8192);
+        try (InputStream is = req.getInputStream()) {
+            final byte[] buf = new byte[8192];
+            long total = 0;
+            int res;
+            while ((res = is.read(buf)) != -1) {
+                total += res;
+                if (total > maxBody) {
+                    throw new TooLargeException();
+                }
+                os.write(buf, 0, res);
+            }
+        }
+        body = os.toByteArray();
+    }
+
+    private BufferedRequest(final DataInput in) throws IOException {
+        super(DetachedResponse.unavailable(HttpServletRequest.class));
+        method = readString(in);
+        requestURI = readString(in);
+        pathInfo = readString(in);
+        queryString = readString(in);
+        contentType = readString(in);
+        characterEncoding = readString(in);
+        int headerCount = in.readInt();
+        while (headerCount-- > 0) {
+            final String name = readString(in);
+            int valueCount = in.readInt();
+            final List<String> values = new ArrayList<String>(valueCount);
+            while (valueCount-- > 0) {
+                values.add(readString(in));
+            }
+            // entries journalled before headers were filtered may carry others
+            if (HEADERS.contains(name)) {
+                headers.put(name, values);
+            }
+        }
+        body = new byte[in.readInt()];
+        in.readFully(body);
+    }
+
+    static BufferedRequest readFrom(DataInput in) throws IOException {
+        return new BufferedRequest(in);
+    }
+
+    void writeTo(DataOutput out) throws IOException {
+        writeString(out, method);
+        writeString(out, requestURI);
+        writeString(out, pathInfo);
+        writeString(out, queryString);
+        writeString(out, contentType);
+        writeString(out, characterEncoding);
+        out.writeInt(headers.size());
+        for (Map.Entry<String, List<String>> entry : headers.entrySet()) {
+            writeString(out, entry.getKey());
+            out.writeInt(entry.getValue().size());
+            for (String value : entry.getValue()) {
+                writeString(out, value);
+            }
+        }
+        out.writeInt(body.length);
+        out.write(body);
+    }
+
+    private static void writeString(DataOutput out, String str) throws IOException {
+        if (str == null) {
+            out.writeInt(-1);
+        } else {
+            final byte[] bytes = str.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    private static String readString(DataInput in) throws IOException {
+        final int len = in.readInt();
+        if (len == -1) {
+            return null;
+        }
+        final byte[] bytes = new byte[len];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    public String getMethod() {
+        return method;
+    }
+
+    public String getRequestURI() {
+        return requestURI;
+    }
+
+    public String getPathInfo() {
+        return pathInfo;
+    }
+
+    public String getQueryString() {
+        return queryString;
+    }
+
+    public String getContentType() {
+        return contentType;
+    }
+
+    public int getContentLength() {
+        return body.length;
+    }
+
+    /**
+     * Get the length of the body as it was read, which is never more than the limit it was read with.
+     *
+     * @return the body length
+     */
+    int getBodyLength() {
+        return body.length;
+    }
+
+    public String getCharacterEncoding() {
+        return characterEncoding;
+    }
+
+    public String getHeader(final String name) {
+        final List<String> values = headers.get(name);
+        return values == null || values.isEmpty() ? null : values.get(0);
+    }
+
+    public Enumeration<String> getHeaders(final String name) {
+        final List<String> values = headers.get(name);
+        return Collections.enumeration(values == null ? Collections.<String>emptyList() : values);
+    }
+
+    public Enumeration<String> getHeaderNames() {
+        return Collections.enumeration(new ArrayList<String>(headers.keySet()));
+    }
+
+    public ServletInputStream getInputStream() {
+        final ByteArrayInputStream is = new ByteArrayInputStream(body);
+        return new ServletInputStream() {
+            public int read() {
+                return is.read();
+            }
+
+            public int read(final byte[] b, final int off, final int len) {
+                return is.read(b, off, len);
+            }
+
+            public int available() {
+                return is.available();
+            }
+
+            public boolean isFinished() {
+                return is.available() == 0;
+            }
+
+            public boolean isReady() {
+                return true;
+            }
+
+            public void setReadListener(final ReadListener readListener) {
+                throw new IllegalStateException();
+            }
+        };
+    }
+
+    public BufferedReader getReader() throws IOException {
+        return new BufferedReader(new InputStreamReader(getInputStream(), characterEncoding == null ? "UTF-8" : characterEncoding));
+    }
+
+    /**
+     * Thrown when a request body is larger than the limit.
+     */
+    static final class TooLargeException extends IOException {
+        private static final long serialVersionUID = 6087240391125631934L;
+
+        TooLargeException() {
+            super("Request body too large");
+        }
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2014, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.bot.http;
+
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+/**
+ * A response for a request which has already been answered.  Anything written to it is discarded; it only
+ * remembers whether a handler claimed the request.
+ */
+final class DetachedResponse extends HttpServletResponseWrapper {
+
+    private volatile boolean committed;
+
+    DetachedResponse() {
+        super(unavailable(HttpServletResponse.class));
+    }
+
+    /**
+     * Get an instance of a servlet interface whose every method fails, to stand behind a wrapper which no longer
+     * has a live request or response to delegate to.
+     *
+     * @param type the interface type
+     * @param <T> the interface type
+     * @return the instance
+     */
+    static <T> T unavailable(final Class<T> type) {
+        return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] { type }, new InvocationHandler() {
+            public Object invoke(final Object proxy, final Method method, final Object[] args) {
+                switch (method.getName()) {
+                    case "equals": return Boolean.valueOf(proxy == args[0]);
+                    case "hashCode": return Integer.valueOf(System.identityHashCode(proxy));
+                    case "toString": return "detached " + type.getSimpleName();
+                    default: throw new IllegalStateException(method.getName() + " is not available after the request has completed");
+                }
+            }
+        }));
+    }
+
+    public void setStatus(final int sc) {
+    }
+
+    public void setContentLength(final int len) {
+    }
+
+    public void setContentType(final String type) {
+    }
+
+    public void setCharacterEncoding(final String charset) {
+    }
+
+    public void setHeader(final String name, final String value) {
+    }
+
+    public void addHeader(final String name, final String value) {
+    }
+
+    public void sendError(final int sc) {
+        committed = true;
+    }
+
+    public void flushBuffer() {
+        committed = true;
+    }
+
+    public boolean isCommitted() {
+        return committed;
+    }
+
+    public ServletOutputStream getOutputStream() {
+        return new ServletOutputStream() {
+            public void write(final int b) {
+                committed = true;
+            }
+
+            public void write(final byte[] b, final int off, final int len) {
+                committed = true;
+            }
+
+            public boolean isReady() {
+                return true;
+            }
+
+            public void setWriteListener(final WriteListener writeListener) {
+                throw new IllegalStateException();
+            }
+        };
+    }
+
+    public PrintWriter getWriter() {
+        return new PrintWriter(new OutputStream() {
+            public void write(final int b) {
+                committed = true;
+            }
+
+            public void write(final byte[] b, final int off, final int len) {
+                committed = true;
+            }
+        });
+    }
+}
@@ -22,26 +22,97 @@
 
 package org.jboss.bot.http;
 
+import java.io.File;
 import java.io.IOException;
 
+import com.flurg.thimbot.event.EventHandler;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import org.jboss.bot.Config;
 import org.jboss.bot.JBossBot;
+import org.jboss.logging.Logger;
 
 /**
+ * Passes requests down the handler chain.  Posts are webhook deliveries; they are read in full, journalled,
+ * acknowledged straight away and queued for the handlers, or refused with a retry hint if the queue is full.
+ *
  * @author <a href="mailto:david.lloyd@redhat.com">David M. Lloyd</a>
  */
 class HttpHttpHandler extends HttpServlet {
 
+    private static final Logger log = Logger.getLogger("org.jboss.bot.http");
+
     private final JBossBot bot;
+    private final WebhookJournal journal;
+    private final WebhookQueue queue;
 
     public HttpHttpHandler(final JBossBot bot) {
         this.bot = bot;
+        final Config config = bot.getConfig().node("webhook");
+        journal = openJournal(config);
+        queue = new WebhookQueue(bot.getThimBot(), config, journal);
+        bot.getMetrics().addSource(queue);
+        if (journal != null) bot.getMetrics().addSource(journal);
+        queue.replay();
+    }
+
+    private static WebhookJournal openJournal(Config config) {
+        if (! config.getBoolean("journal", true)) {
+            return null;
+        }
+        String dir = config.get("journal-dir", null);
+        if (dir == null) {
+            final String openshiftDataDir = System.getenv("OPENSHIFT_DATA_DIR");
+            if (openshiftDataDir == null) {
+                return null;
+            }
+            dir = openshiftDataDir + "/webhook-journal";
+        }
+        try {
+            return new WebhookJournal(new File(dir), config.getInt("journal-segment-size", 4 << 20));
+        } catch (IOException e) {
+            log.errorf(e, "Failed to open webhook journal in %s; accepted webhooks will not survive a restart", dir);
+            return null;
+        }
+    }
+
+    /**
+     * Get the handler which tells the queue when the bot is logged in to IRC.
+     *
+     * @return the handler
+     */
+    EventHandler getConnectionHandler() {
+        return queue.getConnectionHandler();
     }
 
     protected void service(final HttpServletRequest req, final HttpServletResponse resp) throws ServletException, IOException {
-        bot.getThimBot().dispatch(new HttpRequestEvent(bot.getThimBot(), req, resp));
+        if (! "POST".equalsIgnoreCase(req.getMethod())) {
+            bot.getThimBot().dispatch(new HttpRequestEvent(bot.getThimBot(), req, resp));
+            return;
+        }
+        final BufferedRequest bufferedRequest;
+        try {
+            bufferedRequest = new BufferedRequest(req, bot.getConfig().node("webhook").getLong("max-body-bytes", 8L << 20));
+        } catch (BufferedRequest.TooLargeException e) {
+            log.debugf("Rejected webhook to %s: body too large", req.getRequestURI());
+            resp.sendError(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE);
+            return;
+        }
+        if (queue.submit(bufferedRequest)) {
+            resp.setStatus(HttpServletResponse.SC_ACCEPTED);
+        } else {
+            resp.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            resp.setHeader("Retry-After", Integer.toString(queue.getRetryAfter()));
+        }
+        resp.setContentLength(0);
+        resp.flushBuffer();
+    }
+
+    public void destroy() {
+        bot.getMetrics().removeSource(queue);
+        if (journal != null) bot.getMetrics().removeSource(journal);
+        queue.shutdown();
     }
 }
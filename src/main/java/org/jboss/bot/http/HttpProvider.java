@@ -34,7 +34,11 @@ import org.mangosdk.spi.ProviderFor;
 public final class HttpProvider implements JBossBotServiceProvider {
 
     public void register(final JBossBot bot, final JBossBotServlet servlet) {
-        if (servlet != null) servlet.register(new HttpHttpHandler(bot));
+        if (servlet != null) {
+            final HttpHttpHandler handler = new HttpHttpHandler(bot);
+            bot.addEventHandler("http", handler.getConnectionHandler());
+            servlet.register(handler);
+        }
     }
 
     public int getPriority() {
@@ -22,6 +22,9 @@
 
 package org.jboss.bot.http;
 
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import com.flurg.thimbot.ThimBot;
 import com.flurg.thimbot.event.Event;
 import com.flurg.thimbot.event.EventHandler;
@@ -36,11 +39,26 @@ public class HttpRequestEvent extends Event {
 
     private final HttpServletRequest request;
     private final HttpServletResponse response;
+    private final Runnable completion;
+    private final AtomicInteger holds = new AtomicInteger(1);
 
     public HttpRequestEvent(final ThimBot bot, final HttpServletRequest request, final HttpServletResponse response) {
+        this(bot, request, response, null);
+    }
+
+    /**
+     * Construct a new instance.
+     *
+     * @param bot the bot
+     * @param request the request
+     * @param response the response
+     * @param completion run once the dispatch and every hold taken during it are over, or {@code null} for none
+     */
+    public HttpRequestEvent(final ThimBot bot, final HttpServletRequest request, final HttpServletResponse response, final Runnable completion) {
         super(bot);
         this.request = request;
         this.response = response;
+        this.completion = completion;
     }
 
     public HttpServletRequest getRequest() {
@@ -51,6 +69,46 @@ public class HttpRequestEvent extends Event {
         return response;
     }
 
+    /**
+     * Keep the request from being complete when its dispatch returns, for a handler which finishes handling it on
+     * another thread.  A journalled webhook stays pending until every hold is released.
+     *
+     * @return the hold, which must be released once the work is over, whether or not it succeeded
+     */
+    public Hold hold() {
+        holds.incrementAndGet();
+        return new Hold();
+    }
+
+    /**
+     * Release the hold of the dispatch itself.  Called by whoever dispatched the event once it returns.
+     */
+    void dispatched() {
+        release();
+    }
+
+    private void release() {
+        if (holds.decrementAndGet() == 0 && completion != null) {
+            completion.run();
+        }
+    }
+
+    public final class Hold {
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        Hold() {
+        }
+
+        /**
+         * Release the hold.  Only the first call has any effect.
+         */
+        public void release() {
+            if (released.compareAndSet(false, true)) {
+                HttpRequestEvent.this.release();
+            }
+        }
+    }
+
     public void dispatch(final EventHandlerContext context, final EventHandler handler) throws Exception {
         handler.handleEvent(context, this);
     }
@@ -0,0 +1,275 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2014, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.bot.http;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.jboss.bot.metrics.MetricsSource;
+import org.jboss.bot.metrics.MetricsWriter;
+import org.jboss.logging.Logger;
+
+/**
+ * An append-only journal of accepted webhook requests, so that requests which were accepted but not yet handled
+ * survive a restart.  The journal is a series of memory-mapped segment files, each named for the sequence number
+ * of its first entry.  An entry is a header followed by the serialized request:
+ * <pre>
+ *     int length | byte state | long sequence | request bytes...
+ * </pre>
+ * The length is written last, so a reader stops cleanly at an entry which was never finished.  Marking an entry
+ * done rewrites its state byte in place; once every entry of a segment other than the current one is done, the
+ * segment file is deleted.
+ */
+final class WebhookJournal implements MetricsSource {
+
+    private static final Logger log = Logger.getLogger("org.jboss.bot.http");
+
+    private static final String SUFFIX = ".seg";
+    private static final int HEADER_SIZE = 13;
+    private static final byte PENDING = 1;
+    private static final byte DONE = 2;
+
+    private final File dir;
+    private final int segmentSize;
+    private final Map<Long, Entry> pending = new HashMap<Long, Entry>();
+    private final List<Segment> segments = new ArrayList<Segment>();
+    private final List<Recovered> recovered = new ArrayList<Recovered>();
+    private Segment current;
+    private long nextSeq = 1;
+    private boolean closed;
+
+    WebhookJournal(final File dir, final int segmentSize) throws IOException {
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+        if (! dir.isDirectory() && ! dir.mkdirs()) {
+            throw new IOException("Cannot create journal directory " + dir);
+        }
+        final TreeMap<Long, File> files = new TreeMap<Long, File>();
+        final File[] list = dir.listFiles();
+        if (list != null) for (File file : list) {
+            final String name = file.getName();
+            if (name.endsWith(SUFFIX)) try {
+                files.put(Long.valueOf(Long.parseLong(name.substring(0, name.length() - SUFFIX.length()), 16)), file);
+            } catch (NumberFormatException ignored) {}
+        }
+        for (Map.Entry<Long, File> entry : files.entrySet()) {
+            nextSeq = Math.max(nextSeq, entry.getKey().longValue());
+            recover(entry.getValue());
+        }
+    }
+
+    private void recover(File file) throws IOException {
+        final Segment segment = new Segment(file, map(file, file.length()));
+        final MappedByteBuffer buffer = segment.buffer;
+        int pos = 0;
+        while (pos + HEADER_SIZE <= buffer.capacity()) {
+            final int length = buffer.getInt(pos);
+            if (length <= 0 || pos + HEADER_SIZE + length > buffer.capacity()) {
+                break;
+            }
+            final long seq = buffer.getLong(pos + 5);
+            nextSeq = Math.max(nextSeq, seq + 1);
+            if (buffer.get(pos + 4) == PENDING) {
+                final byte[] bytes = new byte[length];
+                final ByteBuffer dup = buffer.duplicate();
+                dup.position(pos + HEADER_SIZE);
+                dup.get(bytes);
+                try {
+                    recovered.add(new Recovered(seq, BufferedRequest.readFrom(new DataInputStream(new ByteArrayInputStream(bytes)))));
+                    pending.put(Long.valueOf(seq), new Entry(segment, pos));
+                    segment.pending ++;
+                } catch (IOException e) {
+                    log.warnf(e, "Discarding unreadable journal entry %d", Long.valueOf(seq));
+                }
+            }
+            pos += HEADER_SIZE + length;
+        }
+        if (segment.pending == 0) {
+            delete(segment);
+        } else {
+            segments.add(segment);
+        }
+    }
+
+    private static MappedByteBuffer map(File file, long size) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(size);
+            return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+    }
+
+    private void delete(Segment segment) {
+        if (! segment.file.delete()) {
+            log.warnf("Failed to delete journal segment %s", segment.file);
+        }
+    }
+
+    /**
+     * Take the requests which were still pending when the journal was opened.  They stay pending until they are
+     * marked {@link #done(long) done}.
+     *
+     * @return the sequence numbers and requests, oldest first
+     */
+    synchronized List<Recovered> takeRecovered() {
+        final List<Recovered> list = new ArrayList<Recovered>(recovered);
+        recovered.clear();
+        return list;
+    }
+
+    /**
+     * Append a request.
+     *
+     * @param req the request
+     * @return the sequence number of the new entry
+     * @throws IOException if the entry could not be written
+     */
+    long append(BufferedRequest req) throws IOException {
+        final ByteArrayOutputStream os = new ByteArrayOutputStream(req.getBodyLength() + 512);
+        req.writeTo(new DataOutputStream(os));
+        final byte[] bytes = os.toByteArray();
+        synchronized (this) {
+            if (closed) {
+                throw new IOException("Journal is closed");
+            }
+            final int size = HEADER_SIZE + bytes.length;
+            Segment segment = current;
+            if (segment == null || segment.position + size > segment.buffer.capacity()) {
+                if (segment != null && segment.pending == 0) {
+                    segments.remove(segment);
+                    delete(segment);
+                }
+                final File file = new File(dir, String.format("%016x%s", Long.valueOf(nextSeq), SUFFIX));
+                current = segment = new Segment(file, map(file, Math.max(segmentSize, size)));
+                segments.add(segment);
+            }
+            final long seq = nextSeq ++;
+            final MappedByteBuffer buffer = segment.buffer;
+            final int pos = segment.position;
+            buffer.put(pos + 4, PENDING);
+            buffer.putLong(pos + 5, seq);
+            final ByteBuffer dup = buffer.duplicate();
+            dup.position(pos + HEADER_SIZE);
+            dup.put(bytes);
+            buffer.putInt(pos, bytes.length);
+            segment.position = pos + size;
+            segment.pending ++;
+            pending.put(Long.valueOf(seq), new Entry(segment, pos));
+            return seq;
+        }
+    }
+
+    /**
+     * Mark an entry done, so that it is not replayed.
+     *
+     * @param seq the sequence number of the entry
+     */
+    synchronized void done(long seq) {
+        if (closed) {
+            return;
+        }
+        final Entry entry = pending.remove(Long.valueOf(seq));
+        if (entry == null) {
+            return;
+        }
+        final Segment segment = entry.segment;
+        segment.buffer.put(entry.position + 4, DONE);
+        if (-- segment.pending == 0 && segment != current) {
+            segments.remove(segment);
+            delete(segment);
+        }
+    }
+
+    synchronized int getPendingCount() {
+        return pending.size();
+    }
+
+    synchronized int getSegmentCount() {
+        return segments.size();
+    }
+
+    public void writeMetrics(final MetricsWriter writer) {
+        writer.family("jbossbot_webhook_journal_pending", "gauge", "Journalled webhook requests not yet handled.");
+        writer.sample("jbossbot_webhook_journal_pending", getPendingCount());
+        writer.family("jbossbot_webhook_journal_segments", "gauge", "Journal segment files in use.");
+        writer.sample("jbossbot_webhook_journal_segments", getSegmentCount());
+    }
+
+    /**
+     * Flush the journal to disk and stop accepting entries.  Entries still pending will be replayed when the
+     * journal is next opened.
+     */
+    synchronized void close() {
+        closed = true;
+        for (Segment segment : segments) {
+            segment.buffer.force();
+        }
+        segments.clear();
+        pending.clear();
+        current = null;
+    }
+
+    static final class Recovered {
+        final long seq;
+        final BufferedRequest request;
+
+        Recovered(final long seq, final BufferedRequest request) {
+            this.seq = seq;
+            this.request = request;
+        }
+    }
+
+    static final class Segment {
+        final File file;
+        final MappedByteBuffer buffer;
+        int position;
+        int pending;
+
+        Segment(final File file, final MappedByteBuffer buffer) {
+            this.file = file;
+            this.buffer = buffer;
+        }
+    }
+
+    static final class Entry {
+        final Segment segment;
+        final int position;
+
+        Entry(final Segment segment, final int position) {
+            this.segment = segment;
+            this.position = position;
+        }
+    }
+}
@@ -0,0 +1,236 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2014, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.bot.http;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.flurg.thimbot.ThimBot;
+import com.flurg.thimbot.event.DisconnectEvent;
+import com.flurg.thimbot.event.EventHandler;
+import com.flurg.thimbot.event.EventHandlerContext;
+import com.flurg.thimbot.event.LoggedInEvent;
+import org.jboss.bot.Config;
+import org.jboss.bot.metrics.Histogram;
+import org.jboss.bot.metrics.MetricsSource;
+import org.jboss.bot.metrics.MetricsWriter;
+import org.jboss.logging.Logger;
+
+/**
+ * A bounded queue of webhook requests, dispatched to the handlers by a small pool of worker threads so that
+ * bursts of deliveries never hold container threads.  Workers only dispatch while the bot is logged in to IRC;
+ * while it is not, requests wait on the queue and, once it fills, further deliveries are refused.  If there is
+ * a journal, each request is journalled when it is accepted and marked done once it has been dispatched and any
+ * work a handler held it open for is over.
+ */
+final class WebhookQueue implements MetricsSource {
+
+    private static final Logger log = Logger.getLogger("org.jboss.bot.http");
+
+    private final ThimBot bot;
+    private final WebhookJournal journal;
+    private final ThreadPoolExecutor executor;
+    private final int retryAfter;
+    private final Histogram lag = new Histogram();
+    private final AtomicLong processed = new AtomicLong();
+    private final AtomicLong unhandled = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final Object onlineLock = new Object();
+    private boolean online;
+    private final EventHandler connectionHandler = new EventHandler() {
+        public void handleEvent(final EventHandlerContext context, final LoggedInEvent event) throws Exception {
+            setOnline(true);
+            super.handleEvent(context, event);
+        }
+
+        public void handleEvent(final EventHandlerContext context, final DisconnectEvent event) throws Exception {
+            setOnline(false);
+            super.handleEvent(context, event);
+        }
+    };
+
+    WebhookQueue(final ThimBot bot, final Config config, final WebhookJournal journal) {
+        this.bot = bot;
+        this.journal = journal;
+        final int threads = config.getInt("threads", 4);
+        executor = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(config.getInt("queue-size", 64)), new ThreadFactory() {
+            private final AtomicInteger idx = new AtomicInteger(1);
+
+            public Thread newThread(final Runnable r) {
+                final Thread thread = new Thread(r, "JBossBot Webhook Thread " + idx.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        executor.allowCoreThreadTimeOut(true);
+        retryAfter = config.getInt("retry-after", 30);
+    }
+
+    /**
+     * Queue a request for dispatch.
+     *
+     * @param req the buffered request
+     * @return {@code true} if the request was queued, {@code false} if the queue is full
+     */
+    boolean submit(final BufferedRequest req) {
+        long seq = -1L;
+        if (journal != null) try {
+            seq = journal.append(req);
+        } catch (IOException e) {
+            log.warnf(e, "Failed to journal %s", req.getRequestURI());
+        }
+        if (submit(req, seq)) {
+            return true;
+        }
+        if (seq != -1L) journal.done(seq);
+        rejected.incrementAndGet();
+        log.warnf("Webhook queue full, refusing %s", req.getRequestURI());
+        return false;
+    }
+
+    private boolean submit(final BufferedRequest req, final long seq) {
+        final long queued = System.nanoTime();
+        try {
+            executor.execute(new Runnable() {
+                public void run() {
+                    try {
+                        awaitOnline();
+                    } catch (InterruptedException e) {
+                        // shutting down; it stays in the journal
+                        return;
+                    }
+                    lag.record(System.nanoTime() - queued);
+                    final DetachedResponse resp = new DetachedResponse();
+                    final HttpRequestEvent event = new HttpRequestEvent(bot, req, resp, seq == -1L ? null : new Runnable() {
+                        public void run() {
+                            journal.done(seq);
+                        }
+                    });
+                    try {
+                        bot.dispatch(event);
+                    } catch (Throwable t) {
+                        log.errorf(t, "Webhook %s failed", req.getRequestURI());
+                    } finally {
+                        processed.incrementAndGet();
+                        event.dispatched();
+                    }
+                    if (! resp.isCommitted()) {
+                        unhandled.incrementAndGet();
+                        log.debugf("No handler for %s %s", req.getMethod(), req.getRequestURI());
+                    }
+                }
+            });
+            return true;
+        } catch (RejectedExecutionException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Queue the requests left pending in the journal by an earlier run.  They are fed in as the queue has room,
+     * on a thread of their own.
+     */
+    void replay() {
+        if (journal == null) {
+            return;
+        }
+        final List<WebhookJournal.Recovered> list = journal.takeRecovered();
+        if (list.isEmpty()) {
+            return;
+        }
+        log.infof("Replaying %d journalled webhook requests", Integer.valueOf(list.size()));
+        final Thread thread = new Thread(new Runnable() {
+            public void run() {
+                for (WebhookJournal.Recovered recovered : list) {
+                    while (! submit(recovered.request, recovered.seq)) {
+                        if (executor.isShutdown()) {
+                            return;
+                        }
+                        try {
+                            Thread.sleep(250L);
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+                }
+            }
+        }, "JBossBot Webhook Replay Thread");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    EventHandler getConnectionHandler() {
+        return connectionHandler;
+    }
+
+    void setOnline(boolean online) {
+        synchronized (onlineLock) {
+            this.online = online;
+            onlineLock.notifyAll();
+        }
+    }
+
+    private void awaitOnline() throws InterruptedException {
+        synchronized (onlineLock) {
+            while (! online) {
+                onlineLock.wait();
+            }
+        }
+    }
+
+    /**
+     * Get the number of seconds a refused sender should wait before trying again.
+     *
+     * @return the number of seconds
+     */
+    int getRetryAfter() {
+        return retryAfter;
+    }
+
+    public void writeMetrics(final MetricsWriter writer) {
+        writer.family("jbossbot_webhook_queue_depth", "gauge", "Webhook requests waiting for a worker.");
+        writer.sample("jbossbot_webhook_queue_depth", executor.getQueue().size());
+        writer.family("jbossbot_webhook_active", "gauge", "Webhook requests being handled.");
+        writer.sample("jbossbot_webhook_active", executor.getActiveCount());
+        writer.family("jbossbot_webhook_processed_total", "counter", "Webhook requests handled.");
+        writer.sample("jbossbot_webhook_processed_total", processed.get());
+        writer.family("jbossbot_webhook_unhandled_total", "counter", "Webhook requests which no handler claimed.");
+        writer.sample("jbossbot_webhook_unhandled_total", unhandled.get());
+        writer.family("jbossbot_webhook_rejected_total", "counter", "Webhook requests refused because the queue was full.");
+        writer.sample("jbossbot_webhook_rejected_total", rejected.get());
+        writer.family("jbossbot_webhook_lag_seconds", "histogram", "Time from acceptance of a webhook request until a worker picks it up.");
+        writer.histogram("jbossbot_webhook_lag_seconds", lag);
+    }
+
+    void shutdown() {
+        executor.shutdownNow();
+        if (journal != null) journal.close();
+    }
+}
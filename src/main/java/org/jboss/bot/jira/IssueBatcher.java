@@ -0,0 +1,157 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2014, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.bot.jira;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.jboss.bot.Config;
+
+/**
+ * Groups issue lookups bound for the same server into batches, so that all the keys in a message, and in messages
+ * arriving within a short window of it, are resolved with one search request.  The first caller to need a batch
+ * waits out the window and then runs it; later callers join the open batch and wait for its results.
+ */
+final class IssueBatcher {
+
+    interface Search {
+
+        /**
+         * Look up several issues at once.
+         *
+         * @param server the server URL
+         * @param keys the issue keys
+         * @return the issues found, keyed by the requested key; keys which are absent do not exist
+         * @throws IOException if the lookup failed
+         */
+        Map<String, JiraMessageHandler.IssueInfo> search(String server, List<String> keys) throws IOException;
+    }
+
+    private final Search search;
+    private final long window;
+    private final int maxKeys;
+    private final Map<String, Batch> open = new HashMap<String, Batch>();
+
+    IssueBatcher(final Search search, final Config config) {
+        this.search = search;
+        window = config.getLong("window-ms", 25L);
+        maxKeys = Math.max(1, config.getInt("max-keys", 50));
+    }
+
+    /**
+     * Resolve some issues, together with whatever else is being resolved on the same server.
+     *
+     * @param server the server URL
+     * @param keys the issue keys
+     * @return the issues found, keyed by issue key; keys which are absent do not exist
+     * @throws IOException if the lookup failed
+     */
+    Map<String, JiraMessageHandler.IssueInfo> resolve(final String server, final Collection<String> keys) throws IOException {
+        final List<Batch> joined = new ArrayList<Batch>();
+        final List<Batch> leading = new ArrayList<Batch>();
+        synchronized (open) {
+            for (String key : keys) {
+                Batch batch = open.get(server);
+                if (batch == null) {
+                    open.put(server, batch = new Batch());
+                    leading.add(batch);
+                }
+                batch.keys.add(key);
+                if (! joined.contains(batch)) {
+                    joined.add(batch);
+                }
+                if (batch.keys.size() >= maxKeys) {
+                    // full; the next key starts a new one
+                    open.remove(server);
+                }
+            }
+        }
+        if (! leading.isEmpty() && window > 0) try {
+            Thread.sleep(window);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (Batch batch : leading) {
+            synchronized (open) {
+                if (open.get(server) == batch) {
+                    open.remove(server);
+                }
+            }
+            batch.run(server);
+        }
+        final Map<String, JiraMessageHandler.IssueInfo> results = new HashMap<String, JiraMessageHandler.IssueInfo>();
+        for (Batch batch : joined) {
+            results.putAll(batch.await());
+        }
+        return results;
+    }
+
+    final class Batch {
+        final Set<String> keys = new LinkedHashSet<String>();
+        private boolean done;
+        private Map<String, JiraMessageHandler.IssueInfo> results;
+        private IOException failure;
+
+        void run(String server) {
+            Map<String, JiraMessageHandler.IssueInfo> results = null;
+            IOException failure = null;
+            try {
+                final List<String> list;
+                synchronized (open) {
+                    list = new ArrayList<String>(keys);
+                }
+                results = search.search(server, list);
+            } catch (IOException e) {
+                failure = e;
+            } catch (RuntimeException e) {
+                failure = new IOException(e);
+            }
+            synchronized (this) {
+                this.results = results;
+                this.failure = failure;
+                done = true;
+                notifyAll();
+            }
+        }
+
+        synchronized Map<String, JiraMessageHandler.IssueInfo> await() throws IOException {
+            while (! done) try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting for issue lookup");
+            }
+            if (failure != null) {
+                throw failure;
+            }
+            return results;
+        }
+    }
+}
@@ -0,0 +1,370 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2014, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.bot.jira;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jboss.bot.Config;
+import org.jboss.bot.LookupExecutor;
+import org.jboss.bot.metrics.MetricsSource;
+import org.jboss.bot.metrics.MetricsWriter;
+import org.jboss.logging.Logger;
+
+/**
+ * A bounded cache of issue lookups.  An entry is fresh for the TTL; after that, and up to the stale limit, it is
+ * still served straight away while a refresh runs in the background.  Issues which do not exist, or which are
+ * redirects, are cached too, for the shorter negative TTL.  Failed lookups are not cached.  Concurrent lookups
+ * of the same issue share one request and its result.
+ */
+final class IssueCache implements MetricsSource {
+
+    private static final Logger log = Logger.getLogger("org.jboss.bot.jira");
+
+    interface Loader {
+
+        /**
+         * Look an issue up.
+         *
+         * @param server the server URL
+         * @param key the issue key
+         * @return the issue, or {@code null} if it does not exist
+         * @throws IOException if the lookup failed
+         */
+        JiraMessageHandler.IssueInfo load(String server, String key) throws IOException;
+
+        /**
+         * Look several issues up.
+         *
+         * @param server the server URL
+         * @param keys the issue keys
+         * @return the issues found, keyed by issue key; keys which are absent do not exist
+         * @throws IOException if the lookup failed
+         */
+        Map<String, JiraMessageHandler.IssueInfo> loadAll(String server, List<String> keys) throws IOException;
+    }
+
+    private final Loader loader;
+    private final LookupExecutor executor;
+    private final long ttl;
+    private final long negativeTtl;
+    private final long staleLimit;
+    private final Map<JiraMessageHandler.Key, CachedIssue> entries;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong staleHits = new AtomicLong();
+    private final AtomicLong negativeHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong refreshes = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+    private final ConcurrentMap<JiraMessageHandler.Key, Flight> inFlight = new ConcurrentHashMap<JiraMessageHandler.Key, Flight>();
+
+    IssueCache(final Loader loader, final LookupExecutor executor, final Config config) {
+        this.loader = loader;
+        this.executor = executor;
+        ttl = TimeUnit.SECONDS.toNanos(config.getLong("ttl-s", 300L));
+        negativeTtl = TimeUnit.SECONDS.toNanos(config.getLong("negative-ttl-s", 60L));
+        staleLimit = TimeUnit.SECONDS.toNanos(config.getLong("stale-s", 3600L));
+        final int maxSize = config.getInt("max-size", 4096);
+        entries = new LinkedHashMap<JiraMessageHandler.Key, CachedIssue>(64, 0.75f, true) {
+            protected boolean removeEldestEntry(final Map.Entry<JiraMessageHandler.Key, CachedIssue> eldest) {
+                if (size() > maxSize) {
+                    evictions.incrementAndGet();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Get an issue, looking it up if there is no usable entry.
+     *
+     * @param server the server URL
+     * @param key the issue key
+     * @return the issue, or {@code null} if it does not exist
+     * @throws IOException if a lookup was needed and failed
+     */
+    JiraMessageHandler.IssueInfo get(final String server, final String key) throws IOException {
+        final JiraMessageHandler.Key cacheKey = new JiraMessageHandler.Key(server, key);
+        final CachedIssue entry = usable(cacheKey);
+        return entry != null ? entry.info : load(cacheKey);
+    }
+
+    /**
+     * Get several issues, looking up all of those without a usable entry together.
+     *
+     * @param server the server URL
+     * @param keys the issue keys
+     * @return a map with an entry for every key, in the order given, whose value is {@code null} for an issue
+     *      which does not exist
+     * @throws IOException if a lookup was needed and failed
+     */
+    Map<String, JiraMessageHandler.IssueInfo> getAll(final String server, final List<String> keys) throws IOException {
+        final Map<String, JiraMessageHandler.IssueInfo> results = new LinkedHashMap<String, JiraMessageHandler.IssueInfo>();
+        final List<String> missing = new ArrayList<String>();
+        for (String key : keys) {
+            final CachedIssue entry = usable(new JiraMessageHandler.Key(server, key));
+            // a placeholder holds the place of a missing key in the order
+            results.put(key, entry == null ? null : entry.info);
+            if (entry == null) {
+                missing.add(key);
+            }
+        }
+        if (missing.isEmpty()) {
+            return results;
+        }
+        final Map<String, Flight> joined = new LinkedHashMap<String, Flight>();
+        final Map<JiraMessageHandler.Key, Flight> leading = new LinkedHashMap<JiraMessageHandler.Key, Flight>();
+        for (String key : missing) {
+            final JiraMessageHandler.Key cacheKey = new JiraMessageHandler.Key(server, key);
+            final Flight flight = new Flight();
+            final Flight existing = inFlight.putIfAbsent(cacheKey, flight);
+            if (existing == null) {
+                leading.put(cacheKey, flight);
+            } else {
+                coalesced.incrementAndGet();
+                joined.put(key, existing);
+            }
+        }
+        if (! leading.isEmpty()) {
+            final List<String> leadingKeys = new ArrayList<String>(leading.size());
+            for (JiraMessageHandler.Key cacheKey : leading.keySet()) {
+                leadingKeys.add(cacheKey.getKey());
+            }
+            try {
+                final Map<String, JiraMessageHandler.IssueInfo> loaded = loader.loadAll(server, leadingKeys);
+                synchronized (entries) {
+                    for (Map.Entry<JiraMessageHandler.Key, Flight> entry : leading.entrySet()) {
+                        // keys absent from the results do not exist, and are cached as such
+                        final String key = entry.getKey().getKey();
+                        final JiraMessageHandler.IssueInfo info = loaded.get(key);
+                        entries.put(entry.getKey(), new CachedIssue(info));
+                        entry.getValue().complete(info, null);
+                        results.put(key, info);
+                    }
+                }
+            } finally {
+                for (Map.Entry<JiraMessageHandler.Key, Flight> entry : leading.entrySet()) {
+                    // no-op if already completed
+                    entry.getValue().complete(null, new IOException("Lookup of " + entry.getKey().getKey() + " failed"));
+                    inFlight.remove(entry.getKey(), entry.getValue());
+                }
+            }
+        }
+        for (Map.Entry<String, Flight> entry : joined.entrySet()) {
+            results.put(entry.getKey(), entry.getValue().await());
+        }
+        return results;
+    }
+
+    /**
+     * Get the entry for an issue if it may be served, counting the outcome.
+     *
+     * @param cacheKey the cache key
+     * @return the entry, or {@code null} if the issue must be looked up
+     */
+    private CachedIssue usable(final JiraMessageHandler.Key cacheKey) {
+        final CachedIssue entry;
+        synchronized (entries) {
+            entry = entries.get(cacheKey);
+        }
+        if (entry != null) {
+            final long age = System.nanoTime() - entry.fetched;
+            if (entry.info == null || entry.info.isRedirect()) {
+                if (age < negativeTtl) {
+                    negativeHits.incrementAndGet();
+                    return entry;
+                }
+            } else if (age < ttl) {
+                hits.incrementAndGet();
+                return entry;
+            } else if (age < staleLimit) {
+                staleHits.incrementAndGet();
+                refreshInBackground(cacheKey, entry);
+                return entry;
+            }
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Look an issue up now, whatever is cached, and cache the result.
+     *
+     * @param server the server URL
+     * @param key the issue key
+     * @return the issue, or {@code null} if it does not exist
+     * @throws IOException if the lookup failed
+     */
+    JiraMessageHandler.IssueInfo refresh(final String server, final String key) throws IOException {
+        refreshes.incrementAndGet();
+        return load(new JiraMessageHandler.Key(server, key));
+    }
+
+    /**
+     * Cache an issue obtained some other way.
+     *
+     * @param server the server URL
+     * @param key the issue key
+     * @param info the issue
+     */
+    void put(final String server, final String key, final JiraMessageHandler.IssueInfo info) {
+        synchronized (entries) {
+            entries.put(new JiraMessageHandler.Key(server, key), new CachedIssue(info));
+        }
+    }
+
+    /**
+     * Forget an issue.
+     *
+     * @param server the server URL
+     * @param key the issue key
+     */
+    void evict(final String server, final String key) {
+        synchronized (entries) {
+            entries.remove(new JiraMessageHandler.Key(server, key));
+        }
+    }
+
+    private JiraMessageHandler.IssueInfo load(final JiraMessageHandler.Key cacheKey) throws IOException {
+        final Flight flight = new Flight();
+        final Flight existing = inFlight.putIfAbsent(cacheKey, flight);
+        if (existing != null) {
+            coalesced.incrementAndGet();
+            return existing.await();
+        }
+        IOException failure = null;
+        try {
+            final JiraMessageHandler.IssueInfo info = loader.load(cacheKey.getServer(), cacheKey.getKey());
+            synchronized (entries) {
+                entries.put(cacheKey, new CachedIssue(info));
+            }
+            flight.complete(info, null);
+            return info;
+        } catch (IOException e) {
+            failure = e;
+            throw e;
+        } finally {
+            flight.complete(null, failure != null ? failure : new IOException("Lookup of " + cacheKey.getKey() + " failed"));
+            inFlight.remove(cacheKey, flight);
+        }
+    }
+
+    private void refreshInBackground(final JiraMessageHandler.Key cacheKey, final CachedIssue entry) {
+        synchronized (entry) {
+            if (entry.refreshing) {
+                return;
+            }
+            entry.refreshing = true;
+        }
+        refreshes.incrementAndGet();
+        final boolean accepted = executor.execute("jira refresh", new Runnable() {
+            public void run() {
+                try {
+                    load(cacheKey);
+                } catch (IOException e) {
+                    log.debugf(e, "Failed to refresh %s", cacheKey.getKey());
+                    synchronized (entry) {
+                        entry.refreshing = false;
+                    }
+                }
+            }
+        });
+        if (! accepted) {
+            synchronized (entry) {
+                entry.refreshing = false;
+            }
+        }
+    }
+
+    public void writeMetrics(final MetricsWriter writer) {
+        final int size;
+        synchronized (entries) {
+            size = entries.size();
+        }
+        writer.family("jbossbot_jira_cache_size", "gauge", "Issues in the Jira cache.");
+        writer.sample("jbossbot_jira_cache_size", size);
+        writer.family("jbossbot_jira_cache_requests_total", "counter", "Jira cache requests by outcome.");
+        writer.sample("jbossbot_jira_cache_requests_total", hits.get(), "result", "hit");
+        writer.sample("jbossbot_jira_cache_requests_total", staleHits.get(), "result", "stale");
+        writer.sample("jbossbot_jira_cache_requests_total", negativeHits.get(), "result", "negative");
+        writer.sample("jbossbot_jira_cache_requests_total", misses.get(), "result", "miss");
+        writer.family("jbossbot_jira_cache_refreshes_total", "counter", "Jira cache entries refreshed.");
+        writer.sample("jbossbot_jira_cache_refreshes_total", refreshes.get());
+        writer.family("jbossbot_jira_cache_evictions_total", "counter", "Jira cache entries evicted to make room.");
+        writer.sample("jbossbot_jira_cache_evictions_total", evictions.get());
+        writer.family("jbossbot_jira_cache_coalesced_total", "counter", "Jira lookups which joined one already in progress.");
+        writer.sample("jbossbot_jira_cache_coalesced_total", coalesced.get());
+    }
+
+    /**
+     * A lookup in progress, which other callers wanting the same issue wait for.
+     */
+    static final class Flight {
+        private boolean done;
+        private JiraMessageHandler.IssueInfo info;
+        private IOException failure;
+
+        synchronized void complete(final JiraMessageHandler.IssueInfo info, final IOException failure) {
+            if (done) {
+                return;
+            }
+            this.info = info;
+            this.failure = failure;
+            done = true;
+            notifyAll();
+        }
+
+        synchronized JiraMessageHandler.IssueInfo await() throws IOException {
+            while (! done) try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting for issue lookup");
+            }
+            if (failure != null) {
+                throw failure;
+            }
+            return info;
+        }
+    }
+
+    static final class CachedIssue {
+        final JiraMessageHandler.IssueInfo info;
+        final long fetched = System.nanoTime();
+        boolean refreshing;
+
+        CachedIssue(final JiraMessageHandler.IssueInfo info) {
+            this.info = info;
+        }
+    }
+}
@@ -23,34 +23,40 @@
 package org.jboss.bot.jira;
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.net.HttpURLConnection;
+import java.io.InterruptedIOException;
+import java.io.InputStreamReader;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
-import java.util.prefs.BackingStoreException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 import java.util.prefs.Preferences;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
-import com.flurg.thimbot.Priority;
 import com.flurg.thimbot.event.ChannelActionEvent;
 import com.flurg.thimbot.event.ChannelEvent;
 import com.flurg.thimbot.event.ChannelMessageEvent;
-import com.flurg.thimbot.event.CommonEvent;
 import com.flurg.thimbot.event.Event;
 import com.flurg.thimbot.event.EventHandler;
 import com.flurg.thimbot.event.EventHandlerContext;
@@ -66,10 +72,16 @@ import com.flurg.thimbot.event.TextEvent;
 import com.zwitserloot.json.JSON;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import org.jboss.bot.Config;
+import org.jboss.bot.HttpClient;
+import org.jboss.bot.DuplicateSuppressor;
 import org.jboss.bot.IrcStringBuilder;
 import org.jboss.bot.JBossBot;
-import org.jboss.bot.JBossBotUtils;
 import org.jboss.bot.JSONServletUtil;
+import org.jboss.bot.LimitedInputStream;
+import org.jboss.bot.LookupExecutor;
+import org.jboss.bot.OutboundScheduler;
+import org.jboss.bot.ReferenceScanner;
 import org.jboss.bot.http.HttpRequestEvent;
 import org.jboss.bot.url.AbstractURLEvent;
 import org.jboss.logging.Logger;
@@ -86,13 +98,72 @@ public final class JiraMessageHandler extends EventHandler {
 
     private static final Pattern JIRA_KEY = Pattern.compile("\\b([A-Z]{2}[A-Z0-9]*)-\\d+");
 
-    private final ConcurrentMap<String, Map<String, CommonEvent>> events = new ConcurrentHashMap<String, Map<String, CommonEvent>>();
+    private static final Set<String> DEFAULT_IGNORED = Collections.singleton("JSR");
+
+    /**
+     * The elements of an item which must all be seen before the rest of it may be skipped.
+     */
+    private static final Set<Element> REQUIRED_ELEMENTS = EnumSet.of(Element.KEY, Element.SUMMARY, Element.STATUS, Element.PRIORITY, Element.ASSIGNEE, Element.LINK, Element.TYPE, Element.RESOLUTION);
+
+    private static final XMLInputFactory XML_INPUT_FACTORY;
+
+    static {
+        final XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+        XML_INPUT_FACTORY = factory;
+    }
+
+    /**
+     * The fields the REST API is asked for, which are those {@link #formatIssue} needs.
+     */
+    private static final String REST_FIELDS = "summary,status,priority,assignee,issuetype,components,resolution";
+
+    /**
+     * The fields {@link #formatIssue} needs, which are all a search is asked for.
+     */
+    private static final String[] SEARCH_FIELDS = { "key", "summary", "status", "priority", "assignee", "link", "type", "component", "resolution" };
+
     private final HandlerKey<RecursionState> handlerKey = new HandlerKey<RecursionState>();
 
     private final JBossBot bot;
+    private final IssueCache cache;
+    private final IssueBatcher batcher;
+    private final ProjectIndex projectIndex;
+    private final ProjectDiscovery projectDiscovery;
+    private final ConcurrentMap<String, Semaphore> serverPermits = new ConcurrentHashMap<String, Semaphore>();
+    // servers whose REST API failed, and when to try it again
+    private final ConcurrentMap<String, Long> restRetry = new ConcurrentHashMap<String, Long>();
 
     public JiraMessageHandler(final JBossBot bot) {
         this.bot = bot;
+        batcher = new IssueBatcher(new IssueBatcher.Search() {
+            public Map<String, IssueInfo> search(final String server, final List<String> keys) throws IOException {
+                return JiraMessageHandler.this.search(server, keys);
+            }
+        }, bot.getConfig().node("jira/batch"));
+        cache = new IssueCache(new IssueCache.Loader() {
+            public IssueInfo load(final String server, final String key) throws IOException {
+                return lookup(server, key);
+            }
+
+            public Map<String, IssueInfo> loadAll(final String server, final List<String> keys) throws IOException {
+                return batcher.resolve(server, keys);
+            }
+        }, bot.getLookupExecutor(), bot.getConfig().node("jira/cache"));
+        bot.getMetrics().addSource(cache);
+        projectIndex = new ProjectIndex(new ProjectIndex.Loader() {
+            public Set<String> loadProjects(final String server) throws IOException {
+                return listProjects(server);
+            }
+        }, bot.getLookupExecutor());
+        bot.getMetrics().addSource(projectIndex);
+        // discovered owners are kept outside the configuration tree, which is snapshotted on every change
+        projectDiscovery = new ProjectDiscovery(new ProjectDiscovery.Probe() {
+            public boolean hasProject(final String server, final String project) throws IOException {
+                return JiraMessageHandler.this.hasProject(server, project);
+            }
+        }, bot.getLookupExecutor(), Preferences.userRoot().node("jbossbot-state/jira/discovered"), bot.getConfig().node("jira/discovery"));
+        bot.getMetrics().addSource(projectDiscovery);
     }
 
     static final class Key {
@@ -152,11 +223,7 @@ public final class JiraMessageHandler extends EventHandler {
     }
 
     private <E extends TextEvent & MessageRespondableEvent> void doHandle(final EventHandlerContext context, final E event) throws Exception {
-        Matcher matcher = JIRA_KEY.matcher(event.getText());
-        List<String> keys = new ArrayList<>();
-        while (matcher.find()) {
-            keys.add(matcher.group());
-        }
+        final List<String> keys = ReferenceScanner.scan(context, event.getText()).getJiraKeys();
         if (keys.isEmpty()) return;
         processKeys(context, event, keys);
     }
@@ -177,7 +244,13 @@ public final class JiraMessageHandler extends EventHandler {
             }
             final JSON payload = jsonRequest.getBody();
             try {
-                createdNote(bot, context, payload.get("issue").get("key").asString());
+                createdNote(bot, context, (HttpRequestEvent) event, payload.get("issue"));
+                final JSON webhookEventNode = payload.get("webhookEvent");
+                final String webhookEvent = webhookEventNode.exists() && ! webhookEventNode.isNull() ? webhookEventNode.asString() : null;
+                if ("jira:issue_updated".equals(webhookEvent) || "jira:issue_deleted".equals(webhookEvent)) {
+                    // after createdNote, which caches the payload's copy as it is
+                    updatedNote(payload, "jira:issue_deleted".equals(webhookEvent));
+                }
             } catch (Exception e) {
                 e.printStackTrace();
             }
@@ -218,24 +291,40 @@ public final class JiraMessageHandler extends EventHandler {
         return key.substring(0, key.indexOf('-'));
     }
 
-    void processKeys(final EventHandlerContext context, final MessageRespondableEvent event, List<String> keys) throws BackingStoreException, IOException {
-        final Preferences jiraNode = event.getBot().getPreferences().node("jira");
-        final Set<String> ignored = new HashSet<String>(Arrays.asList(jiraNode.get("ignored", "JSR").split(",\\s*")));
-        final Preferences projectsNode = jiraNode.node("projects");
+    void processKeys(final EventHandlerContext context, final MessageRespondableEvent event, List<String> keys) throws IOException {
+        final Config jiraNode = bot.getConfig().node("jira");
+        final Set<String> ignored = jiraNode.getSet("ignored", DEFAULT_IGNORED);
+        final Config projectsNode = jiraNode.node("projects");
+        final Config discoveryNode = jiraNode.node("discovery");
+        final boolean discovering = discoveryNode.getBoolean("enabled", false);
+        final DuplicateSuppressor suppressor = bot.getDuplicateSuppressor();
+        final long dupeTime = jiraNode.getLong("duplicate-ms", 15000L);
         String project;
-        Preferences projectNode;
+        Config projectNode;
         String url;
+        // keys to resolve, in mention order, with the server of each
+        final Map<String, String> found = new LinkedHashMap<String, String>();
+        // keys whose server has to be discovered first
+        final Set<String> undiscovered = new HashSet<String>();
         for (String key : keys) {
             project = projectFor(key);
             if (ignored.contains(project)) {
                 continue;
             }
-            if (projectsNode.nodeExists(project)) {
+            boolean discover = false;
+            if (projectsNode.hasNode(project)) {
                 projectNode = projectsNode.node(project);
+                url = projectNode.get("url", null);
             } else {
                 projectNode = jiraNode.node("default");
+                url = discovering ? projectDiscovery.ownerOf(project, jiraNode) : null;
+                if (url == null && discovering) {
+                    if (projectDiscovery.isUnknown(project, discoveryNode)) {
+                        continue;
+                    }
+                    discover = true;
+                }
             }
-            url = projectNode.get("url", null);
             if (url == null) {
                 url = jiraNode.node("default").get("url", null);
                 if (url == null) {
@@ -245,62 +334,179 @@ public final class JiraMessageHandler extends EventHandler {
             if (! url.endsWith("/")) {
                 url += "/";
             }
+            if (! projectsNode.hasNode(project) && ! discover && ! projectIndex.mayExist(url, project, jiraNode.node("index"))) {
+                // looks like a key, but there is no such project
+                continue;
+            }
             RecursionState state = context.getContextValue(handlerKey);
             if (state == null) context.putContextValue(handlerKey, state = new RecursionState());
             final ArrayList<String> writeTargets = new ArrayList<>();
             if (state.add(key)) {
                 // new item
-                final ConcurrentMap<String, Map<String, CommonEvent>> events = this.events;
+                final Key dupeKey = new Key(url, key);
                 if (event instanceof MultiTargetEvent) {
                     for (String target : ((MultiTargetEvent) event).getTargets()) {
-                        if (checkApply(event, key, events, target)) writeTargets.add(target);
+                        if (suppressor.check(target, dupeKey, dupeTime)) writeTargets.add(target);
                     }
                 } else if (event instanceof ChannelEvent) {
                     String target = ((ChannelEvent) event).getChannel();
-                    if (checkApply(event, key, events, target)) writeTargets.add(target);
+                    if (suppressor.check(target, dupeKey, dupeTime)) writeTargets.add(target);
                 } else if (event instanceof FromUserEvent) {
                     String target = ((FromUserEvent) event).getFromNick();
-                    if (checkApply(event, key, events, target)) writeTargets.add(target);
+                    if (suppressor.check(target, dupeKey, dupeTime)) writeTargets.add(target);
                 }
             }
             if (! writeTargets.isEmpty()) {
-                final IssueInfo issueInfo = lookup(url, key);
-                if (issueInfo != null) printIssue("jira", event, issueInfo);
+                found.put(key, url);
+                if (discover) {
+                    undiscovered.add(key);
+                }
+            }
+        }
+        if (found.isEmpty()) {
+            return;
+        }
+        bot.getLookupExecutor().execute(event, new Runnable() {
+            public void run() {
+                // every key's lookup starts now; each is waited for in turn so the replies keep their order
+                final Map<String, Future<Map<String, IssueInfo>>> pending = new HashMap<String, Future<Map<String, IssueInfo>>>();
+                final Map<String, List<String>> byServer = new LinkedHashMap<String, List<String>>();
+                for (Map.Entry<String, String> entry : found.entrySet()) {
+                    final String key = entry.getKey();
+                    if (undiscovered.contains(key)) {
+                        pending.put(key, bot.getLookupExecutor().fork(new Callable<Map<String, IssueInfo>>() {
+                            public Map<String, IssueInfo> call() throws IOException {
+                                final String project = projectFor(key);
+                                String server = projectDiscovery.discover(project, configuredServers(jiraNode), discoveryNode);
+                                if (server == null) {
+                                    if (projectDiscovery.isUnknown(project, discoveryNode)) {
+                                        return Collections.emptyMap();
+                                    }
+                                    // try the default server
+                                    server = found.get(key);
+                                }
+                                return cache.getAll(server, Collections.singletonList(key));
+                            }
+                        }));
+                        continue;
+                    }
+                    List<String> serverKeys = byServer.get(entry.getValue());
+                    if (serverKeys == null) {
+                        byServer.put(entry.getValue(), serverKeys = new ArrayList<String>());
+                    }
+                    serverKeys.add(key);
+                }
+                for (final Map.Entry<String, List<String>> entry : byServer.entrySet()) {
+                    final Future<Map<String, IssueInfo>> future = bot.getLookupExecutor().fork(new Callable<Map<String, IssueInfo>>() {
+                        public Map<String, IssueInfo> call() throws IOException {
+                            return cache.getAll(entry.getKey(), entry.getValue());
+                        }
+                    });
+                    for (String key : entry.getValue()) {
+                        pending.put(key, future);
+                    }
+                }
+                for (String key : found.keySet()) {
+                    final IssueInfo issueInfo;
+                    try {
+                        issueInfo = await(pending.get(key)).get(key);
+                    } catch (InterruptedIOException e) {
+                        return;
+                    } catch (IOException e) {
+                        log.debugf(e, "Failed to look up issue %s", key);
+                        continue;
+                    }
+                    final String message = issueInfo == null ? null : formatIssue("jira", issueInfo);
+                    if (message != null) try {
+                        bot.getOutboundScheduler().respond(event, message);
+                    } catch (IOException e) {
+                        log.debugf(e, "Failed to send issue %s", key);
+                        return;
+                    }
+                }
             }
+        });
+    }
 
+    /**
+     * Wait for a forked lookup.
+     *
+     * @param future the lookup
+     * @return its result
+     * @throws IOException if it failed, or the wait was interrupted
+     */
+    private static <T> T await(final Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for lookup");
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException(cause);
         }
     }
 
-    private boolean checkApply(final CommonEvent event, final String key, final ConcurrentMap<String, Map<String, CommonEvent>> events, final String target) {
-        Map<String, CommonEvent> subMap = events.get(target);
-        if (subMap == null) {
-            Map<String, CommonEvent> appearing = events.putIfAbsent(target, subMap = new LinkedHashMap<String, CommonEvent>() {
-                protected boolean removeEldestEntry(final Map.Entry<String, CommonEvent> eldest) {
-                    return eldest.getValue().getClockTime() < System.currentTimeMillis() - 15000L;
+    /**
+     * Look up several issues on the server at once, each with its own request.
+     *
+     * @param urlString the server URL
+     * @param keys the issue keys
+     * @return the issues found, keyed by the requested key
+     * @throws IOException if a lookup failed
+     */
+    private Map<String, IssueInfo> lookupEach(final String urlString, final Collection<String> keys) throws IOException {
+        final Map<String, Future<IssueInfo>> futures = new LinkedHashMap<String, Future<IssueInfo>>();
+        for (final String key : keys) {
+            futures.put(key, bot.getLookupExecutor().fork(new Callable<IssueInfo>() {
+                public IssueInfo call() throws IOException {
+                    return lookup(urlString, key);
                 }
-            });
-            if (appearing != null) subMap = appearing;
+            }));
         }
-        synchronized (subMap) {
-            CommonEvent test = subMap.get(key);
-            if (test != null) {
-                if (test.getClockTime() < System.currentTimeMillis() - 15000L) {
-                    subMap.put(key, event);
-                    return true;
-                }
-            } else {
-                subMap.put(key, event);
-                return true;
+        final Map<String, IssueInfo> results = new HashMap<String, IssueInfo>();
+        for (Map.Entry<String, Future<IssueInfo>> entry : futures.entrySet()) {
+            final IssueInfo issueInfo = await(entry.getValue());
+            if (issueInfo != null) {
+                results.put(entry.getKey(), issueInfo);
             }
         }
-        return false;
+        return results;
+    }
+
+    /**
+     * Get the permits for requests to a server, which cap how many may run at once.
+     *
+     * @param urlString the server URL
+     * @return the permits
+     */
+    private Semaphore permits(final String urlString) {
+        Semaphore permits = serverPermits.get(urlString);
+        if (permits == null) {
+            final Semaphore appearing = serverPermits.putIfAbsent(urlString, permits = new Semaphore(Math.max(1, bot.getConfig().node("jira").getInt("max-concurrent", 4)), true));
+            if (appearing != null) permits = appearing;
+        }
+        return permits;
+    }
+
+    private static void acquire(final Semaphore permits) throws InterruptedIOException {
+        try {
+            permits.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for a request permit");
+        }
     }
 
-    void printIssue(final String prefix, final MessageRespondableEvent event, final IssueInfo issueInfo) throws IOException {
+    static String formatIssue(final String prefix, final IssueInfo issueInfo) {
         final String key = issueInfo.key;
         final IrcStringBuilder builder = new IrcStringBuilder();
         if (issueInfo.redirect != null) {
-            return;
+            return null;
         } else {
             builder.b().append(prefix).b().nc().append(' ');
             builder.append('[').fc(3).append(key).nc().append("] ");
@@ -319,7 +525,7 @@ public final class JiraMessageHandler extends EventHandler {
             builder.fc(6).append(' ').append(issueInfo.assignee).nc().append("] ");
             builder.append(issueInfo.link);
         }
-        event.sendMessageResponse(builder.toString());
+        return builder.toString();
     }
 
     static final class IssueInfo {
@@ -346,23 +552,36 @@ public final class JiraMessageHandler extends EventHandler {
             this.components = components;
             this.resolution = resolution;
         }
+
+        boolean isRedirect() {
+            return redirect != null;
+        }
     }
 
-    public void createdNote(final JBossBot bot, final EventHandlerContext context, final String key) throws BackingStoreException, IOException, URISyntaxException {
-        final Preferences jiraNode = bot.getPrefNode().node("jira");
-        final Preferences projectsNode = jiraNode.node("projects");
+    /**
+     * Announce a new issue from a webhook.  The issue is built from the webhook's copy of it, which is also put in
+     * the cache; it is only looked up if the payload has no fields.
+     *
+     * @param bot the bot
+     * @param context the event handler context
+     * @param issue the {@code issue} object of the webhook payload
+     */
+    public void createdNote(final JBossBot bot, final EventHandlerContext context, final HttpRequestEvent event, final JSON issue) throws IOException, URISyntaxException {
+        final String key = issue.get("key").asString();
+        final Config jiraNode = bot.getConfig().node("jira");
+        final Config projectsNode = jiraNode.node("projects");
         String project;
-        Preferences projectNode;
+        Config projectNode;
         String url;
 
         project = projectFor(key);
-        if (projectsNode.nodeExists(project)) {
+        if (projectsNode.hasNode(project)) {
             projectNode = projectsNode.node(project);
         } else {
             projectNode = jiraNode.node("default");
         }
-        String[] channels = projectNode.get("channels", "").split(",\\s*");
-        if (channels == null || channels.length == 0 || channels.length == 1 && channels[0].isEmpty()) {
+        final Set<String> targets = projectNode.getSet("channels");
+        if (targets.isEmpty()) {
             System.out.println("No channels for JIRA project " + project);
             return;
         }
@@ -380,9 +599,79 @@ public final class JiraMessageHandler extends EventHandler {
         RecursionState state = context.getContextValue(handlerKey);
         if (state == null) context.putContextValue(handlerKey, state = new RecursionState());
         state.add(key);
-        final IssueInfo issueInfo = lookup(url, key);
-        if (issueInfo != null) {
-            printIssue("new jira", new OutboundMessageEvent(bot.getThimBot(), Priority.NORMAL, new HashSet<String>(Arrays.asList(channels)), key), issueInfo);
+        final String serverUrl = url;
+        final IssueInfo payloadInfo;
+        if (issue.get("fields").exists()) {
+            payloadInfo = parseRestIssue(serverUrl, issue);
+            cache.put(serverUrl, key, payloadInfo);
+        } else {
+            payloadInfo = null;
+        }
+        // the webhook stays journalled until the notification has gone out
+        final HttpRequestEvent.Hold hold = event.hold();
+        final Runnable task = new Runnable() {
+            public void run() {
+                boolean keep = false;
+                try {
+                    // always fresh, since the issue is new
+                    final IssueInfo issueInfo = payloadInfo != null ? payloadInfo : cache.refresh(serverUrl, key);
+                    final String message = issueInfo == null ? null : formatIssue("new jira", issueInfo);
+                    if (message != null) {
+                        bot.getOutboundScheduler().sendMessage(OutboundScheduler.Lane.NOTIFICATION, targets, message);
+                    }
+                } catch (InterruptedIOException e) {
+                    // shutting down; it stays in the journal
+                    keep = true;
+                } catch (IOException e) {
+                    log.debugf(e, "Failed to look up or send issue %s", key);
+                } finally {
+                    if (! keep) hold.release();
+                }
+            }
+        };
+        if (! bot.getLookupExecutor().execute(LookupExecutor.laneName(targets), task)) {
+            // the lane is full; this is a webhook worker, so it can wait its turn itself
+            task.run();
+        }
+    }
+
+    /**
+     * Bring the cache up to date from a webhook about a changed or deleted issue.  The announcement is left to
+     * {@link #createdNote}.
+     *
+     * @param payload the webhook payload
+     * @param deleted {@code true} if the issue was deleted
+     */
+    void updatedNote(final JSON payload, final boolean deleted) {
+        final JSON issue = payload.get("issue");
+        final String key = issue.get("key").asString();
+        if (key == null || key.indexOf('-') == -1) {
+            return;
+        }
+        final Config jiraNode = bot.getConfig().node("jira");
+        final String project = projectFor(key);
+        final Config projectNode = jiraNode.node("projects").hasNode(project) ? jiraNode.node("projects").node(project) : jiraNode.node("default");
+        String url = projectNode.get("url", jiraNode.node("default").get("url", null));
+        if (url == null) {
+            return;
+        }
+        if (! url.endsWith("/")) {
+            url += "/";
+        }
+        if (deleted) {
+            cache.put(url, key, null);
+        } else if (issue.get("fields").exists()) {
+            cache.put(url, key, parseRestIssue(url, issue));
+        } else {
+            cache.evict(url, key);
+        }
+        if (payload.get("changelog").get("items").exists()) {
+            for (JSON item : payload.get("changelog").get("items").asList()) {
+                if ("Key".equals(item.get("field").asString()) && item.get("fromString").exists()) {
+                    // moved; the old key is now a redirect
+                    cache.evict(url, item.get("fromString").asString());
+                }
+            }
         }
     }
 
@@ -398,37 +687,399 @@ public final class JiraMessageHandler extends EventHandler {
         return b.toString();
     }
 
-    private IssueInfo lookup(final String urlString, final String key) {
+    /**
+     * Look an issue up on the server, using the REST API if it is configured for the issue's project.
+     *
+     * @param urlString the server URL
+     * @param key the issue key
+     * @return the issue, or {@code null} if it does not exist or cannot be seen
+     * @throws IOException if the lookup failed
+     */
+    private IssueInfo lookup(final String urlString, final String key) throws IOException {
+        final Semaphore permits = permits(urlString);
+        acquire(permits);
+        try {
+            if (useRest(urlString, key)) try {
+                return restLookup(urlString, key);
+            } catch (RestUnavailableException e) {
+                restUnavailable(urlString, e);
+            }
+            return xmlLookup(urlString, key);
+        } finally {
+            permits.release();
+        }
+    }
+
+    private IssueInfo xmlLookup(final String urlString, final String key) throws IOException {
         try {
             final URL url = new URL(urlString + "si/jira.issueviews:issue-xml/" + key + "/" + key + ".xml");
-            final HttpURLConnection conn = (HttpURLConnection) JBossBotUtils.connectTo(url);
-            try {
-                final int code = conn.getResponseCode();
+            try (HttpClient.Response response = bot.getHttpClient().get(url)) {
+                final int code = response.getStatus();
                 if (code != 200) {
                     if (code == 301 || code == 302 || code == 303) {
-                        return new IssueInfo(key, null, null, null, null, null, conn.getHeaderField("Location"), null, null, null);
+                        return new IssueInfo(key, null, null, null, null, null, response.getHeader("Location"), null, null, null);
                     }
                     log.debugf("URL %s returned status %d", url, Integer.valueOf(code));
+                    if (code == 401 || code == 403 || code == 404 || code == 410) {
+                        return null;
+                    }
+                    throw new IOException("Unexpected status " + code + " from " + url);
+                }
+                final List<IssueInfo> items = readItems(response, 1);
+                return items.isEmpty() ? null : items.get(0);
+            }
+        } catch (XMLStreamException e) {
+            throw new IOException("Failed to parse " + key, e);
+        }
+    }
+
+    private IssueInfo restLookup(final String urlString, final String key) throws IOException {
+        final URL url = new URL(urlString + "rest/api/2/issue/" + key + "?fields=" + REST_FIELDS);
+        final JSON json;
+        try (HttpClient.Response response = bot.getHttpClient().get(url)) {
+            final int code = response.getStatus();
+            if (code != 200) {
+                log.debugf("URL %s returned status %d", url, Integer.valueOf(code));
+                if (code == 404 && isJSON(response) || code == 401 || code == 403 || code == 410) {
+                    // a JSON 404 is about the issue, not the API
                     return null;
                 }
-                try (InputStream is = conn.getInputStream()) {
-                    XMLStreamReader reader = XMLInputFactory.newInstance().createXMLStreamReader(is);
-                    try {
-                        return parseDocument(reader);
-                    } finally {
-                        reader.close();
-                    }
+                if (code == 404 || code == 405 || code == 501) {
+                    throw new RestUnavailableException("Status " + code + " from " + url);
+                }
+                throw new IOException("Unexpected status " + code + " from " + url);
+            }
+            json = readJSON(response, bot.getConfig().node("jira").getLong("max-response-bytes", 1L << 20));
+        }
+        final IssueInfo issueInfo = parseRestIssue(urlString, json);
+        if (! key.equals(issueInfo.key)) {
+            // moved; the API follows it to its new key
+            return new IssueInfo(key, null, null, null, null, null, issueInfo.link, null, null, null);
+        }
+        return issueInfo;
+    }
+
+    /**
+     * Look several issues up on the server with one search.  JIRA rejects the whole query if any key does not
+     * exist, in which case the keys are looked up one at a time instead.
+     *
+     * @param urlString the server URL
+     * @param keys the issue keys
+     * @return the issues found, keyed by the requested key
+     * @throws IOException if the lookup failed
+     */
+    private Map<String, IssueInfo> search(final String urlString, final List<String> keys) throws IOException {
+        final Map<String, IssueInfo> results = new HashMap<String, IssueInfo>();
+        if (keys.size() == 1) {
+            final String key = keys.get(0);
+            final IssueInfo issueInfo = lookup(urlString, key);
+            if (issueInfo != null) {
+                results.put(key, issueInfo);
+            }
+            return results;
+        }
+        final StringBuilder jql = new StringBuilder("key in (");
+        final Iterator<String> iterator = keys.iterator();
+        while (iterator.hasNext()) {
+            jql.append(iterator.next());
+            if (iterator.hasNext()) {
+                jql.append(',');
+            }
+        }
+        jql.append(')');
+        List<IssueInfo> items = null;
+        boolean searched = false;
+        final Semaphore permits = permits(urlString);
+        acquire(permits);
+        try {
+            if (useRest(urlString, keys.get(0))) try {
+                items = restSearch(urlString, jql.toString(), keys.size());
+                searched = true;
+            } catch (RestUnavailableException e) {
+                restUnavailable(urlString, e);
+            }
+            if (! searched) {
+                items = xmlSearch(urlString, jql.toString(), keys.size());
+            }
+        } finally {
+            permits.release();
+        }
+        if (items == null) {
+            // some key does not exist
+            return lookupEach(urlString, keys);
+        }
+        boolean moved = false;
+        for (IssueInfo item : items) {
+            if (keys.contains(item.key)) {
+                results.put(item.key, item);
+            } else {
+                // found under its new key
+                moved = true;
+            }
+        }
+        if (moved) {
+            // look up the old keys so that they come back as redirects
+            final List<String> missing = new ArrayList<String>();
+            for (String key : keys) {
+                if (! results.containsKey(key)) {
+                    missing.add(key);
                 }
-            } finally {
-//                conn.disconnect();
+            }
+            results.putAll(lookupEach(urlString, missing));
+        }
+        return results;
+    }
+
+    /**
+     * Run a search through the XML search view.
+     *
+     * @return the items found, or {@code null} if the query was rejected
+     */
+    private List<IssueInfo> xmlSearch(final String urlString, final String jql, final int max) throws IOException {
+        final StringBuilder query = new StringBuilder();
+        query.append("jqlQuery=").append(URLEncoder.encode(jql, "UTF-8"));
+        query.append("&tempMax=").append(max);
+        for (String field : SEARCH_FIELDS) {
+            query.append("&field=").append(field);
+        }
+        try {
+            final URL url = new URL(urlString + "sr/jira.issueviews:searchrequest-xml/temp/SearchRequest.xml?" + query);
+            try (HttpClient.Response response = bot.getHttpClient().get(url)) {
+                final int code = response.getStatus();
+                if (code == 400) {
+                    return null;
+                }
+                if (code != 200) {
+                    log.debugf("URL %s returned status %d", url, Integer.valueOf(code));
+                    throw new IOException("Unexpected status " + code + " from " + url);
+                }
+                return readItems(response, max);
             }
         } catch (XMLStreamException e) {
-            e.printStackTrace();
-            return null;
-        } catch (IOException e) {
-            e.printStackTrace();
-            return null;
+            throw new IOException("Failed to parse search for " + jql, e);
+        }
+    }
+
+    /**
+     * Run a search through the REST API.
+     *
+     * @return the issues found, or {@code null} if the query was rejected
+     */
+    private List<IssueInfo> restSearch(final String urlString, final String jql, final int max) throws IOException {
+        final URL url = new URL(urlString + "rest/api/2/search?jql=" + URLEncoder.encode(jql, "UTF-8") + "&maxResults=" + max + "&validateQuery=false&fields=" + REST_FIELDS);
+        final JSON json;
+        try (HttpClient.Response response = bot.getHttpClient().get(url)) {
+            final int code = response.getStatus();
+            if (code == 400) {
+                return null;
+            }
+            if (code != 200) {
+                log.debugf("URL %s returned status %d", url, Integer.valueOf(code));
+                if (code == 404 || code == 405 || code == 501) {
+                    throw new RestUnavailableException("Status " + code + " from " + url);
+                }
+                throw new IOException("Unexpected status " + code + " from " + url);
+            }
+            json = readJSON(response, bot.getConfig().node("jira").getLong("max-response-bytes", 1L << 20));
+        }
+        final List<IssueInfo> items = new ArrayList<IssueInfo>();
+        for (JSON issue : json.get("issues").asList()) {
+            items.add(parseRestIssue(urlString, issue));
+        }
+        return items;
+    }
+
+    /**
+     * Get every configured server.
+     *
+     * @param jiraNode the {@code jira} configuration
+     * @return the server URLs, default first
+     */
+    private static Set<String> configuredServers(final Config jiraNode) {
+        final Set<String> servers = new LinkedHashSet<String>();
+        addServer(servers, jiraNode.node("default").get("url", null));
+        final Config projectsNode = jiraNode.node("projects");
+        for (String project : projectsNode.childrenNames()) {
+            addServer(servers, projectsNode.node(project).get("url", null));
+        }
+        for (String url : jiraNode.node("discovery").getSet("servers")) {
+            addServer(servers, url);
         }
+        return servers;
+    }
+
+    private static void addServer(final Set<String> servers, final String url) {
+        if (url != null) {
+            servers.add(url.endsWith("/") ? url : url + "/");
+        }
+    }
+
+    /**
+     * Ask a server whether it has a project.
+     *
+     * @param urlString the server URL
+     * @param project the project key
+     * @return {@code true} if it has
+     * @throws IOException if the server could not say
+     */
+    private boolean hasProject(final String urlString, final String project) throws IOException {
+        final URL url = new URL(urlString + "rest/api/2/project/" + project);
+        try (HttpClient.Response response = bot.getHttpClient().get(url)) {
+            final int code = response.getStatus();
+            if (code == 200) {
+                return true;
+            }
+            if (code == 404 && isJSON(response)) {
+                return false;
+            }
+            throw new IOException("Unexpected status " + code + " from " + url);
+        }
+    }
+
+    /**
+     * List the keys of the projects on the server.  Only the REST API can do this.
+     *
+     * @param urlString the server URL
+     * @return the project keys
+     * @throws IOException if the projects could not be listed
+     */
+    private Set<String> listProjects(final String urlString) throws IOException {
+        final URL url = new URL(urlString + "rest/api/2/project");
+        final JSON json;
+        try (HttpClient.Response response = bot.getHttpClient().get(url)) {
+            final int code = response.getStatus();
+            if (code != 200) {
+                log.debugf("URL %s returned status %d", url, Integer.valueOf(code));
+                throw new IOException("Unexpected status " + code + " from " + url);
+            }
+            // every project comes with its avatars, so the list is big
+            json = readJSON(response, bot.getConfig().node("jira/index").getLong("max-response-bytes", 16L << 20));
+        }
+        final Set<String> projects = new HashSet<String>();
+        for (JSON project : json.asList()) {
+            projects.add(project.get("key").asString());
+        }
+        return projects;
+    }
+
+    private boolean useRest(final String urlString, final String key) {
+        final Config jiraNode = bot.getConfig().node("jira");
+        final String project = projectFor(key);
+        final Config projectNode = jiraNode.node("projects").hasNode(project) ? jiraNode.node("projects").node(project) : jiraNode.node("default");
+        if (! "rest".equals(projectNode.get("api", jiraNode.node("default").get("api", "xml")))) {
+            return false;
+        }
+        final Long retry = restRetry.get(urlString);
+        if (retry == null) {
+            return true;
+        }
+        if (System.nanoTime() - retry.longValue() < 0) {
+            return false;
+        }
+        restRetry.remove(urlString, retry);
+        return true;
+    }
+
+    private void restUnavailable(final String urlString, final RestUnavailableException e) {
+        final long retryAfter = TimeUnit.SECONDS.toNanos(bot.getConfig().node("jira").getLong("rest-retry-s", 600L));
+        if (restRetry.put(urlString, Long.valueOf(System.nanoTime() + retryAfter)) == null) {
+            log.warnf(e, "REST API unavailable on %s, using XML views", urlString);
+        }
+    }
+
+    private static JSON readJSON(final HttpClient.Response response, final long limit) throws IOException {
+        if (! isJSON(response)) {
+            throw new RestUnavailableException("Not JSON from " + response.getURL());
+        }
+        final StringBuilder b = new StringBuilder();
+        try (InputStreamReader reader = new InputStreamReader(new LimitedInputStream(response.getBody(), limit), StandardCharsets.UTF_8)) {
+            final char[] chars = new char[4096];
+            int res;
+            while ((res = reader.read(chars)) != -1) {
+                b.append(chars, 0, res);
+            }
+        }
+        try {
+            return JSON.parse(b.toString());
+        } catch (RuntimeException e) {
+            throw new RestUnavailableException("Unreadable JSON from " + response.getURL());
+        }
+    }
+
+    private static boolean isJSON(final HttpClient.Response response) {
+        final String contentType = response.getContentType();
+        return contentType != null && contentType.startsWith("application/json");
+    }
+
+    /**
+     * Build an issue from the JSON the REST API and webhooks use for it, with the same placeholders the XML view has.
+     */
+    private static IssueInfo parseRestIssue(final String urlString, final JSON issue) {
+        final String key = issue.get("key").asString();
+        final JSON fields = issue.get("fields");
+        final List<String> components = new ArrayList<String>();
+        if (fields.get("components").exists()) {
+            for (JSON component : fields.get("components").asList()) {
+                components.add(component.get("name").asString());
+            }
+        }
+        return new IssueInfo(
+            key,
+            restName(fields.get("summary"), null, "(none)"),
+            restName(fields.get("status"), "name", "(unknown)"),
+            restName(fields.get("priority"), "name", "(unknown)"),
+            restName(fields.get("assignee"), "displayName", "Unassigned"),
+            urlString + "browse/" + key,
+            null,
+            restName(fields.get("issuetype"), "name", "(unknown)"),
+            components,
+            restName(fields.get("resolution"), "name", "Unresolved")
+        );
+    }
+
+    private static String restName(final JSON node, final String property, final String defaultVal) {
+        if (! node.exists() || node.isNull()) {
+            return defaultVal;
+        }
+        final JSON value = property == null ? node : node.get(property);
+        return value.exists() && ! value.isNull() ? value.asString().trim() : defaultVal;
+    }
+
+    /**
+     * The REST API cannot be used on this server; the XML views should be used instead.
+     */
+    static final class RestUnavailableException extends IOException {
+        private static final long serialVersionUID = -2473108467412394387L;
+
+        RestUnavailableException(final String msg) {
+            super(msg);
+        }
+    }
+
+    /**
+     * Read the items of an issue view or search.  Reading stops as soon as the last item wanted has everything
+     * {@link #formatIssue} needs, and the connection is then dropped rather than drained.
+     *
+     * @param response the response
+     * @param max the most items wanted
+     * @return the items
+     * @throws IOException if reading failed or the response is over the size limit
+     * @throws XMLStreamException if the response could not be parsed
+     */
+    private List<IssueInfo> readItems(final HttpClient.Response response, final int max) throws IOException, XMLStreamException {
+        final List<IssueInfo> items = new ArrayList<IssueInfo>();
+        final long limit = bot.getConfig().node("jira").getLong("max-response-bytes", 1L << 20);
+        XMLStreamReader reader = XML_INPUT_FACTORY.createXMLStreamReader(new LimitedInputStream(response.getBody(), limit));
+        try {
+            parseDocument(reader, items, max);
+            if (reader.getEventType() == XMLStreamConstants.START_ELEMENT) {
+                // stopped part way through
+                response.abort();
+            }
+        } finally {
+            reader.close();
+        }
+        return items;
     }
 
     enum Element {
@@ -444,6 +1095,11 @@ public final class JiraMessageHandler extends EventHandler {
         TYPE,
         COMPONENT,
         RESOLUTION,
+        COMMENTS,
+        ATTACHMENTS,
+        SUBTASKS,
+        ISSUELINKS,
+        CUSTOMFIELDS,
         UNKNOWN;
         private static final Map<QName, Element> elements;
 
@@ -461,6 +1117,11 @@ public final class JiraMessageHandler extends EventHandler {
             elementsMap.put(new QName("type"), Element.TYPE);
             elementsMap.put(new QName("component"), Element.COMPONENT);
             elementsMap.put(new QName("resolution"), Element.RESOLUTION);
+            elementsMap.put(new QName("comments"), Element.COMMENTS);
+            elementsMap.put(new QName("attachments"), Element.ATTACHMENTS);
+            elementsMap.put(new QName("subtasks"), Element.SUBTASKS);
+            elementsMap.put(new QName("issuelinks"), Element.ISSUELINKS);
+            elementsMap.put(new QName("customfields"), Element.CUSTOMFIELDS);
             elements = elementsMap;
         }
 
@@ -469,23 +1130,34 @@ public final class JiraMessageHandler extends EventHandler {
             return element == null ? UNKNOWN : element;
         }
 
+        /**
+         * Determine whether this is one of the sections which follow the components in an item, and which can be
+         * much larger than the rest of it put together.
+         *
+         * @return {@code true} if it is
+         */
+        boolean isTrailing() {
+            return this == COMMENTS || this == ATTACHMENTS || this == SUBTASKS || this == ISSUELINKS || this == CUSTOMFIELDS;
+        }
+
     }
 
 //    private List<CacheEntry> parseAtomDocument(XMLStreamReader reader, long timestamp, final Monitor monitor) throws XMLStreamException {
 //
 //    }
 
-    private static IssueInfo parseDocument(XMLStreamReader reader) throws XMLStreamException {
+    private static void parseDocument(XMLStreamReader reader, List<IssueInfo> items, int max) throws XMLStreamException {
         while (reader.hasNext()) {
             switch (reader.next()) {
                 case XMLStreamConstants.START_DOCUMENT: {
-                    return parseRootElement(reader);
+                    parseRootElement(reader, items, max);
+                    return;
                 }
                 case XMLStreamConstants.START_ELEMENT: {
-                    if (Element.of(reader.getName()) != Element.RSS) {
-                        return null;
+                    if (Element.of(reader.getName()) == Element.RSS) {
+                        parseRssContents(reader, items, max);
                     }
-                    return parseRssContents(reader);
+                    return;
                 }
                 default: {
                     // ignore
@@ -493,17 +1165,16 @@ public final class JiraMessageHandler extends EventHandler {
                 }
             }
         }
-        return null;
     }
 
-    private static IssueInfo parseRootElement(final XMLStreamReader reader) throws XMLStreamException {
+    private static void parseRootElement(final XMLStreamReader reader, final List<IssueInfo> items, final int max) throws XMLStreamException {
         while (reader.hasNext()) {
             switch (reader.next()) {
                 case XMLStreamConstants.START_ELEMENT: {
-                    if (Element.of(reader.getName()) != Element.RSS) {
-                        return null;
+                    if (Element.of(reader.getName()) == Element.RSS) {
+                        parseRssContents(reader, items, max);
                     }
-                    return parseRssContents(reader);
+                    return;
                 }
                 default: {
                     // ignore
@@ -511,15 +1182,15 @@ public final class JiraMessageHandler extends EventHandler {
                 }
             }
         }
-        return null;
     }
 
-    private static IssueInfo parseRssContents(final XMLStreamReader reader) throws XMLStreamException {
+    private static void parseRssContents(final XMLStreamReader reader, final List<IssueInfo> items, final int max) throws XMLStreamException {
         while (reader.hasNext()) {
             switch (reader.next()) {
                 case XMLStreamConstants.START_ELEMENT: {
                     if (Element.of(reader.getName()) == Element.CHANNEL) {
-                        return parseChannelContents(reader);
+                        parseChannelContents(reader, items, max);
+                        return;
                     }
                     consumeElement(reader);
                 }
@@ -529,17 +1200,27 @@ public final class JiraMessageHandler extends EventHandler {
                 }
             }
         }
-        return null;
     }
 
-    private static IssueInfo parseChannelContents(final XMLStreamReader reader) throws XMLStreamException {
+    private static void parseChannelContents(final XMLStreamReader reader, final List<IssueInfo> items, final int max) throws XMLStreamException {
         while (reader.hasNext()) {
             switch (reader.next()) {
                 case XMLStreamConstants.START_ELEMENT: {
                     if (Element.of(reader.getName()) == Element.ITEM) {
-                        return parseItemContents(reader);
+                        final IssueInfo item = parseItemContents(reader, items.size() + 1 >= max);
+                        if (item != null) {
+                            items.add(item);
+                        }
+                        if (items.size() >= max) {
+                            return;
+                        }
+                    } else {
+                        consumeElement(reader);
                     }
-                    consumeElement(reader);
+                    break;
+                }
+                case XMLStreamConstants.END_ELEMENT: {
+                    return;
                 }
                 default: {
                     // ignore
@@ -547,10 +1228,18 @@ public final class JiraMessageHandler extends EventHandler {
                 }
             }
         }
-        return null;
     }
 
-    private static IssueInfo parseItemContents(final XMLStreamReader reader) throws XMLStreamException {
+    /**
+     * Parse one item.  If this is the last item wanted, parsing stops at the first of the trailing bulky sections
+     * once every field has been seen, leaving the reader inside the item.
+     *
+     * @param reader the reader, positioned at the item start
+     * @param last {@code true} if nothing after this item will be read
+     * @return the issue
+     * @throws XMLStreamException if parsing failed
+     */
+    private static IssueInfo parseItemContents(final XMLStreamReader reader, final boolean last) throws XMLStreamException {
         String summary = "(none)";
         String key = null;
         String status = "(unknown)";
@@ -560,10 +1249,16 @@ public final class JiraMessageHandler extends EventHandler {
         String resolution = null;
         String type = "(unknown)";
         List<String> components = new ArrayList<String>();
+        final EnumSet<Element> seen = EnumSet.noneOf(Element.class);
         while (reader.hasNext()) {
             switch (reader.next()) {
                 case XMLStreamConstants.START_ELEMENT: {
-                    switch (Element.of(reader.getName())) {
+                    final Element element = Element.of(reader.getName());
+                    if (last && element.isTrailing() && seen.containsAll(REQUIRED_ELEMENTS)) {
+                        return new IssueInfo(key, summary, status, priority, assignee, link, null, type, components, resolution);
+                    }
+                    seen.add(element);
+                    switch (element) {
                         case SUMMARY: {
                             summary = reader.getElementText().trim();
                             break;
@@ -35,7 +35,7 @@ public final class JiraProvider implements JBossBotServiceProvider {
 
     public void register(final JBossBot bot, final JBossBotServlet servlet) {
         final JiraMessageHandler messageHandler = new JiraMessageHandler(bot);
-        bot.getThimBot().addEventHandler(messageHandler);
+        bot.addEventHandler("jira", messageHandler);
     }
 
     public int getPriority() {
@@ -0,0 +1,246 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2014, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.bot.jira;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.prefs.BackingStoreException;
+import java.util.prefs.Preferences;
+
+import org.jboss.bot.Config;
+import org.jboss.bot.LookupExecutor;
+import org.jboss.bot.metrics.MetricsSource;
+import org.jboss.bot.metrics.MetricsWriter;
+import org.jboss.logging.Logger;
+
+/**
+ * Finds out which of several servers owns a project which is not mapped to one.  Every server is asked at once, on
+ * the lookup executor's fork threads; the owner is remembered in the {@code jbossbot-state/jira/discovered} node,
+ * outside the watched configuration tree, and a project which no server has is remembered in memory, up to a
+ * bound, for the negative TTL.  An owner set by hand under {@code jira/discovered} in the configuration is honoured
+ * too.  If some server could not answer, nothing is remembered and the caller falls back to the default server.
+ */
+final class ProjectDiscovery implements MetricsSource {
+
+    private static final Logger log = Logger.getLogger("org.jboss.bot.jira");
+
+    interface Probe {
+
+        /**
+         * Determine whether a server has a project.
+         *
+         * @param server the server URL
+         * @param project the project key
+         * @return {@code true} if it does
+         * @throws IOException if the server could not say
+         */
+        boolean hasProject(String server, String project) throws IOException;
+    }
+
+    private final Probe probe;
+    private final LookupExecutor executor;
+    private final Preferences discovered;
+    private final ConcurrentMap<String, String> owners = new ConcurrentHashMap<String, String>();
+    // guarded by itself; the oldest entries go first once it is full
+    private final Map<String, Long> unknown;
+    private final ConcurrentMap<String, FutureTask<String>> inFlight = new ConcurrentHashMap<String, FutureTask<String>>();
+    private final AtomicLong found = new AtomicLong();
+    private final AtomicLong notFound = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    /**
+     * Construct a new instance.
+     *
+     * @param probe the probe to ask servers with
+     * @param executor the executor to fork probes on
+     * @param discovered the node to keep discovered owners in
+     * @param config the {@code jira/discovery} configuration
+     */
+    ProjectDiscovery(final Probe probe, final LookupExecutor executor, final Preferences discovered, final Config config) {
+        this.probe = probe;
+        this.executor = executor;
+        this.discovered = discovered;
+        final int maxUnknown = Math.max(1, config.getInt("max-unknown", 1024));
+        unknown = new LinkedHashMap<String, Long>() {
+            protected boolean removeEldestEntry(final Map.Entry<String, Long> eldest) {
+                return size() > maxUnknown;
+            }
+        };
+    }
+
+    /**
+     * Get the server already known to own a project.
+     *
+     * @param project the project key
+     * @param jiraNode the {@code jira} configuration
+     * @return the server URL, or {@code null} if it is not known
+     */
+    String ownerOf(final String project, final Config jiraNode) {
+        String owner = owners.get(project);
+        if (owner == null) {
+            owner = discovered.get(project, null);
+            if (owner == null) {
+                owner = jiraNode.node("discovered").get(project, null);
+            }
+        }
+        return owner;
+    }
+
+    /**
+     * Determine whether a project was recently found on no server.
+     *
+     * @param project the project key
+     * @param config the {@code jira/discovery} configuration
+     * @return {@code true} if it was
+     */
+    boolean isUnknown(final String project, final Config config) {
+        synchronized (unknown) {
+            final Long when = unknown.get(project);
+            if (when == null) {
+                return false;
+            }
+            if (System.nanoTime() - when.longValue() < TimeUnit.SECONDS.toNanos(config.getLong("negative-ttl-s", 3600L))) {
+                return true;
+            }
+            unknown.remove(project);
+            return false;
+        }
+    }
+
+    /**
+     * Find the server which owns a project, asking all of them.  Concurrent callers for the same project share one
+     * discovery.
+     *
+     * @param project the project key
+     * @param servers the server URLs, in order of preference
+     * @param config the {@code jira/discovery} configuration
+     * @return the owner's URL, or {@code null} if no server has the project or some server could not answer
+     * @throws InterruptedIOException if the thread was interrupted while waiting
+     */
+    String discover(final String project, final Collection<String> servers, final Config config) throws InterruptedIOException {
+        FutureTask<String> task = new FutureTask<String>(new Callable<String>() {
+            public String call() throws Exception {
+                return probeAll(project, servers, config.getLong("timeout-ms", 5000L));
+            }
+        });
+        final FutureTask<String> existing = inFlight.putIfAbsent(project, task);
+        if (existing != null) {
+            task = existing;
+        } else try {
+            task.run();
+        } finally {
+            inFlight.remove(project, task);
+        }
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted discovering " + project);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof InterruptedIOException) {
+                throw (InterruptedIOException) e.getCause();
+            }
+            log.debugf(e.getCause(), "Failed to discover %s", project);
+            return null;
+        }
+    }
+
+    private String probeAll(final String project, final Collection<String> servers, final long timeout) throws InterruptedIOException {
+        final List<Future<Boolean>> answers = new ArrayList<Future<Boolean>>(servers.size());
+        for (final String server : servers) {
+            answers.add(executor.fork(new Callable<Boolean>() {
+                public Boolean call() throws IOException {
+                    return Boolean.valueOf(probe.hasProject(server, project));
+                }
+            }));
+        }
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+        boolean complete = true;
+        int i = 0;
+        for (String server : servers) {
+            final Future<Boolean> answer = answers.get(i ++);
+            try {
+                if (answer.get(Math.max(0L, deadline - System.nanoTime()), TimeUnit.NANOSECONDS).booleanValue()) {
+                    for (Future<Boolean> other : answers) {
+                        other.cancel(true);
+                    }
+                    remember(project, server);
+                    return server;
+                }
+            } catch (InterruptedException e) {
+                for (Future<Boolean> other : answers) {
+                    other.cancel(true);
+                }
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted discovering " + project);
+            } catch (ExecutionException | TimeoutException e) {
+                log.debugf(e, "No answer from %s about %s", server, project);
+                answer.cancel(true);
+                complete = false;
+            }
+        }
+        if (complete) {
+            notFound.incrementAndGet();
+            synchronized (unknown) {
+                // re-inserted so that it counts as the newest
+                unknown.remove(project);
+                unknown.put(project, Long.valueOf(System.nanoTime()));
+            }
+        } else {
+            failed.incrementAndGet();
+        }
+        return null;
+    }
+
+    private void remember(final String project, final String server) {
+        found.incrementAndGet();
+        owners.put(project, server);
+        try {
+            discovered.put(project, server);
+            discovered.flush();
+        } catch (BackingStoreException | IllegalStateException e) {
+            log.warnf(e, "Failed to save the server of %s", project);
+        }
+    }
+
+    public void writeMetrics(final MetricsWriter writer) {
+        writer.family("jbossbot_jira_discovery_total", "counter", "Jira project discoveries by outcome.");
+        writer.sample("jbossbot_jira_discovery_total", found.get(), "result", "found");
+        writer.sample("jbossbot_jira_discovery_total", notFound.get(), "result", "unknown");
+        writer.sample("jbossbot_jira_discovery_total", failed.get(), "result", "failed");
+    }
+}
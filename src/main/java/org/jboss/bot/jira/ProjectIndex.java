@@ -0,0 +1,231 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2014, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.bot.jira;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jboss.bot.Config;
+import org.jboss.bot.LookupExecutor;
+import org.jboss.bot.metrics.MetricsSource;
+import org.jboss.bot.metrics.MetricsWriter;
+import org.jboss.logging.Logger;
+
+/**
+ * The project keys which exist on each server, so that things which only look like issue keys, such as
+ * {@code UTF-8} or {@code SHA-256}, are not looked up.  The project list of a server is loaded the first time it is
+ * needed and refreshed periodically in the background; until it has loaded, every key may exist.  A prefix which
+ * is not a known project is remembered for a while, and the first sighting of one triggers an early refresh (no
+ * more often than the minimum interval) in case the project is new.
+ */
+final class ProjectIndex implements MetricsSource {
+
+    private static final Logger log = Logger.getLogger("org.jboss.bot.jira");
+
+    interface Loader {
+
+        /**
+         * Get the keys of all the projects on a server.
+         *
+         * @param server the server URL
+         * @return the project keys
+         * @throws IOException if the projects could not be listed
+         */
+        Set<String> loadProjects(String server) throws IOException;
+    }
+
+    private final Loader loader;
+    private final LookupExecutor executor;
+    private final ConcurrentMap<String, ServerIndex> servers = new ConcurrentHashMap<String, ServerIndex>();
+    private final AtomicLong filtered = new AtomicLong();
+    private final AtomicLong refreshFailures = new AtomicLong();
+
+    ProjectIndex(final Loader loader, final LookupExecutor executor) {
+        this.loader = loader;
+        this.executor = executor;
+    }
+
+    /**
+     * Determine whether a project may exist on a server.
+     *
+     * @param server the server URL
+     * @param project the project key
+     * @param config the {@code jira/index} configuration
+     * @return {@code true} if an issue in the project should be looked up
+     */
+    boolean mayExist(final String server, final String project, final Config config) {
+        if (! config.getBoolean("enabled", true)) {
+            return true;
+        }
+        ServerIndex index = servers.get(server);
+        if (index == null) {
+            final ServerIndex appearing = servers.putIfAbsent(server, index = new ServerIndex(server));
+            if (appearing != null) index = appearing;
+        }
+        final long now = System.nanoTime();
+        final long minRefresh = TimeUnit.SECONDS.toNanos(config.getLong("min-refresh-s", 300L));
+        final Automaton automaton = index.automaton;
+        if (automaton == null ? ! index.attempted || now - index.loaded >= minRefresh : now - index.loaded >= TimeUnit.SECONDS.toNanos(config.getLong("refresh-s", 3600L))) {
+            index.refresh();
+        }
+        if (automaton == null || automaton.matches(project)) {
+            return true;
+        }
+        final Long seen = index.unknown.get(project);
+        if (seen == null || now - seen.longValue() >= TimeUnit.SECONDS.toNanos(config.getLong("negative-ttl-s", 3600L))) {
+            index.unknown.put(project, Long.valueOf(now));
+            // maybe the project is new
+            if (now - index.loaded >= minRefresh) {
+                index.refresh();
+            }
+        }
+        filtered.incrementAndGet();
+        return false;
+    }
+
+    public void writeMetrics(final MetricsWriter writer) {
+        writer.family("jbossbot_jira_projects", "gauge", "Known projects on each Jira server.");
+        for (ServerIndex index : servers.values()) {
+            final Automaton automaton = index.automaton;
+            if (automaton != null) {
+                writer.sample("jbossbot_jira_projects", automaton.size, "server", index.server);
+            }
+        }
+        writer.family("jbossbot_jira_keys_filtered_total", "counter", "Issue keys not looked up because their project does not exist.");
+        writer.sample("jbossbot_jira_keys_filtered_total", filtered.get());
+        writer.family("jbossbot_jira_project_refresh_failures_total", "counter", "Failed project list refreshes.");
+        writer.sample("jbossbot_jira_project_refresh_failures_total", refreshFailures.get());
+    }
+
+    final class ServerIndex {
+        final String server;
+        final ConcurrentMap<String, Long> unknown = new ConcurrentHashMap<String, Long>();
+        final AtomicBoolean refreshing = new AtomicBoolean();
+        volatile Automaton automaton;
+        volatile long loaded;
+        volatile boolean attempted;
+
+        ServerIndex(final String server) {
+            this.server = server;
+        }
+
+        void refresh() {
+            if (! refreshing.compareAndSet(false, true)) {
+                return;
+            }
+            final boolean accepted = executor.execute("jira projects", new Runnable() {
+                public void run() {
+                    try {
+                        automaton = new Automaton(loader.loadProjects(server));
+                        unknown.clear();
+                    } catch (IOException e) {
+                        refreshFailures.incrementAndGet();
+                        log.debugf(e, "Failed to list projects on %s", server);
+                    } finally {
+                        // failures wait out the refresh interval too
+                        loaded = System.nanoTime();
+                        attempted = true;
+                        refreshing.set(false);
+                    }
+                }
+            });
+            if (! accepted) {
+                refreshing.set(false);
+            }
+        }
+    }
+
+    /**
+     * A deterministic automaton accepting exactly a set of project keys, which are upper case letters and digits.
+     */
+    static final class Automaton {
+        private static final int ALPHABET = 36;
+
+        // row per state, column per character; 0 is both the start state and "no transition"
+        private final int[][] transitions;
+        private final boolean[] accepting;
+        final int size;
+
+        Automaton(final Set<String> keys) {
+            int[][] transitions = new int[16][];
+            boolean[] accepting = new boolean[16];
+            transitions[0] = new int[ALPHABET];
+            int states = 1;
+            int size = 0;
+            outer: for (String key : keys) {
+                int state = 0;
+                for (int i = 0; i < key.length(); i ++) {
+                    final int c = index(key.charAt(i));
+                    if (c == -1) {
+                        // cannot appear in a mention
+                        continue outer;
+                    }
+                    int next = transitions[state][c];
+                    if (next == 0) {
+                        if (states == transitions.length) {
+                            transitions = Arrays.copyOf(transitions, states << 1);
+                            accepting = Arrays.copyOf(accepting, states << 1);
+                        }
+                        transitions[states] = new int[ALPHABET];
+                        next = transitions[state][c] = states ++;
+                    }
+                    state = next;
+                }
+                if (state != 0 && ! accepting[state]) {
+                    accepting[state] = true;
+                    size ++;
+                }
+            }
+            this.transitions = transitions;
+            this.accepting = accepting;
+            this.size = size;
+        }
+
+        boolean matches(final String key) {
+            int state = 0;
+            for (int i = 0; i < key.length(); i ++) {
+                final int c = index(key.charAt(i));
+                if (c == -1 || (state = transitions[state][c]) == 0) {
+                    return false;
+                }
+            }
+            return accepting[state];
+        }
+
+        private static int index(final char c) {
+            if (c >= 'A' && c <= 'Z') {
+                return c - 'A';
+            } else if (c >= '0' && c <= '9') {
+                return 26 + c - '0';
+            } else {
+                return -1;
+            }
+        }
+    }
+}
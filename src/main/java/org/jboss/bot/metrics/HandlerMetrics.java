@@ -0,0 +1,150 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2014, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.bot.metrics;
+
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.flurg.thimbot.event.Event;
+import com.flurg.thimbot.event.EventHandler;
+import com.flurg.thimbot.event.EventHandlerContext;
+
+/**
+ * Dispatch metrics for one event handler in the chain.  The handler is bracketed by an entry probe, registered
+ * just before it, and an exit probe, registered just after it.  The time between the two, less the time spent
+ * further down the chain, is the time spent in the handler itself.  Events which the handler dispatches again
+ * from within itself are counted towards its own time.
+ */
+public final class HandlerMetrics {
+    private final String name;
+    private final ConcurrentMap<Class<?>, EventStats> stats = new ConcurrentHashMap<Class<?>, EventStats>();
+    private final ThreadLocal<ArrayDeque<Frame>> frames = new ThreadLocal<ArrayDeque<Frame>>() {
+        protected ArrayDeque<Frame> initialValue() {
+            return new ArrayDeque<Frame>();
+        }
+    };
+    private final EventHandler entryProbe = new EventHandler() {
+        public void handleEvent(final EventHandlerContext context, final Event event) throws Exception {
+            final EventStats eventStats = statsFor(event);
+            eventStats.seen.incrementAndGet();
+            final ArrayDeque<Frame> stack = frames.get();
+            final Frame frame = new Frame();
+            stack.push(frame);
+            final long start = System.nanoTime();
+            try {
+                super.handleEvent(context, event);
+            } catch (Exception | Error e) {
+                if (! frame.downstreamFailed) eventStats.exceptions.incrementAndGet();
+                throw e;
+            } finally {
+                final long elapsed = System.nanoTime() - start;
+                stack.pop();
+                eventStats.time.record(elapsed - frame.downstream);
+            }
+        }
+    };
+    private final EventHandler exitProbe = new EventHandler() {
+        public void handleEvent(final EventHandlerContext context, final Event event) throws Exception {
+            statsFor(event).passed.incrementAndGet();
+            final Frame frame = frames.get().peek();
+            final long start = System.nanoTime();
+            try {
+                super.handleEvent(context, event);
+            } catch (Exception | Error e) {
+                if (frame != null) frame.downstreamFailed = true;
+                throw e;
+            } finally {
+                if (frame != null) frame.downstream += System.nanoTime() - start;
+            }
+        }
+    };
+
+    HandlerMetrics(final String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public EventHandler getEntryProbe() {
+        return entryProbe;
+    }
+
+    public EventHandler getExitProbe() {
+        return exitProbe;
+    }
+
+    private EventStats statsFor(Event event) {
+        final Class<?> clazz = event.getClass();
+        EventStats eventStats = stats.get(clazz);
+        if (eventStats == null) {
+            final EventStats appearing = stats.putIfAbsent(clazz, eventStats = new EventStats());
+            if (appearing != null) eventStats = appearing;
+        }
+        return eventStats;
+    }
+
+    static void writeMetrics(MetricsWriter writer, Collection<HandlerMetrics> handlers) {
+        writer.family("jbossbot_handler_events_total", "counter", "Events seen by each handler.");
+        for (HandlerMetrics handler : handlers) {
+            for (Map.Entry<Class<?>, EventStats> entry : handler.stats.entrySet()) {
+                writer.sample("jbossbot_handler_events_total", entry.getValue().seen.get(), "handler", handler.name, "event", entry.getKey().getSimpleName());
+            }
+        }
+        writer.family("jbossbot_handler_events_passed_total", "counter", "Events passed down the chain by each handler.");
+        for (HandlerMetrics handler : handlers) {
+            for (Map.Entry<Class<?>, EventStats> entry : handler.stats.entrySet()) {
+                writer.sample("jbossbot_handler_events_passed_total", entry.getValue().passed.get(), "handler", handler.name, "event", entry.getKey().getSimpleName());
+            }
+        }
+        writer.family("jbossbot_handler_exceptions_total", "counter", "Exceptions thrown by each handler.");
+        for (HandlerMetrics handler : handlers) {
+            for (Map.Entry<Class<?>, EventStats> entry : handler.stats.entrySet()) {
+                writer.sample("jbossbot_handler_exceptions_total", entry.getValue().exceptions.get(), "handler", handler.name, "event", entry.getKey().getSimpleName());
+            }
+        }
+        writer.family("jbossbot_handler_seconds", "histogram", "Time spent in each handler, excluding later handlers.");
+        for (HandlerMetrics handler : handlers) {
+            for (Map.Entry<Class<?>, EventStats> entry : handler.stats.entrySet()) {
+                writer.histogram("jbossbot_handler_seconds", entry.getValue().time, "handler", handler.name, "event", entry.getKey().getSimpleName());
+            }
+        }
+    }
+
+    static final class EventStats {
+        final AtomicLong seen = new AtomicLong();
+        final AtomicLong passed = new AtomicLong();
+        final AtomicLong exceptions = new AtomicLong();
+        final Histogram time = new Histogram();
+    }
+
+    static final class Frame {
+        long downstream;
+        boolean downstreamFailed;
+    }
+}
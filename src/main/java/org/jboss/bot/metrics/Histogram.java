@@ -0,0 +1,70 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2014, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.bot.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed-bucket histogram of durations in nanoseconds.
+ */
+public final class Histogram {
+
+    /**
+     * The inclusive upper bound of each bucket, in nanoseconds.  Anything larger goes into the overflow bucket.
+     */
+    static final long[] BOUNDS = {
+        50000L, 100000L, 250000L, 500000L,
+        1000000L, 2500000L, 5000000L, 10000000L, 25000000L, 50000000L, 100000000L, 250000000L, 500000000L,
+        1000000000L, 2500000000L, 5000000000L, 10000000000L,
+    };
+
+    private final AtomicLongArray counts = new AtomicLongArray(BOUNDS.length + 1);
+    private final AtomicLong sum = new AtomicLong();
+
+    /**
+     * Record a duration.
+     *
+     * @param nanos the duration in nanoseconds
+     */
+    public void record(long nanos) {
+        int i = 0;
+        while (i < BOUNDS.length && nanos > BOUNDS[i]) {
+            i ++;
+        }
+        counts.incrementAndGet(i);
+        sum.addAndGet(nanos);
+    }
+
+    long[] getCounts() {
+        final long[] array = new long[counts.length()];
+        for (int i = 0; i < array.length; i ++) {
+            array[i] = counts.get(i);
+        }
+        return array;
+    }
+
+    long getSum() {
+        return sum.get();
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2014, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.bot.metrics;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Set;
+
+import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.jboss.bot.Config;
+import org.jboss.bot.JBossBot;
+
+/**
+ * Serves the bot metrics at {@code /jbossbot/metrics}.  Lane labels name the nicks the bot talks to privately, so a
+ * scrape must either carry the configured {@code metrics token} as a bearer token or come from one of the
+ * {@code metrics allow} addresses.  With neither configured, only loopback scrapes are answered.
+ */
+class MetricsHttpHandler extends HttpServlet {
+
+    private final JBossBot bot;
+
+    public MetricsHttpHandler(final JBossBot bot) {
+        this.bot = bot;
+    }
+
+    protected void service(final HttpServletRequest req, final HttpServletResponse resp) throws ServletException, IOException {
+        if (! "/jbossbot/metrics".equals(req.getPathInfo()) || ! req.getMethod().equalsIgnoreCase("GET")) {
+            return;
+        }
+        if (! isAllowed(req)) {
+            resp.sendError(HttpServletResponse.SC_FORBIDDEN);
+            return;
+        }
+        final MetricsWriter writer = new MetricsWriter();
+        bot.getMetrics().writeMetrics(writer);
+        final byte[] bytes = writer.toString().getBytes(StandardCharsets.UTF_8);
+        resp.setStatus(HttpServletResponse.SC_OK);
+        resp.setContentLength(bytes.length);
+        resp.setContentType("text/plain; version=0.0.4; charset=utf-8");
+        ServletOutputStream os = resp.getOutputStream();
+        os.write(bytes);
+        os.close();
+    }
+
+    private boolean isAllowed(final HttpServletRequest req) {
+        final Config metricsNode = bot.getConfig().node("metrics");
+        final String token = metricsNode.get("token", "");
+        if (! token.isEmpty()) {
+            final String authorization = req.getHeader("Authorization");
+            if (authorization != null && MessageDigest.isEqual(("Bearer " + token).getBytes(StandardCharsets.UTF_8), authorization.trim().getBytes(StandardCharsets.UTF_8))) {
+                return true;
+            }
+        }
+        final String remote = req.getRemoteAddr();
+        if (remote == null) {
+            return false;
+        }
+        final Set<String> allowed = metricsNode.getSet("allow");
+        if (allowed.contains(remote)) {
+            return true;
+        }
+        if (token.isEmpty() && allowed.isEmpty()) try {
+            return InetAddress.getByName(remote).isLoopbackAddress();
+        } catch (UnknownHostException e) {
+            return false;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2014, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.bot.metrics;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * The set of metrics sources of a bot.
+ */
+public final class MetricsRegistry {
+    private final CopyOnWriteArrayList<HandlerMetrics> handlers = new CopyOnWriteArrayList<HandlerMetrics>();
+    private final CopyOnWriteArrayList<MetricsSource> sources = new CopyOnWriteArrayList<MetricsSource>();
+
+    /**
+     * Create and register the metrics for an event handler.
+     *
+     * @param name the handler name
+     * @return the handler metrics
+     */
+    public HandlerMetrics addHandler(String name) {
+        final HandlerMetrics metrics = new HandlerMetrics(name);
+        handlers.add(metrics);
+        return metrics;
+    }
+
+    public List<HandlerMetrics> getHandlers() {
+        return new ArrayList<HandlerMetrics>(handlers);
+    }
+
+    public void addSource(MetricsSource source) {
+        sources.add(source);
+    }
+
+    public void removeSource(MetricsSource source) {
+        sources.remove(source);
+    }
+
+    /**
+     * Write all current metrics.
+     *
+     * @param writer the writer
+     */
+    public void writeMetrics(MetricsWriter writer) {
+        HandlerMetrics.writeMetrics(writer, handlers);
+        for (MetricsSource source : sources) {
+            source.writeMetrics(writer);
+        }
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2014, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.bot.metrics;
+
+/**
+ * A writer for metrics in the Prometheus text exposition format.
+ */
+public final class MetricsWriter {
+    private final StringBuilder b = new StringBuilder();
+
+    /**
+     * Start a metric family.  All the samples of a family must directly follow it.
+     *
+     * @param name the family name
+     * @param type the type ({@code counter}, {@code gauge} or {@code histogram})
+     * @param help the help text
+     * @return this writer
+     */
+    public MetricsWriter family(String name, String type, String help) {
+        b.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        b.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+        return this;
+    }
+
+    /**
+     * Write a sample.
+     *
+     * @param name the sample name
+     * @param value the value
+     * @param labels the label names and values, alternating
+     * @return this writer
+     */
+    public MetricsWriter sample(String name, long value, String... labels) {
+        labels(name, labels);
+        b.append(value).append('\n');
+        return this;
+    }
+
+    /**
+     * Write a sample.
+     *
+     * @param name the sample name
+     * @param value the value
+     * @param labels the label names and values, alternating
+     * @return this writer
+     */
+    public MetricsWriter sample(String name, double value, String... labels) {
+        labels(name, labels);
+        b.append(value).append('\n');
+        return this;
+    }
+
+    /**
+     * Write all the samples of a histogram.
+     *
+     * @param name the family name
+     * @param histogram the histogram
+     * @param labels the label names and values, alternating
+     * @return this writer
+     */
+    public MetricsWriter histogram(String name, Histogram histogram, String... labels) {
+        final long[] counts = histogram.getCounts();
+        final long[] bounds = Histogram.BOUNDS;
+        final String[] bucketLabels = new String[labels.length + 2];
+        System.arraycopy(labels, 0, bucketLabels, 0, labels.length);
+        bucketLabels[labels.length] = "le";
+        long cumulative = 0;
+        for (int i = 0; i < bounds.length; i ++) {
+            cumulative += counts[i];
+            bucketLabels[labels.length + 1] = Double.toString(bounds[i] / 1e9);
+            sample(name + "_bucket", cumulative, bucketLabels);
+        }
+        cumulative += counts[bounds.length];
+        bucketLabels[labels.length + 1] = "+Inf";
+        sample(name + "_bucket", cumulative, bucketLabels);
+        sample(name + "_sum", histogram.getSum() / 1e9, labels);
+        sample(name + "_count", cumulative, labels);
+        return this;
+    }
+
+    private void labels(String name, String[] labels) {
+        b.append(name);
+        if (labels.length > 0) {
+            b.append('{');
+            for (int i = 0; i + 1 < labels.length; i += 2) {
+                if (i > 0) b.append(',');
+                b.append(labels[i]).append("=\"");
+                final String value = labels[i + 1];
+                for (int j = 0; j < value.length(); j ++) {
+                    final char c = value.charAt(j);
+                    if (c == '\\' || c == '"') {
+                        b.append('\\').append(c);
+                    } else if (c == '\n') {
+                        b.append("\\n");
+                    } else {
+                        b.append(c);
+                    }
+                }
+                b.append('"');
+            }
+            b.append('}');
+        }
+        b.append(' ');
+    }
+
+    public String toString() {
+        return b.toString();
+    }
+}
@@ -22,10 +22,8 @@
 
 package org.jboss.bot.teamcity;
 
-import java.util.Arrays;
-import java.util.HashSet;
+import java.util.Set;
 
-import com.flurg.thimbot.Priority;
 import com.flurg.thimbot.event.Event;
 import com.flurg.thimbot.event.EventHandler;
 import com.flurg.thimbot.event.EventHandlerContext;
@@ -35,6 +33,7 @@ import javax.servlet.http.HttpServletResponse;
 import org.jboss.bot.IrcStringBuilder;
 import org.jboss.bot.JBossBot;
 import org.jboss.bot.JSONServletUtil;
+import org.jboss.bot.OutboundScheduler;
 import org.jboss.bot.http.HttpRequestEvent;
 
 /**
@@ -72,19 +71,18 @@ public final class TeamCityMessageHandler extends EventHandler {
                 }
                 final JSON branchNameNode = payload.get("build").get("branchName");
                 final String projectId = projectIdNode.asString();
-                final String unsplitChannels = bot.getPrefNode().node("teamcity").node("projects").node(projectId).get("channels", "");
-                if (unsplitChannels == null || unsplitChannels.isEmpty()) {
+                final Set<String> channels = bot.getConfig().node("teamcity/projects").node(projectId).getSet("channels");
+                if (channels.isEmpty()) {
                     System.out.println("No channels for TeamCity project " + projectId);
                     return;
                 }
-                final String[] channels = unsplitChannels.split("\\s*,\\s*");
                 final IrcStringBuilder b = new IrcStringBuilder();
                 b.b().append("teamcity").b().nc().append(" [").fc(9).append(projectNameNode.asString()).nc().append("] ");
                 if (branchNameNode.exists()) {
                     b.append('(').fc(10).append(branchNameNode.asString()).nc().append(") ");
                 }
                 b.append(messageNode.asString());
-                bot.getThimBot().sendMessage(Priority.NORMAL, new HashSet<String>(Arrays.asList(channels)), b.toString());
+                bot.getOutboundScheduler().sendMessage(OutboundScheduler.Lane.NOTIFICATION, channels, b.toString());
             } else {
                 super.handleEvent(context, event);
             }
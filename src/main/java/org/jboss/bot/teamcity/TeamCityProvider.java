@@ -35,7 +35,7 @@ public final class TeamCityProvider implements JBossBotServiceProvider {
 
     public void register(final JBossBot bot, final JBossBotServlet servlet) {
         final TeamCityMessageHandler messageHandler = new TeamCityMessageHandler(bot);
-        bot.getThimBot().addEventHandler(messageHandler);
+        bot.addEventHandler("teamcity", messageHandler);
     }
 
     public int getPriority() {
@@ -34,7 +34,7 @@ import org.mangosdk.spi.ProviderFor;
 public final class URLDefaultHandlerProvider implements JBossBotServiceProvider {
 
     public void register(final JBossBot bot, final JBossBotServlet servlet) {
-        bot.getThimBot().addEventHandler(new URLDefaultMessageHandler());
+        bot.addEventHandler("url-default", new URLDefaultMessageHandler(bot));
     }
 
     public int getPriority() {
@@ -22,13 +22,17 @@
 
 package org.jboss.bot.url;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.net.URI;
+import java.net.URL;
 import java.net.UnknownHostException;
-import java.util.Arrays;
-import java.util.Collections;
 import java.util.HashSet;
 import java.util.Set;
-import java.util.prefs.Preferences;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import com.flurg.thimbot.event.FromUserEvent;
 import com.flurg.thimbot.event.HandlerKey;
@@ -36,10 +40,11 @@ import com.flurg.thimbot.util.IRCStringBuilder;
 import com.flurg.thimbot.event.Event;
 import com.flurg.thimbot.event.EventHandler;
 import com.flurg.thimbot.event.EventHandlerContext;
-import org.jsoup.Connection;
-import org.jsoup.HttpStatusException;
+import org.jboss.bot.Config;
+import org.jboss.bot.HttpClient;
+import org.jboss.bot.JBossBot;
+import org.jboss.logging.Logger;
 import org.jsoup.Jsoup;
-import org.jsoup.UnsupportedMimeTypeException;
 import org.jsoup.nodes.Document;
 
 /**
@@ -47,12 +52,24 @@ import org.jsoup.nodes.Document;
  */
 public final class URLDefaultMessageHandler extends EventHandler {
 
+    private static final Logger log = Logger.getLogger("org.jboss.bot.url");
+
+    private static final int MAX_REDIRECTS = 5;
+    private static final Pattern HTML_TYPE = Pattern.compile("text/|application/(?:xhtml\\+)?xml", Pattern.CASE_INSENSITIVE);
+    private static final Pattern CHARSET = Pattern.compile("charset=\"?([^\\s;\"]+)", Pattern.CASE_INSENSITIVE);
+
+    private final JBossBot bot;
+
     static final HandlerKey<Set<String>> KEY = new HandlerKey<Set<String>>() {
         public Set<String> initialValue() {
             return new HashSet<>();
         }
     };
 
+    public URLDefaultMessageHandler(final JBossBot bot) {
+        this.bot = bot;
+    }
+
     public void handleEvent(final EventHandlerContext context, final Event event) throws Exception {
         if (event instanceof AbstractURLEvent<?>) {
             handleEvent(context, (AbstractURLEvent<?>) event);
@@ -61,26 +78,15 @@ public final class URLDefaultMessageHandler extends EventHandler {
         super.handleEvent(context, event);
     }
 
-    private static Set<String> getSet(Preferences prefs, String name) {
-        final String unsplit = prefs.get(name, "");
-        if (unsplit == null || unsplit.isEmpty()) {
-            return Collections.emptySet();
-        } else {
-            final HashSet<String> set = new HashSet<>(Arrays.asList(unsplit.trim().split("\\s*,\\s*")));
-            set.remove("");
-            return set;
-        }
-    }
-
     public void handleEvent(final EventHandlerContext context, final AbstractURLEvent<?> event) throws Exception {
         final URI uri = event.getUri();
         final String uriString = uri.toString();
-        final Set<String> exclude = getSet(event.getBot().getPreferences().node("url"), "exclude");
-        if (exclude.contains(event.getUri().getHost())) {
+        final Config urlNode = bot.getConfig().node("url");
+        if (urlNode.getSet("exclude").contains(event.getUri().getHost())) {
             return;
         }
         if (event instanceof FromUserEvent) {
-            final Set<String> ignore = getSet(event.getBot().getPreferences().node("url"), "ignore-nicks");
+            final Set<String> ignore = urlNode.getSet("ignore-nicks");
             if (ignore.contains(((FromUserEvent) event).getFromNick())) {
                 return;
             }
@@ -89,25 +95,80 @@ public final class URLDefaultMessageHandler extends EventHandler {
         if (set.size() >= 8 || ! set.add(uriString)) {
             return;
         }
+        bot.getLookupExecutor().execute(event, new Runnable() {
+            public void run() {
+                try {
+                    fetchTitle(event, uriString);
+                } catch (IOException e) {
+                    log.debugf(e, "Failed to fetch title of %s", uriString);
+                }
+            }
+        });
+    }
+
+    private void fetchTitle(final AbstractURLEvent<?> event, final String uriString) throws IOException {
         String s;
         final IRCStringBuilder b = new IRCStringBuilder();
         try {
-            final Connection connection = Jsoup.connect(uriString);
-            connection.followRedirects(true);
-            final Document document = connection.get();
-            final String title = document.title().trim();
-            if (title.isEmpty()) {
-                return;
+            final HttpClient client = bot.getHttpClient();
+            URL url = new URL(uriString);
+            int redirects = 0;
+            HttpClient.Response response = client.get(url);
+            try {
+                while (isRedirect(response.getStatus()) && response.getHeader("Location") != null && redirects++ < MAX_REDIRECTS) {
+                    url = new URL(url, response.getHeader("Location"));
+                    response.close();
+                    response = client.get(url);
+                }
+                final int code = response.getStatus();
+                if (code == 404 || isRedirect(code)) {
+                    return;
+                }
+                if (code < 200 || code >= 300) {
+                    s = b.fc(4).append("Status ").append(code).nc().toString();
+                } else {
+                    final String contentType = response.getContentType();
+                    if (contentType == null || ! HTML_TYPE.matcher(contentType).lookingAt()) {
+                        return;
+                    }
+                    final Matcher charsetMatcher = CHARSET.matcher(contentType);
+                    final String charset = charsetMatcher.find() ? charsetMatcher.group(1) : null;
+                    final Document document = Jsoup.parse(new ByteArrayInputStream(readHead(response)), charset, url.toString());
+                    final String title = document.title().trim();
+                    if (title.isEmpty()) {
+                        return;
+                    }
+                    s = b.b().append("Title:").b().nc().fc(3).append(' ').append(title).nc().toString();
+                }
+            } finally {
+                response.close();
             }
-            s = b.b().append("Title:").b().nc().fc(3).append(' ').append(title).nc().toString();
-        } catch (HttpStatusException e) {
-            if (e.getStatusCode() == 404) {
-                return;
-            }
-            s = b.fc(4).append("Status ").append(e.getStatusCode()).nc().toString();
-        } catch (UnknownHostException | UnsupportedMimeTypeException ignored) {
+        } catch (UnknownHostException ignored) {
             return;
         }
-        event.sendMessageResponse(s);
+        bot.getOutboundScheduler().respond(event, s);
+    }
+
+    private static boolean isRedirect(final int code) {
+        return code == 301 || code == 302 || code == 303 || code == 307 || code == 308;
+    }
+
+    /**
+     * Read the start of the page, up to the size limit.  The title is near the top, so a page over the limit is
+     * cut off rather than rejected.
+     */
+    private byte[] readHead(final HttpClient.Response response) throws IOException {
+        final long limit = bot.getConfig().node("url").getLong("max-response-bytes", 1L << 20);
+        final ByteArrayOutputStream os = new ByteArrayOutputStream();
+        final InputStream is = response.getBody();
+        final byte[] buf = new byte[4096];
+        int res;
+        while ((res = is.read(buf, 0, (int) Math.min(buf.length, limit - os.size()))) > 0) {
+            os.write(buf, 0, res);
+        }
+        if (res != -1) {
+            response.abort();
+        }
+        return os.toByteArray();
     }
 }
@@ -23,9 +23,6 @@
 package org.jboss.bot.url;
 
 import java.net.URI;
-import java.net.URISyntaxException;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 import com.flurg.thimbot.Priority;
 import com.flurg.thimbot.event.ChannelActionEvent;
@@ -36,161 +33,83 @@ import com.flurg.thimbot.event.OutboundActionEvent;
 import com.flurg.thimbot.event.OutboundMessageEvent;
 import com.flurg.thimbot.event.PrivateActionEvent;
 import com.flurg.thimbot.event.PrivateMessageEvent;
+import org.jboss.bot.ReferenceScanner;
+import org.jboss.bot.References;
 
 /**
  * @author <a href="mailto:david.lloyd@redhat.com">David M. Lloyd</a>
  */
 public final class URLMessageHandler extends EventHandler {
 
-    private static final Pattern URL_PATTERN = Pattern.compile("https?://[^ ]*[^ ,.?]", Pattern.CASE_INSENSITIVE);
-
     public void handleEvent(final EventHandlerContext context, final ChannelActionEvent event) throws Exception {
-        final StringBuilder cleanString = new StringBuilder();
-        final String message = event.getText();
-        final Matcher matcher = URL_PATTERN.matcher(message);
-        int last = 0;
-        if (matcher.find()) {
-            do {
-                final URI uri;
-                try {
-                    uri = new URI(matcher.group());
-                } catch (URISyntaxException e) {
-                    continue;
-                }
-                cleanString.append(message.substring(last, matcher.start()));
-                cleanString.append("[URL]");
-                context.redispatch(new ChannelActionURLEvent(event.getBot(), event, uri));
-                last = matcher.end();
-            } while (matcher.find());
-            cleanString.append(message.substring(last, message.length()));
-            super.handleEvent(context, new ChannelActionEvent(event.getBot(), event.getFromUser(), event.getChannel(), cleanString.toString()));
-        } else {
+        final References references = ReferenceScanner.scan(context, event.getText());
+        if (references.getUrls().isEmpty()) {
             super.handleEvent(context, event);
+            return;
+        }
+        for (URI uri : references.getUrls()) {
+            context.redispatch(new ChannelActionURLEvent(event.getBot(), event, uri));
         }
+        super.handleEvent(context, new ChannelActionEvent(event.getBot(), event.getFromUser(), event.getChannel(), references.getCleanText()));
     }
 
     public void handleEvent(final EventHandlerContext context, final ChannelMessageEvent event) throws Exception {
-        final StringBuilder cleanString = new StringBuilder();
-        final String message = event.getText();
-        final Matcher matcher = URL_PATTERN.matcher(message);
-        int last = 0;
-        if (matcher.find()) {
-            do {
-                final URI uri;
-                try {
-                    uri = new URI(matcher.group());
-                } catch (URISyntaxException e) {
-                    continue;
-                }
-                cleanString.append(message.substring(last, matcher.start()));
-                cleanString.append("[URL]");
-                context.redispatch(new ChannelMessageURLEvent(event.getBot(), event, uri));
-                last = matcher.end();
-            } while (matcher.find());
-            cleanString.append(message.substring(last, message.length()));
-            super.handleEvent(context, new ChannelMessageEvent(event.getBot(), event.getFromUser(), event.getChannel(), cleanString.toString()));
-        } else {
+        final References references = ReferenceScanner.scan(context, event.getText());
+        if (references.getUrls().isEmpty()) {
             super.handleEvent(context, event);
+            return;
         }
+        for (URI uri : references.getUrls()) {
+            context.redispatch(new ChannelMessageURLEvent(event.getBot(), event, uri));
+        }
+        super.handleEvent(context, new ChannelMessageEvent(event.getBot(), event.getFromUser(), event.getChannel(), references.getCleanText()));
     }
 
     public void handleEvent(final EventHandlerContext context, final PrivateMessageEvent event) throws Exception {
-        final StringBuilder cleanString = new StringBuilder();
-        final String message = event.getText();
-        final Matcher matcher = URL_PATTERN.matcher(message);
-        int last = 0;
-        if (matcher.find()) {
-            do {
-                final URI uri;
-                try {
-                    uri = new URI(matcher.group());
-                } catch (URISyntaxException e) {
-                    continue;
-                }
-                cleanString.append(message.substring(last, matcher.start()));
-                cleanString.append("[URL]");
-                context.redispatch(new PrivateMessageURLEvent(event.getBot(), event, uri));
-                last = matcher.end();
-            } while (matcher.find());
-            cleanString.append(message.substring(last, message.length()));
-            super.handleEvent(context, new PrivateMessageEvent(event.getBot(), event.getFromUser(), cleanString.toString()));
-        } else {
+        final References references = ReferenceScanner.scan(context, event.getText());
+        if (references.getUrls().isEmpty()) {
             super.handleEvent(context, event);
+            return;
+        }
+        for (URI uri : references.getUrls()) {
+            context.redispatch(new PrivateMessageURLEvent(event.getBot(), event, uri));
         }
+        super.handleEvent(context, new PrivateMessageEvent(event.getBot(), event.getFromUser(), references.getCleanText()));
     }
 
     public void handleEvent(final EventHandlerContext context, final PrivateActionEvent event) throws Exception {
-        final StringBuilder cleanString = new StringBuilder();
-        final String message = event.getText();
-        final Matcher matcher = URL_PATTERN.matcher(message);
-        int last = 0;
-        if (matcher.find()) {
-            do {
-                final URI uri;
-                try {
-                    uri = new URI(matcher.group());
-                } catch (URISyntaxException e) {
-                    continue;
-                }
-                cleanString.append(message.substring(last, matcher.start()));
-                cleanString.append("[URL]");
-                context.redispatch(new PrivateActionURLEvent(event.getBot(), event, uri));
-                last = matcher.end();
-            } while (matcher.find());
-            cleanString.append(message.substring(last, message.length()));
-            super.handleEvent(context, new PrivateActionEvent(event.getBot(), event.getFromUser(), cleanString.toString()));
-        } else {
+        final References references = ReferenceScanner.scan(context, event.getText());
+        if (references.getUrls().isEmpty()) {
             super.handleEvent(context, event);
+            return;
         }
+        for (URI uri : references.getUrls()) {
+            context.redispatch(new PrivateActionURLEvent(event.getBot(), event, uri));
+        }
+        super.handleEvent(context, new PrivateActionEvent(event.getBot(), event.getFromUser(), references.getCleanText()));
     }
 
     public void handleEvent(final EventHandlerContext context, final OutboundMessageEvent event) throws Exception {
-        final StringBuilder cleanString = new StringBuilder();
-        final String message = event.getText();
-        final Matcher matcher = URL_PATTERN.matcher(message);
-        int last = 0;
-        if (matcher.find()) {
-            do {
-                final URI uri;
-                try {
-                    uri = new URI(matcher.group());
-                } catch (URISyntaxException e) {
-                    continue;
-                }
-                cleanString.append(message.substring(last, matcher.start()));
-                cleanString.append("[URL]");
-                context.redispatch(new OutboundMessageURLEvent(event.getBot(), Priority.NORMAL, event, uri));
-                last = matcher.end();
-            } while (matcher.find());
-            cleanString.append(message.substring(last, message.length()));
-            super.handleEvent(context, new OutboundMessageEvent(event.getBot(), Priority.NORMAL, event.getTargets(), cleanString.toString()));
-        } else {
+        final References references = ReferenceScanner.scan(context, event.getText());
+        if (references.getUrls().isEmpty()) {
             super.handleEvent(context, event);
+            return;
+        }
+        for (URI uri : references.getUrls()) {
+            context.redispatch(new OutboundMessageURLEvent(event.getBot(), Priority.NORMAL, event, uri));
         }
+        super.handleEvent(context, new OutboundMessageEvent(event.getBot(), Priority.NORMAL, event.getTargets(), references.getCleanText()));
     }
 
     public void handleEvent(final EventHandlerContext context, final OutboundActionEvent event) throws Exception {
-        final StringBuilder cleanString = new StringBuilder();
-        final String message = event.getText();
-        final Matcher matcher = URL_PATTERN.matcher(message);
-        int last = 0;
-        if (matcher.find()) {
-            do {
-                final URI uri;
-                try {
-                    uri = new URI(matcher.group());
-                } catch (URISyntaxException e) {
-                    continue;
-                }
-                cleanString.append(message.substring(last, matcher.start()));
-                cleanString.append("[URL]");
-                context.redispatch(new OutboundActionURLEvent(event.getBot(), Priority.NORMAL, event, uri));
-                last = matcher.end();
-            } while (matcher.find());
-            cleanString.append(message.substring(last, message.length()));
-            super.handleEvent(context, new OutboundActionEvent(event.getBot(), Priority.NORMAL, event.getTargets(), cleanString.toString()));
-        } else {
+        final References references = ReferenceScanner.scan(context, event.getText());
+        if (references.getUrls().isEmpty()) {
             super.handleEvent(context, event);
+            return;
+        }
+        for (URI uri : references.getUrls()) {
+            context.redispatch(new OutboundActionURLEvent(event.getBot(), Priority.NORMAL, event, uri));
         }
+        super.handleEvent(context, new OutboundActionEvent(event.getBot(), Priority.NORMAL, event.getTargets(), references.getCleanText()));
     }
 }
@@ -34,7 +34,7 @@ import org.mangosdk.spi.ProviderFor;
 public final class URLProvider implements JBossBotServiceProvider {
 
     public void register(final JBossBot bot, final JBossBotServlet servlet) {
-        bot.getThimBot().addEventHandler(new URLMessageHandler());
+        bot.addEventHandler("url", new URLMessageHandler());
     }
 
     public int getPriority() {